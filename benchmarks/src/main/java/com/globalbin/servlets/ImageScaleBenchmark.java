@@ -0,0 +1,99 @@
+package com.globalbin.servlets;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decode / scale / encode cost of the thumbnail and servlet resize paths for
+ * representative camera sizes and formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageScaleBenchmark {
+
+    /**
+     * Source size in megapixels, 4:3 aspect ratio.
+     */
+    @Param({ "0.5", "5", "24" })
+    public double megapixels;
+
+    @Param({ "jpeg", "png" })
+    public String format;
+
+    private byte[] source;
+    private String suffix;
+    private ThumbnailGenerator generator;
+    private ResizeSpec servletSpec;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1000000 * 4 / 3));
+        int height = width * 3 / 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageScaler.write(syntheticPhoto(width, height), format, 90, out);
+        source = out.toByteArray();
+        suffix = format.equals("jpeg") ? ".jpg" : ".png";
+        generator = new ThumbnailGenerator();
+        servletSpec = new ResizeSpec(200, 0, ResizeSpec.Fit.CONTAIN, ResizeSpec.DEFAULT_QUALITY, "jpeg");
+    }
+
+    /**
+     * One thumbnail width through the public ThumbnailGenerator entry point.
+     */
+    @Benchmark
+    public byte[] thumbnailGeneratorScale() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generator.scale(new ByteArrayInputStream(source), 250, out, suffix);
+        return out.toByteArray();
+    }
+
+    /**
+     * The work ImageResizer runs on its pool for a default .show.jpg request.
+     */
+    @Benchmark
+    public byte[] imageServletResize() throws IOException {
+        return ImageScaler.resize(new ByteArrayInputStream(source), servletSpec);
+    }
+
+    /**
+     * Gradient plus noise, so encoders cannot cheat on flat areas.
+     */
+    static BufferedImage syntheticPhoto(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+        g.fillRect(0, 0, width, height);
+        g.dispose();
+        Random random = new Random(42);
+        for (int y = 0; y < height; y += 3) {
+            for (int x = 0; x < width; x += 3) {
+                image.setRGB(x, y, image.getRGB(x, y) ^ (random.nextInt() & 0x0f0f0f));
+            }
+        }
+        return image;
+    }
+}
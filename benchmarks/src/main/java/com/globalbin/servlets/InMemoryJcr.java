@@ -0,0 +1,201 @@
+package com.globalbin.servlets;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Session;
+
+/**
+ * Minimal in-memory stand-in for a JCR session, just enough for the import
+ * code paths to run without a repository. Only the methods the benchmarked
+ * code calls are implemented; everything else throws
+ * {@link UnsupportedOperationException}.
+ */
+final class InMemoryJcr {
+
+    private final NodeState root = new NodeState(null, "", "rep:root");
+    private final Session session;
+    private int saves;
+
+    InMemoryJcr() {
+        session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Session.class },
+                new SessionHandler());
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    int getSaves() {
+        return saves;
+    }
+
+    int countNodes() {
+        return root.count() - 1;
+    }
+
+    private final class NodeState {
+        final NodeState parent;
+        final String name;
+        final String type;
+        final Map<String, NodeState> children = new LinkedHashMap<String, NodeState>();
+        final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        final Node proxy;
+
+        NodeState(NodeState parent, String name, String type) {
+            this.parent = parent;
+            this.name = name;
+            this.type = type;
+            this.proxy = (Node) Proxy.newProxyInstance(InMemoryJcr.class.getClassLoader(),
+                    new Class<?>[] { Node.class }, new NodeHandler(this));
+        }
+
+        String path() {
+            if (parent == null) {
+                return "/";
+            }
+            return parent.parent == null ? "/" + name : parent.path() + "/" + name;
+        }
+
+        NodeState resolve(String relPath) throws PathNotFoundException {
+            NodeState node = this;
+            for (String segment : relPath.split("/")) {
+                if (segment.length() == 0 || segment.equals(".")) {
+                    continue;
+                }
+                node = segment.equals("..") ? node.parent : node.children.get(segment);
+                if (node == null) {
+                    throw new PathNotFoundException(relPath);
+                }
+            }
+            return node;
+        }
+
+        int count() {
+            int n = 1;
+            for (NodeState child : children.values()) {
+                n += child.count();
+            }
+            return n;
+        }
+    }
+
+    private final class NodeHandler implements InvocationHandler {
+        private final NodeState state;
+
+        NodeHandler(NodeState state) {
+            this.state = state;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getName")) {
+                return state.name;
+            } else if (name.equals("getPath")) {
+                return state.path();
+            } else if (name.equals("getIdentifier")) {
+                return Integer.toHexString(System.identityHashCode(state));
+            } else if (name.equals("getParent")) {
+                return state.parent.proxy;
+            } else if (name.equals("getSession")) {
+                return session;
+            } else if (name.equals("addNode")) {
+                String type = args.length > 1 ? (String) args[1] : "nt:unstructured";
+                NodeState child = new NodeState(state, (String) args[0], type);
+                state.children.put(child.name, child);
+                return child.proxy;
+            } else if (name.equals("hasNode")) {
+                try {
+                    state.resolve((String) args[0]);
+                    return true;
+                } catch (PathNotFoundException e) {
+                    return false;
+                }
+            } else if (name.equals("getNode")) {
+                return state.resolve((String) args[0]).proxy;
+            } else if (name.equals("getNodes") && (args == null || args.length == 0)) {
+                return nodeIterator(state.children.values().iterator(), state.children.size());
+            } else if (name.equals("hasNodes")) {
+                return !state.children.isEmpty();
+            } else if (name.equals("setProperty")) {
+                state.properties.put((String) args[0], args[1]);
+                return null;
+            } else if (name.equals("hasProperty")) {
+                return state.properties.containsKey(args[0]);
+            } else if (name.equals("remove")) {
+                state.parent.children.remove(state.name);
+                return null;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(state);
+            } else if (name.equals("toString")) {
+                return state.path();
+            }
+            throw new UnsupportedOperationException("Node." + name);
+        }
+    }
+
+    private final class SessionHandler implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getRootNode")) {
+                return root.proxy;
+            } else if (name.equals("getNode")) {
+                return root.resolve((String) args[0]).proxy;
+            } else if (name.equals("nodeExists")) {
+                try {
+                    root.resolve((String) args[0]);
+                    return true;
+                } catch (PathNotFoundException e) {
+                    return false;
+                }
+            } else if (name.equals("save")) {
+                saves++;
+                return null;
+            } else if (name.equals("refresh") || name.equals("logout")) {
+                return null;
+            } else if (name.equals("hasPendingChanges")) {
+                return false;
+            } else if (name.equals("isLive")) {
+                return true;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(this);
+            } else if (name.equals("toString")) {
+                return "InMemoryJcr session";
+            }
+            throw new UnsupportedOperationException("Session." + name);
+        }
+    }
+
+    private static NodeIterator nodeIterator(final Iterator<NodeState> it, final long size) {
+        return (NodeIterator) Proxy.newProxyInstance(InMemoryJcr.class.getClassLoader(),
+                new Class<?>[] { NodeIterator.class }, new InvocationHandler() {
+                    private long position;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("hasNext")) {
+                            return it.hasNext();
+                        } else if (name.equals("nextNode") || name.equals("next")) {
+                            position++;
+                            return it.next().proxy;
+                        } else if (name.equals("getSize")) {
+                            return size;
+                        } else if (name.equals("getPosition")) {
+                            return position;
+                        }
+                        throw new UnsupportedOperationException("NodeIterator." + name);
+                    }
+                });
+    }
+}
@@ -0,0 +1,107 @@
+package com.globalbin.servlets;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PageCreatorServlet JSON-to-node traversal against {@link InMemoryJcr}, so the
+ * numbers show the servlet's own overhead rather than persistence cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageImportBenchmark {
+
+    /**
+     * Total number of gb:node entries in the imported tree.
+     */
+    @Param({ "50", "5000" })
+    public int nodes;
+
+    private JSONObject tree;
+    private String document;
+    private PageCreatorServlet servlet;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JSONException {
+        tree = pageTree(nodes);
+        document = "{\"path\": \"\", \"jcr\": " + tree + "}";
+        servlet = new PageCreatorServlet();
+    }
+
+    @Benchmark
+    public int traverseJson() throws Exception {
+        InMemoryJcr jcr = new InMemoryJcr();
+        servlet.traverseJSON(jcr.getSession().getRootNode(), tree);
+        return jcr.getSaves();
+    }
+
+    /**
+     * The ?mode=bulk path with the default batch size.
+     */
+    @Benchmark
+    public int importJsonBulk() throws Exception {
+        InMemoryJcr jcr = new InMemoryJcr();
+        BulkImport bulk = new BulkImport(jcr.getSession(), 500);
+        servlet.importJSON(jcr.getSession().getRootNode(), tree, bulk);
+        bulk.commit();
+        return jcr.getSaves();
+    }
+
+    /**
+     * The ?mode=stream path, parsing the request body as it imports.
+     */
+    @Benchmark
+    public int importStreaming() throws Exception {
+        InMemoryJcr jcr = new InMemoryJcr();
+        BulkImport bulk = new BulkImport(jcr.getSession(), 500);
+        new StreamingPageImporter(new JsonStreamReader(new StringReader(document)), jcr.getSession())
+                .importNext(bulk);
+        bulk.commit();
+        return jcr.getSaves();
+    }
+
+    /**
+     * A page tree with ten children per level, three string properties per
+     * node.
+     */
+    static JSONObject pageTree(int nodes) throws JSONException {
+        JSONObject root = new JSONObject();
+        int[] remaining = { nodes };
+        fill(root, remaining, 0);
+        return root;
+    }
+
+    private static void fill(JSONObject parent, int[] remaining, int depth) throws JSONException {
+        for (int i = 0; i < 10 && remaining[0] > 0; i++) {
+            remaining[0]--;
+            JSONObject child = new JSONObject();
+            child.put("jcr:primaryType", "gb:node");
+            child.put("title", "Node " + remaining[0]);
+            child.put("description", "Generated at depth " + depth);
+            child.put("sling:resourceType", "gb/node");
+            parent.put("n" + i, child);
+        }
+        for (int i = 0; i < 10 && remaining[0] > 0; i++) {
+            fill(parent.getJSONObject("n" + i), remaining, depth + 1);
+        }
+    }
+}
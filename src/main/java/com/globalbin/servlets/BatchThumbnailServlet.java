@@ -0,0 +1,530 @@
+package com.globalbin.servlets;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thumbnails for many images in one request. GET or POST
+ * <code>/bin/api/thumbnails/batch?path=/content/images/a.jpg&amp;path=...</code>
+ * with an optional <code>spec</code> in the selector syntax of
+ * {@link ImageServlet}, e.g. <code>w120.q80.png</code> (default
+ * <code>w200.jpg</code>), and a <code>mode</code>:
+ * <ul>
+ * <li><code>multipart</code> (default) - a <code>multipart/mixed</code>
+ * response with one part per rendition, in request order, identified by
+ * its <code>Content-Location</code>, followed by a JSON part listing every
+ * path and the ones that failed</li>
+ * <li><code>sprite</code> - a <code>multipart/mixed</code> response with a
+ * JSON part mapping each path to its rectangle, followed by the single
+ * sprite sheet image</li>
+ * </ul>
+ *
+ * Renditions come from the {@link RenditionCache} or a persisted rendition
+ * of the {@link ThumbnailGenerator} where there is one, exactly as for
+ * {@link ImageServlet}. The rest are queued on the {@link ImageResizer}
+ * pool, at most <code>batch.parallelism</code> at a time so one batch does
+ * not take the whole pool, while the request thread goes on reading the
+ * repository. A path that is missing, not an image, or cannot be rendered
+ * fails on its own and is reported in the JSON part.
+ */
+@SlingServlet(paths = "/bin/api/thumbnails/batch", methods = {"GET", "POST"})
+@Properties({
+    @Property(name = "service.description", value = "Batch Thumbnail Servlet"),
+    @Property(name = "service.vendor", value = "The Global Bin")
+})
+public class BatchThumbnailServlet extends SlingAllMethodsServlet {
+    private static final long serialVersionUID = -3482291785710398813L;
+
+    private static final Logger log = LoggerFactory.getLogger(BatchThumbnailServlet.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int WIDTH = 200;
+
+    private static final String DEFAULT_SPEC = "w" + WIDTH;
+
+    private static final String DEFAULT_EXTENSION = "jpg";
+
+    @Property(intValue = 200)
+    private static final String MAX_PATHS_PROPERTY = "batch.maxPaths";
+
+    @Property(intValue = 4)
+    private static final String PARALLELISM_PROPERTY = "batch.parallelism";
+
+    @Property(intValue = 16 * 1024 * 1024)
+    private static final String MAX_SPRITE_PIXELS_PROPERTY = "batch.maxSpritePixels";
+
+    @Reference
+    private RenditionCache renditionCache;
+
+    @Reference
+    private ImageResizer imageResizer;
+
+    @Reference
+    private ScratchSpace scratchSpace;
+
+    @Reference
+    private RenditionProfile renditionProfile;
+
+    @Reference
+    private ThumbnailGenerator thumbnailGenerator;
+
+    private int maxPaths;
+    private int parallelism;
+    private int maxSpritePixels;
+
+    protected void activate(ComponentContext context) {
+        maxPaths = Math.max(1, ConfigUtil.toInt(context.getProperties(), MAX_PATHS_PROPERTY, 200));
+        parallelism = Math.max(1, ConfigUtil.toInt(context.getProperties(), PARALLELISM_PROPERTY, 4));
+        maxSpritePixels = ConfigUtil.toInt(context.getProperties(), MAX_SPRITE_PIXELS_PROPERTY, 16 * 1024 * 1024);
+    }
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        handle(request, response);
+    }
+
+    @Override
+    protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        handle(request, response);
+    }
+
+    private void handle(SlingHttpServletRequest request, SlingHttpServletResponse response) throws IOException {
+        String[] values = request.getParameterValues("path");
+        if (values == null || values.length == 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "path is required");
+            return;
+        }
+        // duplicates would only be rendered twice
+        Set<String> paths = new LinkedHashSet<String>();
+        for (String path : values) {
+            if (!path.startsWith("/")) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Not an absolute path: " + path);
+                return;
+            }
+            paths.add(path);
+        }
+        if (paths.size() > maxPaths) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "At most " + maxPaths + " paths per request");
+            return;
+        }
+        String mode = request.getParameter("mode");
+        boolean sprite = "sprite".equals(mode);
+        if (mode != null && !sprite && !"multipart".equals(mode)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "mode must be sprite or multipart");
+            return;
+        }
+        String specParam = request.getParameter("spec");
+        ResizeSpec spec;
+        try {
+            spec = ResizeSpec.parse((specParam == null ? DEFAULT_SPEC : specParam).split("\\."), 0,
+                    WIDTH, DEFAULT_EXTENSION);
+        } catch (ResizeSpec.InvalidSpecException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (!imageResizer.isAllowed(spec)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Rendition not allowed: " + spec);
+            return;
+        }
+
+        List<Item> items = new ArrayList<Item>(paths.size());
+        for (String path : paths) {
+            items.add(new Item(path));
+        }
+        String boundary = UUID.randomUUID().toString();
+        response.setContentType("multipart/mixed; boundary=" + boundary);
+        MultipartWriter out = new MultipartWriter(response.getOutputStream(), boundary);
+        Batch batch = new Batch(request.getResourceResolver(), spec);
+        try {
+            int written = 0;
+            for (int i = 0; i < items.size(); i++) {
+                batch.prepare(items.get(i));
+                if (!sprite) {
+                    // parts go out in request order as soon as they are ready
+                    while (written <= i && items.get(written).isReady()) {
+                        writeRendition(out, items.get(written++));
+                    }
+                }
+            }
+            batch.finish();
+            if (sprite) {
+                writeSprite(response, out, items, spec);
+            } else {
+                while (written < items.size()) {
+                    writeRendition(out, items.get(written++));
+                }
+                out.part("application/json", null, summary(items, null).getBytes(UTF_8));
+            }
+            out.close();
+        } catch (JSONException e) {
+            throw new IOException("Error writing batch summary", e);
+        } finally {
+            batch.release();
+        }
+    }
+
+    private void writeRendition(MultipartWriter out, Item item) throws IOException {
+        if (item.bytes != null) {
+            out.part(item.spec.getMimeType(), item.path, item.bytes);
+        }
+    }
+
+    private void writeSprite(HttpServletResponse response, MultipartWriter out, List<Item> items, ResizeSpec spec)
+            throws IOException, JSONException {
+        List<BufferedImage> images = new ArrayList<BufferedImage>();
+        List<Item> placed = new ArrayList<Item>();
+        for (Item item : items) {
+            if (item.bytes == null) {
+                continue;
+            }
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(item.bytes));
+            if (image == null) {
+                item.error = "Rendition could not be decoded";
+                continue;
+            }
+            images.add(image);
+            placed.add(item);
+        }
+        int[] widths = new int[images.size()];
+        int[] heights = new int[images.size()];
+        for (int i = 0; i < images.size(); i++) {
+            widths[i] = images.get(i).getWidth();
+            heights[i] = images.get(i).getHeight();
+        }
+        Rectangle[] cells = layout(widths, heights);
+        Rectangle bounds = new Rectangle();
+        for (Rectangle cell : cells) {
+            bounds.add(cell);
+        }
+        if ((long) bounds.width * bounds.height > maxSpritePixels) {
+            // nothing has been written in sprite mode yet
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Sprite of " + bounds.width + "x"
+                    + bounds.height + " exceeds " + maxSpritePixels + " pixels");
+            return;
+        }
+        for (int i = 0; i < placed.size(); i++) {
+            placed.get(i).cell = cells[i];
+        }
+        byte[] sheet = new byte[0];
+        if (!images.isEmpty()) {
+            boolean opaque = "jpeg".equals(spec.getFormat());
+            BufferedImage canvas = new BufferedImage(bounds.width, bounds.height,
+                    opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = canvas.createGraphics();
+            try {
+                if (opaque) {
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, bounds.width, bounds.height);
+                }
+                for (int i = 0; i < images.size(); i++) {
+                    g.drawImage(images.get(i), cells[i].x, cells[i].y, null);
+                }
+            } finally {
+                g.dispose();
+            }
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            ImageScaler.write(canvas, spec.getFormat(), spec.getQuality(), encoded);
+            sheet = encoded.toByteArray();
+        }
+        out.part("application/json", null, summary(items, bounds).getBytes(UTF_8));
+        out.part(spec.getMimeType(), null, sheet);
+    }
+
+    /**
+     * JSON part: every path with its rectangle in the sprite, if there is a
+     * sprite, or its error.
+     */
+    static String summary(List<Item> items, Rectangle sprite) throws JSONException {
+        StringWriter buffer = new StringWriter();
+        JSONWriter w = new JSONWriter(buffer);
+        w.object();
+        if (sprite != null) {
+            w.key("width").value(sprite.width);
+            w.key("height").value(sprite.height);
+        }
+        w.key("images").object();
+        for (Item item : items) {
+            w.key(item.path).object();
+            if (item.error != null) {
+                w.key("error").value(item.error);
+            } else if (item.cell != null) {
+                w.key("x").value(item.cell.x);
+                w.key("y").value(item.cell.y);
+                w.key("width").value(item.cell.width);
+                w.key("height").value(item.cell.height);
+            } else {
+                w.key("bytes").value(item.bytes.length);
+            }
+            w.endObject();
+        }
+        w.endObject();
+        w.endObject();
+        return buffer.toString();
+    }
+
+    /**
+     * Places images of the given sizes on a roughly square sheet: shelves
+     * of <code>ceil(sqrt(n))</code> images, each shelf as high as its
+     * tallest image.
+     */
+    static Rectangle[] layout(int[] widths, int[] heights) {
+        int n = widths.length;
+        Rectangle[] cells = new Rectangle[n];
+        int columns = Math.max(1, (int) Math.ceil(Math.sqrt(n)));
+        int y = 0;
+        for (int row = 0; row * columns < n; row++) {
+            int x = 0;
+            int shelf = 0;
+            for (int i = row * columns; i < Math.min(n, (row + 1) * columns); i++) {
+                cells[i] = new Rectangle(x, y, widths[i], heights[i]);
+                x += widths[i];
+                shelf = Math.max(shelf, heights[i]);
+            }
+            y += shelf;
+        }
+        return cells;
+    }
+
+    /**
+     * One requested path. Ready once it has its bytes or an error.
+     */
+    static class Item {
+        final String path;
+        ResizeSpec spec;
+        byte[] bytes;
+        String error;
+        Rectangle cell;
+
+        String cacheKey;
+        String contentPath;
+        boolean precomputed;
+        Binary data;
+        ImageInputStream iis;
+        Future<byte[]> pending;
+
+        Item(String path) {
+            this.path = path;
+        }
+
+        boolean isReady() {
+            return pending == null;
+        }
+    }
+
+    /**
+     * Looks renditions up on the request thread, which owns the session,
+     * and keeps up to <code>parallelism</code> renders on the resize pool.
+     */
+    private class Batch {
+        private final ResourceResolver resolver;
+        private final ResizeSpec spec;
+        private final Deque<Item> inFlight = new ArrayDeque<Item>();
+
+        Batch(ResourceResolver resolver, ResizeSpec spec) {
+            this.resolver = resolver;
+            this.spec = spec;
+        }
+
+        void prepare(Item item) {
+            String contentPath = item.path + "/jcr:content";
+            try {
+                Resource resource = resolver.getResource(contentPath);
+                Node content = resource == null ? null : resource.adaptTo(Node.class);
+                if (content == null || !content.hasProperty("jcr:data")) {
+                    item.error = "Not found";
+                    return;
+                }
+                String sourceFormat = thumbnailGenerator.getSourceFormat(content);
+                if (sourceFormat == null) {
+                    item.error = "Not a supported image";
+                    return;
+                }
+                ResizeSpec precomputed = renditionProfile.match(spec, sourceFormat);
+                item.spec = precomputed != null ? precomputed : spec;
+                item.precomputed = precomputed != null;
+                item.contentPath = contentPath;
+                long lastModified = content.hasProperty("jcr:lastModified")
+                        ? content.getProperty("jcr:lastModified").getDate().getTimeInMillis() : 0L;
+                item.cacheKey = RenditionCache.key(item.path, lastModified, item.spec.toString());
+                item.bytes = renditionCache.get(item.cacheKey);
+                if (item.bytes == null && precomputed != null) {
+                    item.bytes = thumbnailGenerator.readRendition(content, precomputed);
+                    if (item.bytes != null) {
+                        renditionCache.put(item.cacheKey, item.bytes);
+                    }
+                }
+                if (item.bytes == null) {
+                    submit(item, content);
+                }
+            } catch (RepositoryException e) {
+                log.warn("Batch thumbnail of {} failed: {}", item.path, e.toString());
+                item.error = "Repository error";
+            } catch (IOException e) {
+                log.warn("Batch thumbnail of {} failed: {}", item.path, e.toString());
+                item.error = "Rendition failed";
+                release(item);
+            }
+        }
+
+        private void submit(Item item, Node content) throws RepositoryException, IOException {
+            if (inFlight.size() >= parallelism) {
+                complete(inFlight.poll());
+            }
+            item.data = content.getProperty("jcr:data").getBinary();
+            item.iis = scratchSpace.open(item.data);
+            while (true) {
+                try {
+                    item.pending = imageResizer.submit(item.iis, item.spec);
+                    // the resize closes the stream from now on
+                    item.iis = null;
+                    inFlight.add(item);
+                    return;
+                } catch (ImageResizer.OverloadedException e) {
+                    // the pool is shared; wait for one of ours before trying again
+                    Item oldest = inFlight.poll();
+                    if (oldest == null) {
+                        item.error = "Busy, retry later";
+                        release(item);
+                        return;
+                    }
+                    complete(oldest);
+                }
+            }
+        }
+
+        private void complete(Item item) {
+            try {
+                item.bytes = imageResizer.await(item.pending);
+                renditionCache.put(item.cacheKey, item.bytes);
+                if (item.precomputed) {
+                    thumbnailGenerator.requestRenditions(item.contentPath);
+                }
+            } catch (ImageResizer.OverloadedException e) {
+                item.error = "Busy, retry later";
+            } catch (IOException e) {
+                log.warn("Batch thumbnail of {} failed: {}", item.path, e.toString());
+                item.error = "Rendition failed";
+            } finally {
+                item.pending = null;
+                release(item);
+            }
+        }
+
+        void finish() {
+            while (!inFlight.isEmpty()) {
+                complete(inFlight.poll());
+            }
+        }
+
+        /**
+         * Gives back what is still held if the response failed half way.
+         * Queued renders are cancelled; running ones finish, close their
+         * input and are dropped.
+         */
+        void release() {
+            for (Item item : inFlight) {
+                item.pending.cancel(false);
+                release(item);
+            }
+            inFlight.clear();
+        }
+
+        private void release(Item item) {
+            if (item.iis != null) {
+                try {
+                    item.iis.close();
+                } catch (IOException e) {
+                    log.debug("Error closing scratch stream", e);
+                }
+                item.iis = null;
+            }
+            if (item.data != null) {
+                item.data.dispose();
+                item.data = null;
+            }
+        }
+    }
+
+    /**
+     * Writes <code>multipart/mixed</code> parts straight to the response.
+     */
+    static class MultipartWriter {
+        private static final byte[] CRLF = {'\r', '\n'};
+
+        private final OutputStream out;
+        private final String boundary;
+        private boolean empty = true;
+
+        MultipartWriter(OutputStream out, String boundary) {
+            this.out = out;
+            this.boundary = boundary;
+        }
+
+        void part(String contentType, String location, byte[] body) throws IOException {
+            Writer headers = new OutputStreamWriter(out, UTF_8);
+            headers.write("--" + boundary + "\r\n");
+            headers.write("Content-Type: " + contentType + "\r\n");
+            if (location != null) {
+                headers.write("Content-Location: " + location + "\r\n");
+            }
+            headers.write("Content-Length: " + body.length + "\r\n\r\n");
+            headers.flush();
+            out.write(body);
+            out.write(CRLF);
+            out.flush();
+            empty = false;
+        }
+
+        void close() throws IOException {
+            if (empty) {
+                return;
+            }
+            out.write(("--" + boundary + "--\r\n").getBytes(UTF_8));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.globalbin.servlets;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.jcr.Binary;
+import javax.jcr.RepositoryException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Copies JCR binaries to a servlet response without decoding them. File
+ * backed streams are handed to {@link FileChannel#transferTo}; everything
+ * else goes through a per-thread 64k buffer so concurrent downloads do not
+ * allocate.
+ */
+public final class BinaryStreamer {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private BinaryStreamer() {
+    }
+
+    /**
+     * Streams <code>binary</code> honouring a Range header. Sets status,
+     * Content-Length and Content-Range; content type and validators must
+     * already be set.
+     */
+    public static void write(HttpServletRequest request, HttpServletResponse response, String etag, Binary binary)
+            throws IOException, RepositoryException {
+        long size = binary.getSize();
+        response.setHeader("Accept-Ranges", "bytes");
+        HttpValidators.ByteRange range = HttpValidators.requestedRange(request, etag, size);
+        if (range == HttpValidators.UNSATISFIABLE) {
+            response.setHeader("Content-Range", "bytes */" + size);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        long offset = 0;
+        long length = size;
+        if (range == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+        } else {
+            offset = range.first;
+            length = range.length();
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + range.first + "-" + range.last + "/" + size);
+        }
+        response.setHeader("Content-Length", Long.toString(length));
+
+        InputStream in = binary.getStream();
+        try {
+            OutputStream out = response.getOutputStream();
+            copy(in, offset, length, out);
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies <code>length</code> bytes starting at <code>offset</code>.
+     */
+    static void copy(InputStream in, long offset, long length, OutputStream out) throws IOException {
+        if (in instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) in).getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                long n = channel.transferTo(position, remaining, target);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of binary at " + position);
+                }
+                position += n;
+                remaining -= n;
+            }
+            return;
+        }
+
+        long skipped = 0;
+        while (skipped < offset) {
+            long n = in.skip(offset - skipped);
+            if (n <= 0) {
+                throw new IOException("Unable to skip to " + offset);
+            }
+            skipped += n;
+        }
+        byte[] buffer = BUFFER.get();
+        long remaining = length;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new IOException("Unexpected end of binary, " + remaining + " bytes missing");
+            }
+            out.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.globalbin.servlets;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+/**
+ * Tracks one bulk import into a session: counts created items and saves every
+ * <code>batchSize</code> nodes, or only once at the end when the batch size
+ * is zero so the whole import is a single transaction.
+ */
+class BulkImport {
+
+    private final Session session;
+    private final int batchSize;
+    private final long started = System.currentTimeMillis();
+
+    private int nodes;
+    private int properties;
+    private int saves;
+    private int pending;
+    private int committedNodes;
+
+    BulkImport(Session session, int batchSize) {
+        this.session = session;
+        this.batchSize = Math.max(0, batchSize);
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    void nodeAdded() throws RepositoryException {
+        nodes++;
+        pending++;
+        if (batchSize > 0 && pending >= batchSize) {
+            save();
+        }
+    }
+
+    void propertySet() {
+        properties++;
+    }
+
+    /**
+     * Saves whatever is still pending.
+     */
+    void commit() throws RepositoryException {
+        if (pending > 0 || session.hasPendingChanges()) {
+            save();
+        }
+    }
+
+    /**
+     * Discards the unsaved part of the import. Batches that were already
+     * saved stay in the repository.
+     */
+    void rollback() throws RepositoryException {
+        session.refresh(false);
+        pending = 0;
+    }
+
+    private void save() throws RepositoryException {
+        session.save();
+        saves++;
+        committedNodes += pending;
+        pending = 0;
+    }
+
+    int getNodes() {
+        return nodes;
+    }
+
+    int getSaves() {
+        return saves;
+    }
+
+    int getCommittedNodes() {
+        return committedNodes;
+    }
+
+    void writeSummary(JSONWriter w) throws JSONException {
+        w.key("nodes").value(nodes);
+        w.key("properties").value(properties);
+        w.key("committedNodes").value(committedNodes);
+        w.key("saves").value(saves);
+        w.key("batchSize").value(batchSize);
+        w.key("elapsedMillis").value(System.currentTimeMillis() - started);
+    }
+}
@@ -1,7 +1,6 @@
 package com.globalbin.servlets;
 
 import java.io.IOException;
-import java.io.Writer;
 
 import javax.servlet.ServletException;
 
@@ -11,8 +10,6 @@ import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Hello World Servlet registered by path
@@ -35,28 +32,22 @@ import org.slf4j.LoggerFactory;
 @SuppressWarnings("serial")
 public class ByPathServlet extends SlingSafeMethodsServlet {
     
-    private final Logger log = LoggerFactory.getLogger(ByPathServlet.class);
+    private static final ResponseTemplate PAGE = new ResponseTemplate("text/html",
+            "<!DOCTYPE html PUBLIC \"-//IETF//DTD HTML 2.0//EN\">"
+            + "<html>"
+            + "<head>"
+            + "<title>Hello World Servlet</title>"
+            + "</head>"
+            + "<body>"
+            + "<h1>Hello World!</h1>"
+            + "</body>"
+            + "</html>");
 
     @Override
     protected void doGet(SlingHttpServletRequest request,
             SlingHttpServletResponse response) throws ServletException,
             IOException {
-    	
-        response.setContentType("text/html");
-        Writer w = response.getWriter();
-        w.write("<!DOCTYPE html PUBLIC \"-//IETF//DTD HTML 2.0//EN\">");
-        w.write("<html>");
-        w.write("<head>");
-        w.write("<title>Hello World Servlet</title>");
-        w.write("</head>");
-        w.write("<body>");
-        w.write("<h1>Hello World!</h1>");
-        w.write("</body>");
-        w.write("</html>");
-        
-        log.info("Hello World Servlet");
-        
+        PAGE.write(response);
     }
 
 }
-
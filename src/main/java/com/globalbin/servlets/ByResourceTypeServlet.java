@@ -1,7 +1,6 @@
 package com.globalbin.servlets;
 
 import java.io.IOException;
-import java.io.Writer;
 
 import javax.servlet.ServletException;
 
@@ -12,8 +11,6 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Hello World Servlet registered by resource type
@@ -38,32 +35,24 @@ import org.slf4j.LoggerFactory;
 @SuppressWarnings("serial")
 public class ByResourceTypeServlet extends SlingSafeMethodsServlet {
     
-    private final Logger log = LoggerFactory.getLogger(ByResourceTypeServlet.class);
+    // per path variants, bounded by size since paths come from the request
+    private static final ResponseTemplate PAGE = new ResponseTemplate("text/html",
+            "<!DOCTYPE html PUBLIC \"-//IETF//DTD HTML 2.0//EN\">"
+            + "<html>"
+            + "<head>"
+            + "<title>Hello World Servlet</title>"
+            + "</head>"
+            + "<body>"
+            + "<h1>Hello " + ResponseTemplate.PLACEHOLDER + "</h1>"
+            + "</body>"
+            + "</html>", 1024 * 1024);
 
     @Override
     protected void doGet(SlingHttpServletRequest request,
             SlingHttpServletResponse response) throws ServletException,
             IOException {
         Resource resource = request.getResource();
-
-        response.setContentType("text/html");
-        
-        Writer w = response.getWriter();
-        w.write("<!DOCTYPE html PUBLIC \"-//IETF//DTD HTML 2.0//EN\">");
-        w.write("<html>");
-        w.write("<head>");
-        w.write("<title>Hello World Servlet</title>");
-        w.write("</head>");
-        w.write("<body>");
-        w.write("<h1>Hello ");
-        w.write(resource.getPath());
-        w.write("</h1>");
-        w.write("</body>");
-        w.write("</html>");
-        
-        log.info("Hello World Servlet");
-        
+        PAGE.write(response, resource.getPath());
     }
 
 }
-
@@ -0,0 +1,547 @@
+package com.globalbin.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.sling.SlingFilter;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gzip response compression. Responses whose content type is one of
+ * <code>compression.mimeTypes</code> are compressed at
+ * <code>compression.level</code> for clients that accept gzip, as long as
+ * they are at least <code>compression.minBytes</code> long. Images and
+ * anything carrying an ETag, a Content-Range or its own Content-Encoding
+ * pass through untouched.
+ *
+ * Bodies up to <code>compression.maxBufferBytes</code> are buffered and
+ * compressed in one go; their compressed form is kept by content hash in a
+ * cache of <code>compression.cacheBytes</code>, so a hot page is compressed
+ * once rather than on every request. Larger bodies, and bodies flushed
+ * early, are compressed as they stream.
+ *
+ * The filter runs inside {@link SimpleFilter}, so the request metrics count
+ * the bytes that went out, and outside {@link FragmentCacheFilter}, whose
+ * cached output then maps to the same compressed variant.
+ */
+@SlingFilter(order = 0, description = "GlobalBin Compression Filter", metatype = true, generateService = false)
+@Service({ Filter.class, StatsProvider.class })
+@Property(name = "service.vendor", value = "The Global Bin")
+public class CompressionFilter implements Filter, StatsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(CompressionFilter.class);
+
+    @Property(boolValue = true)
+    private static final String ENABLED_PROPERTY = "compression.enabled";
+
+    @Property(intValue = 6)
+    private static final String LEVEL_PROPERTY = "compression.level";
+
+    @Property(intValue = 1024)
+    private static final String MIN_BYTES_PROPERTY = "compression.minBytes";
+
+    @Property(intValue = 256 * 1024)
+    private static final String MAX_BUFFER_BYTES_PROPERTY = "compression.maxBufferBytes";
+
+    @Property(longValue = 8L * 1024 * 1024)
+    private static final String CACHE_BYTES_PROPERTY = "compression.cacheBytes";
+
+    @Property(value = { "text/html", "text/plain", "text/css", "text/xml", "text/javascript", "application/json",
+            "application/javascript", "application/xml", "image/svg+xml" }, cardinality = Integer.MAX_VALUE)
+    private static final String MIME_TYPES_PROPERTY = "compression.mimeTypes";
+
+    static final String[] DEFAULT_MIME_TYPES = { "text/html", "text/plain", "text/css", "text/xml", "text/javascript",
+            "application/json", "application/javascript", "application/xml", "image/svg+xml" };
+
+    private boolean enabled = true;
+    private int level = 6;
+    private int minBytes = 1024;
+    private int maxBufferBytes = 256 * 1024;
+    private Set<String> mimeTypes = new HashSet<String>(Arrays.asList(DEFAULT_MIME_TYPES));
+    private LruCache<String, byte[]> variants = newCache(8L * 1024 * 1024);
+
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong streamed = new AtomicLong();
+    private final AtomicLong variantHits = new AtomicLong();
+    private final AtomicLong belowThreshold = new AtomicLong();
+    private final AtomicLong passedThrough = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    protected void activate(ComponentContext context) {
+        Dictionary<?, ?> props = context.getProperties();
+        configure(ConfigUtil.toBoolean(props, ENABLED_PROPERTY, true), ConfigUtil.toInt(props, LEVEL_PROPERTY, 6),
+                ConfigUtil.toInt(props, MIN_BYTES_PROPERTY, 1024),
+                ConfigUtil.toInt(props, MAX_BUFFER_BYTES_PROPERTY, 256 * 1024),
+                ConfigUtil.toLong(props, CACHE_BYTES_PROPERTY, 8L * 1024 * 1024),
+                ConfigUtil.toStringArray(props, MIME_TYPES_PROPERTY, DEFAULT_MIME_TYPES));
+        log.info("Activated: CompressionFilter, enabled={}, level={}", enabled, level);
+    }
+
+    void configure(boolean enabled, int level, int minBytes, int maxBufferBytes, long cacheBytes, String[] mimeTypes) {
+        this.enabled = enabled;
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.minBytes = Math.max(0, minBytes);
+        this.maxBufferBytes = Math.max(this.minBytes, maxBufferBytes);
+        this.mimeTypes = new HashSet<String>(Arrays.asList(mimeTypes));
+        this.variants = newCache(cacheBytes);
+    }
+
+    private static LruCache<String, byte[]> newCache(long maxBytes) {
+        return new LruCache<String, byte[]>(maxBytes) {
+            @Override
+            protected long weigh(byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException {
+        if (!enabled || !(request instanceof HttpServletRequest) || !(response instanceof SlingHttpServletResponse)
+                || ((HttpServletRequest) request).getHeader("Range") != null) {
+            chain.doFilter(request, response);
+            return;
+        }
+        CompressingResponse wrapper = new CompressingResponse((SlingHttpServletResponse) response,
+                acceptsGzip(((HttpServletRequest) request).getHeader("Accept-Encoding")));
+        chain.doFilter(request, wrapper);
+        wrapper.finish();
+    }
+
+    public void destroy() {
+    }
+
+    /**
+     * True if the Accept-Encoding header allows gzip, explicitly or through
+     * <code>*</code>, with a non-zero quality.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            if (!coding.equals("gzip") && !coding.equals("x-gzip") && !coding.equals("*")) {
+                continue;
+            }
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (q > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String mimeType = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType).trim().toLowerCase();
+        return mimeTypes.contains(mimeType);
+    }
+
+    /**
+     * The gzip form of <code>body</code>, taken from the variant cache when
+     * the same body was compressed before.
+     */
+    byte[] compress(byte[] body) throws IOException {
+        String key = Digests.hex(Digests.newDigest("SHA-1").digest(body)) + ":" + level;
+        byte[] gzipped = variants.get(key);
+        if (gzipped != null) {
+            variantHits.incrementAndGet();
+            return gzipped;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        GZIPOutputStream gzip = new LevelGZIPOutputStream(out, level, false);
+        gzip.write(body);
+        gzip.close();
+        gzipped = out.toByteArray();
+        variants.put(key, gzipped);
+        return gzipped;
+    }
+
+    public String getStatsName() {
+        return "compression";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("enabled", enabled);
+        stats.put("level", level);
+        stats.put("compressed", compressed.get());
+        stats.put("streamed", streamed.get());
+        stats.put("variantHits", variantHits.get());
+        stats.put("belowThreshold", belowThreshold.get());
+        stats.put("passedThrough", passedThrough.get());
+        stats.put("bytesIn", bytesIn.get());
+        stats.put("bytesOut", bytesOut.get());
+        stats.put("variantEntries", variants.size());
+        stats.put("variantBytes", variants.weight());
+        return stats;
+    }
+
+    /**
+     * GZIPOutputStream with a configurable deflate level.
+     */
+    private static class LevelGZIPOutputStream extends GZIPOutputStream {
+        LevelGZIPOutputStream(OutputStream out, int level, boolean syncFlush) throws IOException {
+            super(out, 8192, syncFlush);
+            def.setLevel(level);
+        }
+    }
+
+    /**
+     * Holds the body back until it is clear whether it gets compressed. The
+     * decision is made on the first write: types that are not compressible,
+     * and responses that are not a plain 200 or already carry validators or
+     * an encoding, go straight through. Compressible bodies are buffered up
+     * to the buffer size, then either compressed whole when the request ends
+     * or, if they grow past it or get flushed, compressed while streaming.
+     */
+    private class CompressingResponse extends SlingHttpServletResponseWrapper {
+        private static final int UNDECIDED = 0;
+        private static final int PASS = 1;
+        private static final int BUFFER = 2;
+        private static final int STREAM = 3;
+
+        private final boolean gzipAccepted;
+        private int mode = UNDECIDED;
+        private int status = SC_OK;
+        private boolean hasValidatorOrEncoding;
+        private boolean finishing;
+        private long declaredLength = -1;
+        private ByteArrayOutputStream buffer;
+        private GZIPOutputStream gzip;
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+
+        CompressingResponse(SlingHttpServletResponse response, boolean gzipAccepted) {
+            super(response);
+            this.gzipAccepted = gzipAccepted;
+        }
+
+        private void decide() {
+            if (mode != UNDECIDED) {
+                return;
+            }
+            if (status != SC_OK || hasValidatorOrEncoding || !isCompressible(getContentType())) {
+                pass();
+                return;
+            }
+            addHeader("Vary", "Accept-Encoding");
+            if (!gzipAccepted || (declaredLength >= 0 && declaredLength < minBytes)) {
+                pass();
+                return;
+            }
+            mode = BUFFER;
+            buffer = new ByteArrayOutputStream(Math.min(maxBufferBytes, 8192));
+        }
+
+        private void pass() {
+            if (mode == PASS || mode == STREAM) {
+                return;
+            }
+            // a buffered body is discarded along with the container's buffer
+            buffer = null;
+            mode = PASS;
+            passedThrough.incrementAndGet();
+            if (declaredLength >= 0) {
+                super.setHeader("Content-Length", Long.toString(declaredLength));
+            }
+        }
+
+        private void startStreaming() throws IOException {
+            mode = STREAM;
+            streamed.incrementAndGet();
+            super.setHeader("Content-Encoding", "gzip");
+            gzip = new LevelGZIPOutputStream(new CountingStream(super.getOutputStream()), level, true);
+            bytesIn.addAndGet(buffer.size());
+            buffer.writeTo(gzip);
+            buffer = null;
+        }
+
+        void write(byte[] b, int off, int len) throws IOException {
+            decide();
+            if (mode == PASS) {
+                super.getOutputStream().write(b, off, len);
+            } else if (mode == BUFFER) {
+                buffer.write(b, off, len);
+                if (buffer.size() > maxBufferBytes) {
+                    startStreaming();
+                }
+            } else {
+                bytesIn.addAndGet(len);
+                gzip.write(b, off, len);
+            }
+        }
+
+        void flushBody() throws IOException {
+            if (mode == BUFFER && buffer.size() > 0 && !finishing) {
+                // the servlet wants its output seen now, so stop holding it back
+                startStreaming();
+            }
+            if (mode == STREAM) {
+                gzip.flush();
+            } else if (mode == PASS) {
+                super.getOutputStream().flush();
+            }
+        }
+
+        void finish() throws IOException {
+            finishing = true;
+            if (writer != null) {
+                writer.flush();
+            }
+            if (mode == BUFFER) {
+                byte[] body = buffer.toByteArray();
+                ServletOutputStream out = super.getOutputStream();
+                if (body.length < minBytes) {
+                    belowThreshold.incrementAndGet();
+                    super.setContentLength(body.length);
+                    out.write(body);
+                } else {
+                    byte[] gzipped = compress(body);
+                    compressed.incrementAndGet();
+                    bytesIn.addAndGet(body.length);
+                    bytesOut.addAndGet(gzipped.length);
+                    super.setHeader("Content-Encoding", "gzip");
+                    super.setContentLength(gzipped.length);
+                    out.write(gzipped);
+                }
+            } else if (mode == STREAM) {
+                gzip.finish();
+            } else if (mode == UNDECIDED && declaredLength >= 0) {
+                super.setHeader("Content-Length", Long.toString(declaredLength));
+            }
+        }
+
+        @Override
+        public void setContentLength(int len) {
+            declareLength(len);
+        }
+
+        /**
+         * Holds the length back until the body is known to go through
+         * unchanged. A long, because binaries over 2 GB declare theirs as a
+         * header.
+         */
+        private void declareLength(long len) {
+            if (mode == PASS) {
+                super.setHeader("Content-Length", Long.toString(len));
+            } else {
+                declaredLength = len;
+            }
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                declareLength(Long.parseLong(value.trim()));
+                return;
+            }
+            track(name);
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                declareLength(Long.parseLong(value.trim()));
+                return;
+            }
+            track(name);
+            super.addHeader(name, value);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setContentLength(value);
+                return;
+            }
+            super.setIntHeader(name, value);
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                setContentLength(value);
+                return;
+            }
+            super.addIntHeader(name, value);
+        }
+
+        private void track(String name) {
+            if ("ETag".equalsIgnoreCase(name) || "Content-Encoding".equalsIgnoreCase(name)
+                    || "Content-Range".equalsIgnoreCase(name)) {
+                hasValidatorOrEncoding = true;
+            }
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public void setStatus(int sc, String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            status = sc;
+            pass();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            pass();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            status = SC_MOVED_TEMPORARILY;
+            pass();
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            flushBody();
+            super.flushBuffer();
+        }
+
+        /**
+         * The container drops every header, <code>Content-Encoding</code>
+         * and <code>Vary</code> included, so the decision starts over.
+         */
+        @Override
+        public void reset() {
+            super.reset();
+            mode = UNDECIDED;
+            status = SC_OK;
+            hasValidatorOrEncoding = false;
+            declaredLength = -1;
+            buffer = null;
+            gzip = null;
+            writer = null;
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (mode == BUFFER) {
+                buffer.reset();
+            }
+            super.resetBuffer();
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (stream == null) {
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        CompressingResponse.this.write(new byte[] { (byte) b }, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        CompressingResponse.this.write(b, off, len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        flushBody();
+                    }
+                };
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        /**
+         * Counts the compressed bytes of a streamed body.
+         */
+        private class CountingStream extends OutputStream {
+            private final OutputStream delegate;
+
+            CountingStream(OutputStream delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                delegate.write(b);
+                bytesOut.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                delegate.write(b, off, len);
+                bytesOut.addAndGet(len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                delegate.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.globalbin.servlets;
+
+import java.util.Collection;
+import java.util.Dictionary;
+
+/**
+ * Conversions for OSGi component properties, which arrive either typed from
+ * the SCR descriptor or as strings from the configuration admin.
+ */
+public final class ConfigUtil {
+
+    private ConfigUtil() {
+    }
+
+    public static String toString(Dictionary<?, ?> props, String name, String defaultValue) {
+        Object value = props == null ? null : props.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        String s = value.toString().trim();
+        return s.length() == 0 ? defaultValue : s;
+    }
+
+    public static long toLong(Dictionary<?, ?> props, String name, long defaultValue) {
+        Object value = props == null ? null : props.get(name);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value != null) {
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                // fall through to the default
+            }
+        }
+        return defaultValue;
+    }
+
+    public static int toInt(Dictionary<?, ?> props, String name, int defaultValue) {
+        return (int) toLong(props, name, defaultValue);
+    }
+
+    public static boolean toBoolean(Dictionary<?, ?> props, String name, boolean defaultValue) {
+        Object value = props == null ? null : props.get(name);
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return value == null ? defaultValue : Boolean.parseBoolean(value.toString().trim());
+    }
+
+    public static String[] toStringArray(Dictionary<?, ?> props, String name, String[] defaultValue) {
+        Object value = props == null ? null : props.get(name);
+        if (value instanceof String[]) {
+            return (String[]) value;
+        }
+        if (value instanceof Collection) {
+            Collection<?> c = (Collection<?>) value;
+            String[] result = new String[c.size()];
+            int i = 0;
+            for (Object o : c) {
+                result[i++] = String.valueOf(o);
+            }
+            return result;
+        }
+        if (value != null) {
+            return value.toString().split(",");
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,52 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hex digests used for cache file names, ETags, job node names and content
+ * hashes.
+ */
+public final class Digests {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Digests() {
+    }
+
+    public static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String sha1Hex(String value) {
+        return hex(newDigest("SHA-1").digest(value.getBytes(UTF_8)));
+    }
+
+    /**
+     * SHA-1 of everything left in the stream. The stream is not closed.
+     */
+    public static String sha1Hex(InputStream in) throws IOException {
+        MessageDigest digest = newDigest("SHA-1");
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, n);
+        }
+        return hex(digest.digest());
+    }
+
+    public static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,566 @@
+package com.globalbin.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.sling.SlingFilter;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the rendered output of script-rendered pages such as the
+ * <code>gb:node</code> <code>html.esp</code> and <code>live.html</code>
+ * views. Only plain GET requests without a query string for one of
+ * <code>fragmentCache.resourceTypes</code> are cached, and only when they
+ * complete with 200. Entries are keyed by resource path, selectors,
+ * extension and the resource's modification time, bounded in total by
+ * <code>fragmentCache.maxBytes</code>, and dropped as soon as observation
+ * reports a change to the node or one of its ancestors being removed or
+ * moved.
+ *
+ * The filter runs inside {@link SimpleFilter} and {@link CompressionFilter},
+ * so cached responses still show up in the request metrics and get
+ * compressed.
+ */
+@SlingFilter(order = -1, description = "GlobalBin Fragment Cache", metatype = true, generateService = false)
+@Service({ Filter.class, StatsProvider.class })
+@Property(name = "service.vendor", value = "The Global Bin")
+public class FragmentCacheFilter implements Filter, EventListener, StatsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(FragmentCacheFilter.class);
+
+    @Property(boolValue = true)
+    private static final String ENABLED_PROPERTY = "fragmentCache.enabled";
+
+    @Property(value = { "gb:node", "gb/node" }, cardinality = Integer.MAX_VALUE)
+    private static final String RESOURCE_TYPES_PROPERTY = "fragmentCache.resourceTypes";
+
+    @Property(value = "/content")
+    private static final String CONTENT_PATH_PROPERTY = "fragmentCache.path";
+
+    @Property(longValue = 16L * 1024 * 1024)
+    private static final String MAX_BYTES_PROPERTY = "fragmentCache.maxBytes";
+
+    @Property(intValue = 256 * 1024)
+    private static final String MAX_ENTRY_BYTES_PROPERTY = "fragmentCache.maxEntryBytes";
+
+    static final String[] DEFAULT_RESOURCE_TYPES = { "gb:node", "gb/node" };
+
+    @Reference
+    private SlingRepository repository;
+
+    private Session session;
+    private ObservationManager observationManager;
+
+    private boolean enabled = true;
+    private Set<String> resourceTypes = new HashSet<String>(Arrays.asList(DEFAULT_RESOURCE_TYPES));
+    private int maxEntryBytes = 256 * 1024;
+    // package visible for the unit test
+    LruCache<String, Fragment> cache = newCache(16L * 1024 * 1024);
+
+    // bumped by every invalidation, so a render racing with a change is not stored
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * A rendered response, kept either as characters or as bytes depending
+     * on how the script wrote it, with the headers and locale the script set
+     * so a hit looks exactly like the original response.
+     */
+    static final class Fragment {
+        final String contentType;
+        final String characterEncoding;
+        final Locale locale;
+        final List<Header> headers;
+        final String text;
+        final byte[] bytes;
+
+        Fragment(String contentType, String characterEncoding, String text, byte[] bytes) {
+            this(contentType, characterEncoding, null, Collections.<Header>emptyList(), text, bytes);
+        }
+
+        Fragment(String contentType, String characterEncoding, Locale locale, List<Header> headers, String text,
+                byte[] bytes) {
+            this.contentType = contentType;
+            this.characterEncoding = characterEncoding;
+            this.locale = locale;
+            this.headers = headers;
+            this.text = text;
+            this.bytes = bytes;
+        }
+
+        long weight() {
+            long weight = text != null ? 2L * text.length() : bytes.length;
+            for (Header header : headers) {
+                weight += 2L * (header.name.length() + String.valueOf(header.value).length());
+            }
+            return weight;
+        }
+    }
+
+    /**
+     * One <code>setHeader</code>, <code>addHeader</code> or their date and
+     * int variants, as called by the script.
+     */
+    static final class Header {
+        final boolean add;
+        final String name;
+        // String, Long for date headers or Integer for int headers
+        final Object value;
+
+        Header(boolean add, String name, Object value) {
+            this.add = add;
+            this.name = name;
+            this.value = value;
+        }
+
+        void apply(HttpServletResponse response) {
+            if (value instanceof Long) {
+                if (add) {
+                    response.addDateHeader(name, (Long) value);
+                } else {
+                    response.setDateHeader(name, (Long) value);
+                }
+            } else if (value instanceof Integer) {
+                if (add) {
+                    response.addIntHeader(name, (Integer) value);
+                } else {
+                    response.setIntHeader(name, (Integer) value);
+                }
+            } else if (add) {
+                response.addHeader(name, (String) value);
+            } else {
+                response.setHeader(name, (String) value);
+            }
+        }
+    }
+
+    protected void activate(ComponentContext context) throws RepositoryException {
+        Dictionary<?, ?> props = context.getProperties();
+        configure(ConfigUtil.toBoolean(props, ENABLED_PROPERTY, true),
+                ConfigUtil.toStringArray(props, RESOURCE_TYPES_PROPERTY, DEFAULT_RESOURCE_TYPES),
+                ConfigUtil.toLong(props, MAX_BYTES_PROPERTY, 16L * 1024 * 1024),
+                ConfigUtil.toInt(props, MAX_ENTRY_BYTES_PROPERTY, 256 * 1024));
+        if (!enabled) {
+            log.info("Activated: FragmentCacheFilter, disabled");
+            return;
+        }
+        String contentPath = ConfigUtil.toString(props, CONTENT_PATH_PROPERTY, "/content");
+        session = repository.loginService("datawrite", repository.getDefaultWorkspace());
+        if ("true".equals(repository.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED))) {
+            observationManager = session.getWorkspace().getObservationManager();
+            int types = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED | Event.PROPERTY_ADDED
+                    | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+            observationManager.addEventListener(this, types, contentPath, true, null, null, false);
+        } else {
+            // gb:node has no jcr:lastModified, so the key alone cannot tell a change
+            log.warn("Observation not supported, fragment caching disabled");
+            enabled = false;
+        }
+        log.info("Activated: FragmentCacheFilter for {} under {}", resourceTypes, contentPath);
+    }
+
+    protected void deactivate(ComponentContext context) throws RepositoryException {
+        if (observationManager != null) {
+            observationManager.removeEventListener(this);
+            observationManager = null;
+        }
+        if (session != null) {
+            session.logout();
+            session = null;
+        }
+        cache.clear();
+    }
+
+    void configure(boolean enabled, String[] resourceTypes, long maxBytes, int maxEntryBytes) {
+        this.enabled = enabled;
+        this.resourceTypes = new HashSet<String>(Arrays.asList(resourceTypes));
+        this.maxEntryBytes = maxEntryBytes;
+        this.cache = newCache(maxBytes);
+    }
+
+    private static LruCache<String, Fragment> newCache(long maxBytes) {
+        return new LruCache<String, Fragment>(maxBytes) {
+            @Override
+            protected long weigh(Fragment value) {
+                return value.weight();
+            }
+        };
+    }
+
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException {
+        if (!enabled || !(request instanceof SlingHttpServletRequest)
+                || !(response instanceof SlingHttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
+        SlingHttpServletResponse slingResponse = (SlingHttpServletResponse) response;
+        Resource resource = slingRequest.getResource();
+        if (!"GET".equals(slingRequest.getMethod()) || slingRequest.getQueryString() != null || resource == null
+                || !resourceTypes.contains(resource.getResourceType())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String key = key(resource.getPath(), slingRequest.getRequestPathInfo(),
+                resource.getResourceMetadata().getModificationTime());
+        Fragment fragment = cache.get(key);
+        if (fragment != null) {
+            hits.incrementAndGet();
+            write(fragment, slingResponse);
+            return;
+        }
+        misses.incrementAndGet();
+
+        long startGeneration = generation.get();
+        CapturingResponse capture = new CapturingResponse(slingResponse, maxEntryBytes);
+        chain.doFilter(request, capture);
+
+        fragment = capture.toFragment();
+        if (fragment == null) {
+            if (capture.overflow) {
+                tooLarge.incrementAndGet();
+            } else {
+                bypassed.incrementAndGet();
+            }
+        } else if (generation.get() == startGeneration) {
+            cache.put(key, fragment);
+            stores.incrementAndGet();
+        }
+    }
+
+    public void destroy() {
+    }
+
+    static String key(String path, RequestPathInfo info, long modified) {
+        StringBuilder sb = new StringBuilder(path.length() + 32);
+        sb.append(path);
+        sb.append('|').append(info.getSelectorString() != null ? info.getSelectorString() : "");
+        sb.append('|').append(info.getExtension() != null ? info.getExtension() : "");
+        sb.append('|').append(info.getSuffix() != null ? info.getSuffix() : "");
+        sb.append('|').append(modified);
+        return sb.toString();
+    }
+
+    static void write(Fragment fragment, HttpServletResponse response) throws IOException {
+        if (fragment.locale != null) {
+            response.setLocale(fragment.locale);
+        }
+        for (Header header : fragment.headers) {
+            header.apply(response);
+        }
+        if (fragment.contentType != null) {
+            response.setContentType(fragment.contentType);
+        }
+        if (fragment.characterEncoding != null) {
+            response.setCharacterEncoding(fragment.characterEncoding);
+        }
+        if (fragment.text != null) {
+            response.getWriter().write(fragment.text);
+        } else {
+            response.setContentLength(fragment.bytes.length);
+            response.getOutputStream().write(fragment.bytes);
+        }
+    }
+
+    /**
+     * Drops the entries rendered from the node at <code>path</code>, and with
+     * <code>deep</code> those of its descendants too.
+     */
+    void invalidate(String path, boolean deep) {
+        generation.incrementAndGet();
+        String self = path + "|";
+        String below = path + "/";
+        for (String key : cache.keys()) {
+            if (key.startsWith(self) || (deep && key.startsWith(below))) {
+                cache.remove(key);
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public void onEvent(EventIterator it) {
+        while (it.hasNext()) {
+            Event event = it.nextEvent();
+            try {
+                String path = event.getPath();
+                switch (event.getType()) {
+                case Event.PROPERTY_ADDED:
+                case Event.PROPERTY_CHANGED:
+                case Event.PROPERTY_REMOVED:
+                    invalidate(path.substring(0, Math.max(1, path.lastIndexOf('/'))), false);
+                    break;
+                case Event.NODE_ADDED:
+                    // a new child may change how the parent renders
+                    invalidate(path.substring(0, Math.max(1, path.lastIndexOf('/'))), false);
+                    invalidate(path, true);
+                    break;
+                default:
+                    invalidate(path, true);
+                }
+            } catch (RepositoryException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    public String getStatsName() {
+        return "fragmentCache";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("enabled", enabled);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("stores", stores.get());
+        stats.put("bypassed", bypassed.get());
+        stats.put("tooLarge", tooLarge.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("evictions", cache.getEvictions());
+        stats.put("entries", cache.size());
+        stats.put("bytes", cache.weight());
+        return stats;
+    }
+
+    /**
+     * Passes the response through while keeping a copy of up to
+     * <code>limit</code> bytes of it, and of the headers set on it. Anything
+     * but a plain 200 written through one of writer or stream is not
+     * cacheable, and neither is a response that sets a cookie.
+     */
+    static class CapturingResponse extends SlingHttpServletResponseWrapper {
+        private final int limit;
+        int status = SC_OK;
+        boolean overflow;
+        boolean cookies;
+        private final List<Header> headers = new ArrayList<Header>();
+        private Locale locale;
+        private CharArrayWriter chars;
+        private ByteArrayOutputStream bytes;
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+
+        CapturingResponse(SlingHttpServletResponse response, int limit) {
+            super(response);
+            this.limit = limit;
+        }
+
+        Fragment toFragment() {
+            if (status != SC_OK || overflow || cookies || (chars == null) == (bytes == null)) {
+                return null;
+            }
+            return new Fragment(getContentType(), getCharacterEncoding(), locale, new ArrayList<Header>(headers),
+                    chars != null ? chars.toString() : null, bytes != null ? bytes.toByteArray() : null);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            headers.add(new Header(false, name, value));
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            headers.add(new Header(true, name, value));
+            super.addHeader(name, value);
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            headers.add(new Header(false, name, date));
+            super.setDateHeader(name, date);
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            headers.add(new Header(true, name, date));
+            super.addDateHeader(name, date);
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            headers.add(new Header(false, name, value));
+            super.setIntHeader(name, value);
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            headers.add(new Header(true, name, value));
+            super.addIntHeader(name, value);
+        }
+
+        @Override
+        public void setLocale(Locale loc) {
+            locale = loc;
+            super.setLocale(loc);
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+            cookies = true;
+            super.addCookie(cookie);
+        }
+
+        private int captured() {
+            return chars != null ? 2 * chars.size() : bytes.size();
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public void setStatus(int sc, String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            status = sc;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            status = SC_MOVED_TEMPORARILY;
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (stream == null) {
+                final ServletOutputStream delegate = super.getOutputStream();
+                bytes = new ByteArrayOutputStream();
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        delegate.write(b);
+                        if (!overflow) {
+                            bytes.write(b);
+                            overflow = captured() > limit;
+                        }
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        delegate.write(b, off, len);
+                        if (!overflow) {
+                            bytes.write(b, off, len);
+                            overflow = captured() > limit;
+                        }
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        delegate.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        delegate.close();
+                    }
+                };
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                chars = new CharArrayWriter();
+                writer = new PrintWriter(new FilterWriter(super.getWriter()) {
+                    @Override
+                    public void write(int c) throws IOException {
+                        out.write(c);
+                        if (!overflow) {
+                            chars.write(c);
+                            overflow = captured() > limit;
+                        }
+                    }
+
+                    @Override
+                    public void write(char[] cbuf, int off, int len) throws IOException {
+                        out.write(cbuf, off, len);
+                        if (!overflow) {
+                            chars.write(cbuf, off, len);
+                            overflow = captured() > limit;
+                        }
+                    }
+
+                    @Override
+                    public void write(String str, int off, int len) throws IOException {
+                        out.write(str, off, len);
+                        if (!overflow) {
+                            chars.write(str, off, len);
+                            overflow = captured() > limit;
+                        }
+                    }
+                });
+            }
+            return writer;
+        }
+    }
+}
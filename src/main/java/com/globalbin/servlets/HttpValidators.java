@@ -0,0 +1,181 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * HTTP validator and byte range handling for binary responses: ETag and
+ * Last-Modified generation, If-None-Match / If-Modified-Since evaluation and
+ * single range <code>Range</code> requests.
+ */
+public final class HttpValidators {
+
+    private HttpValidators() {
+    }
+
+    /**
+     * A satisfiable byte range, both ends inclusive.
+     */
+    public static final class ByteRange {
+        public final long first;
+        public final long last;
+
+        ByteRange(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        public long length() {
+            return last - first + 1;
+        }
+    }
+
+    /**
+     * Returned by {@link #parseRange(String, long)} when the header is
+     * syntactically valid but no byte of the entity is inside it.
+     */
+    public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -2);
+
+    /**
+     * Strong ETag over the binary identity (node identifier, size and
+     * modification time) and the rendition variant.
+     */
+    public static String etag(String identity, long lastModified, long size, String variant) {
+        String seed = identity + "|" + lastModified + "|" + size + "|" + variant;
+        return '"' + Digests.sha1Hex(seed).substring(0, 24) + '"';
+    }
+
+    public static void setValidators(HttpServletResponse response, String etag, long lastModified, int maxAge) {
+        response.setHeader("ETag", etag);
+        if (lastModified > 0) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+        response.setHeader("Cache-Control", "public, max-age=" + maxAge);
+    }
+
+    /**
+     * True if the client's cached copy is still valid. If-None-Match takes
+     * precedence over If-Modified-Since as required by RFC 7232.
+     */
+    public static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        if (lastModified > 0) {
+            try {
+                long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+                return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Weak comparison of an If-None-Match style header value against an ETag.
+     */
+    static boolean matches(String header, String etag) {
+        String opaque = stripWeak(etag);
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || stripWeak(candidate).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * Returns the requested range, null when the whole entity should be
+     * served (no header, multiple ranges, stale If-Range or malformed
+     * value), or {@link #UNSATISFIABLE}.
+     */
+    public static ByteRange requestedRange(HttpServletRequest request, String etag, long length) {
+        String range = request.getHeader("Range");
+        if (range == null) {
+            return null;
+        }
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(etag)) {
+            return null;
+        }
+        return parseRange(range, length);
+    }
+
+    static ByteRange parseRange(String header, long length) {
+        header = header.trim();
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+            long first;
+            long last;
+            if (start.length() == 0) {
+                if (end.length() == 0) {
+                    return null;
+                }
+                long suffix = Long.parseLong(end);
+                if (suffix == 0) {
+                    return UNSATISFIABLE;
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(start);
+                if (end.length() > 0 && Long.parseLong(end) < first) {
+                    return null;
+                }
+                last = end.length() == 0 ? length - 1 : Math.min(Long.parseLong(end), length - 1);
+            }
+            if (first >= length || length == 0) {
+                return UNSATISFIABLE;
+            }
+            return new ByteRange(first, last);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes <code>body</code> honouring a Range header. Sets status,
+     * Content-Length and Content-Range; validators must already be set.
+     */
+    public static void writeBytes(HttpServletRequest request, HttpServletResponse response, String etag,
+            byte[] body) throws IOException {
+        response.setHeader("Accept-Ranges", "bytes");
+        ByteRange range = requestedRange(request, etag, body.length);
+        if (range == UNSATISFIABLE) {
+            response.setHeader("Content-Range", "bytes */" + body.length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        OutputStream out = response.getOutputStream();
+        if (range == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentLength(body.length);
+            out.write(body);
+        } else {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + range.first + "-" + range.last + "/" + body.length);
+            response.setContentLength((int) range.length());
+            out.write(body, (int) range.first, (int) range.length());
+        }
+        out.flush();
+    }
+}
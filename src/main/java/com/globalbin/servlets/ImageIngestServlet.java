@@ -0,0 +1,377 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bulk image upload. POST a <code>multipart/form-data</code> body or a tar
+ * archive (<code>application/x-tar</code>) to
+ * <code>/bin/api/images/ingest?path=/content/images/...</code> and every
+ * image in it becomes an <code>nt:file</code> below <code>path</code>;
+ * directories inside a tar are kept.
+ *
+ * Each file is streamed from the request straight into
+ * <code>jcr:data</code>, and <code>jcr:mimeType</code> comes from the
+ * file's magic bytes; files that are not a known image format are skipped.
+ * The {@link ImageProbe} reads each header before the file is written, so
+ * unreadable or oversized images are rejected without being stored, and
+ * the dimensions of the others are stored with them.
+ * The session saves every <code>batchSize</code> files, and after each save
+ * the saved files are handed to {@link ThumbnailGenerator#enqueue} in one
+ * call. The ingest session marks its changes so the generator does not also
+ * react to them one event at a time.
+ *
+ * Parameters are read from the query string only: asking the request for
+ * parameters would make Sling parse, and buffer, the whole multipart body
+ * before the servlet sees it.
+ */
+@SlingServlet(paths = "/bin/api/images/ingest", methods = "POST")
+@Properties({
+    @Property(name = "service.description", value = "Image Ingest Servlet"),
+    @Property(name = "service.vendor", value = "The Global Bin")
+})
+public class ImageIngestServlet extends SlingAllMethodsServlet {
+    private static final long serialVersionUID = 2875021493377019551L;
+
+    private static final Logger log = LoggerFactory.getLogger(ImageIngestServlet.class);
+
+    static final String CONTENT_ROOT = "/content/images";
+
+    private static final int DEFAULT_BATCH_SIZE = 50;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Reference
+    private WriteSessionProvider sessions;
+
+    @Reference
+    private ThumbnailGenerator thumbnailGenerator;
+
+    @Reference
+    private ImageProbe imageProbe;
+
+    @Override
+    protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        String query = request.getQueryString();
+        String path = queryParameter(query, "path");
+        if (path == null || !(path.equals(CONTENT_ROOT) || path.startsWith(CONTENT_ROOT + "/"))
+                || path.contains("/../") || path.endsWith("/..")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "path must be below " + CONTENT_ROOT);
+            return;
+        }
+        int batchSize = DEFAULT_BATCH_SIZE;
+        try {
+            String value = queryParameter(query, "batchSize");
+            if (value != null) {
+                batchSize = Math.max(1, Integer.parseInt(value.trim()));
+            }
+        } catch (NumberFormatException e) {
+            // keep the default
+        }
+
+        String contentType = request.getContentType();
+        String boundary = MultipartStream.boundary(contentType);
+        boolean tar = contentType != null
+                && (contentType.startsWith("application/x-tar") || contentType.startsWith("application/tar"));
+        if (boundary == null && !tar) {
+            response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                    "expecting multipart/form-data or application/x-tar");
+            return;
+        }
+
+        Session session;
+        try {
+            session = sessions.acquire();
+        } catch (WriteSessionProvider.SaturatedException e) {
+            response.setHeader("Retry-After", "1");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        } catch (RepositoryException e) {
+            log.error("Ingest into " + path + " failed", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        try {
+            session.getWorkspace().getObservationManager().setUserData(ThumbnailGenerator.INGEST_USER_DATA);
+            Ingest ingest = new Ingest(session, path, batchSize, new JSONWriter(response.getWriter()));
+            if (tar) {
+                ingest.run(new TarStream(request.getInputStream()));
+            } else {
+                ingest.run(new MultipartStream(request.getInputStream(), boundary, BUFFER_SIZE));
+            }
+        } catch (RepositoryException e) {
+            log.error("Ingest into " + path + " failed", e);
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Error writing ingest summary", e);
+        } finally {
+            sessions.release(session);
+        }
+    }
+
+    /**
+     * A decoded query string parameter, or null.
+     */
+    static String queryParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq >= 0 ? pair.substring(0, eq) : pair;
+            try {
+                if (URLDecoder.decode(key, "UTF-8").equals(name)) {
+                    return eq >= 0 ? URLDecoder.decode(pair.substring(eq + 1), "UTF-8") : "";
+                }
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            } catch (IllegalArgumentException e) {
+                // malformed escape, not our parameter
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A JCR-safe version of one path segment of an uploaded name, or null if
+     * nothing usable is left.
+     */
+    static String safeName(String segment) {
+        StringBuilder sb = new StringBuilder(segment.length());
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            sb.append("/:[]|*\"".indexOf(c) >= 0 || Character.isISOControl(c) ? '_' : c);
+        }
+        String name = sb.toString().trim();
+        return name.length() == 0 || name.equals(".") || name.equals("..") ? null : name;
+    }
+
+    /**
+     * One request's worth of files: writes them, saves in batches and
+     * reports each file as it goes.
+     */
+    private class Ingest {
+        private final Node target;
+        private final BulkImport bulk;
+        private final JSONWriter w;
+        private final ValueFactory valueFactory;
+        private final List<String> unsaved = new ArrayList<String>();
+        private int created;
+        private int updated;
+        private int skipped;
+        private int rejected;
+        private int enqueued;
+        private long bytes;
+
+        Ingest(Session session, String path, int batchSize, JSONWriter w) throws RepositoryException {
+            this.target = getOrCreateFolder(session.getRootNode(), path.substring(1));
+            this.bulk = new BulkImport(session, batchSize);
+            this.w = w;
+            this.valueFactory = session.getValueFactory();
+        }
+
+        void run(MultipartStream multipart) throws IOException, JSONException {
+            begin();
+            String error = null;
+            try {
+                while (multipart.next()) {
+                    String name = multipart.getFileName();
+                    if (name != null) {
+                        store(name, multipart.getInputStream());
+                    }
+                }
+                commit();
+            } catch (RepositoryException e) {
+                error = fail(e);
+            }
+            end(error);
+        }
+
+        void run(TarStream tar) throws IOException, JSONException {
+            begin();
+            String error = null;
+            try {
+                String name;
+                while ((name = tar.next()) != null) {
+                    store(name, tar.getInputStream());
+                }
+                commit();
+            } catch (RepositoryException e) {
+                error = fail(e);
+            }
+            end(error);
+        }
+
+        private void begin() throws JSONException {
+            w.object();
+            w.key("path").value(pathOf(target));
+            w.key("files").array();
+        }
+
+        private void store(String name, InputStream in) throws IOException, RepositoryException, JSONException {
+            List<String> segments = new ArrayList<String>();
+            for (String segment : name.split("/")) {
+                segment = safeName(segment);
+                if (segment != null) {
+                    segments.add(segment);
+                }
+            }
+            PushbackInputStream data = new PushbackInputStream(in, MimeSniffer.HEAD_LENGTH);
+            String mimeType = MimeSniffer.sniff(data);
+            w.object();
+            w.key("name").value(name);
+            if (segments.isEmpty() || mimeType == null) {
+                skipped++;
+                w.key("status").value("skipped");
+                w.endObject();
+                return;
+            }
+
+            Binary binary = valueFactory.createBinary(data);
+            try {
+                // checked before anything is written, so rejected files leave no trace
+                ImageProbe.Info info = imageProbe.probe(binary);
+                if (info.isRejected()) {
+                    rejected++;
+                    w.key("status").value("rejected");
+                    w.key("reason").value(info.getRejectReason());
+                    w.endObject();
+                    return;
+                }
+                Node folder = target;
+                String fileName = segments.remove(segments.size() - 1);
+                for (String segment : segments) {
+                    folder = getOrCreateFolder(folder, segment);
+                }
+                boolean exists = folder.hasNode(fileName);
+                Node file = exists ? folder.getNode(fileName) : folder.addNode(fileName, "nt:file");
+                Node content = file.hasNode("jcr:content") ? file.getNode("jcr:content")
+                        : file.addNode("jcr:content", "nt:resource");
+                long size = binary.getSize();
+                content.setProperty("jcr:data", binary);
+                content.setProperty("jcr:mimeType", info.getMimeType() != null ? info.getMimeType() : mimeType);
+                content.setProperty("jcr:lastModified", Calendar.getInstance());
+                imageProbe.store(content, info);
+                bytes += size;
+                if (exists) {
+                    updated++;
+                } else {
+                    created++;
+                }
+                w.key("path").value(file.getPath());
+                w.key("mimeType").value(content.getProperty("jcr:mimeType").getString());
+                w.key("width").value(info.getWidth());
+                w.key("height").value(info.getHeight());
+                w.key("size").value(size);
+                w.key("status").value(exists ? "updated" : "created");
+                w.endObject();
+                unsaved.add(content.getPath());
+            } finally {
+                binary.dispose();
+            }
+
+            int saves = bulk.getSaves();
+            bulk.nodeAdded();
+            if (bulk.getSaves() != saves) {
+                handOff();
+            }
+        }
+
+        private void commit() throws RepositoryException {
+            bulk.commit();
+            handOff();
+        }
+
+        /**
+         * Gives the files of the last saved batch to the generator. A failure
+         * here leaves the images in place; the backfill picks them up.
+         */
+        private void handOff() {
+            if (unsaved.isEmpty()) {
+                return;
+            }
+            try {
+                enqueued += thumbnailGenerator.enqueue(unsaved);
+            } catch (RepositoryException e) {
+                log.warn("Unable to enqueue thumbnails for {} ingested images: {}", unsaved.size(), e.getMessage());
+            }
+            unsaved.clear();
+        }
+
+        private String fail(RepositoryException e) {
+            log.error("Ingest into " + pathOf(target) + " failed", e);
+            try {
+                bulk.rollback();
+            } catch (RepositoryException re) {
+                log.warn("Rollback failed", re);
+            }
+            unsaved.clear();
+            return e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        }
+
+        private void end(String error) throws JSONException {
+            w.endArray();
+            w.key("status").value(error == null ? "ok" : "failed");
+            if (error != null) {
+                w.key("error").value(error);
+            }
+            w.key("created").value(created);
+            w.key("updated").value(updated);
+            w.key("skipped").value(skipped);
+            w.key("rejected").value(rejected);
+            w.key("bytes").value(bytes);
+            w.key("thumbnailJobs").value(enqueued);
+            bulk.writeSummary(w);
+            w.endObject();
+        }
+    }
+
+    private static String pathOf(Node node) {
+        try {
+            return node.getPath();
+        } catch (RepositoryException e) {
+            return null;
+        }
+    }
+
+    private static Node getOrCreateFolder(Node parent, String relPath) throws RepositoryException {
+        Node node = parent;
+        for (String name : relPath.split("/")) {
+            if (name.length() > 0) {
+                node = node.hasNode(name) ? node.getNode(name) : node.addNode(name, "nt:folder");
+            }
+        }
+        return node;
+    }
+}
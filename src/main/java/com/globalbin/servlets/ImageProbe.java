@@ -0,0 +1,445 @@
+package com.globalbin.servlets;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Dictionary;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.NodeList;
+
+/**
+ * Reads what an image is without decoding it: the {@link ImageReader} is
+ * only asked for the header (dimensions, format, raw color model) and, for
+ * JPEG, the EXIF orientation from the APP1 segment. Only the bytes the
+ * reader asks for are pulled from the binary.
+ *
+ * The result is stored on the <code>jcr:content</code> node with the
+ * <code>gb:imageInfo</code> mixin. Files no reader understands, and images
+ * over <code>probe.maxPixels</code> or <code>probe.maxDimension</code>, get
+ * <code>gb:rejected</code> instead and are never decoded. A wrong
+ * <code>jcr:mimeType</code> is corrected to what the bytes say.
+ */
+@Component(immediate = true, metatype = true, label = "GlobalBin Image Probe")
+@Service({ ImageProbe.class, StatsProvider.class })
+@Property(name = "service.description", value = "GlobalBin Image Probe")
+public class ImageProbe implements StatsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageProbe.class);
+
+    @Property(longValue = 100L * 1000 * 1000)
+    private static final String MAX_PIXELS_PROPERTY = "probe.maxPixels";
+
+    @Property(intValue = 30000)
+    private static final String MAX_DIMENSION_PROPERTY = "probe.maxDimension";
+
+    static final String MIXIN = "gb:imageInfo";
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private static final int APP1 = 0xe1;
+
+    private volatile long maxPixels = 100L * 1000 * 1000;
+    private volatile int maxDimension = 30000;
+
+    private final AtomicLong probed = new AtomicLong();
+    private final AtomicLong rejectedUnreadable = new AtomicLong();
+    private final AtomicLong rejectedOversized = new AtomicLong();
+    private final AtomicLong mimeTypesCorrected = new AtomicLong();
+    private final AtomicLong probeNanos = new AtomicLong();
+
+    /**
+     * Header facts about one image, or the reason it was rejected.
+     */
+    public static final class Info {
+        private final int width;
+        private final int height;
+        private final String format;
+        private final String mimeType;
+        private final int orientation;
+        private final String colorSpace;
+        private final int bitsPerPixel;
+        private final boolean hasAlpha;
+        private final String rejected;
+
+        Info(int width, int height, String format, String mimeType, int orientation, String colorSpace,
+                int bitsPerPixel, boolean hasAlpha, String rejected) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.mimeType = mimeType;
+            this.orientation = orientation;
+            this.colorSpace = colorSpace;
+            this.bitsPerPixel = bitsPerPixel;
+            this.hasAlpha = hasAlpha;
+            this.rejected = rejected;
+        }
+
+        static Info rejected(String reason) {
+            return new Info(0, 0, null, null, 1, null, 0, false, reason);
+        }
+
+        Info reject(String reason) {
+            return new Info(width, height, format, mimeType, orientation, colorSpace, bitsPerPixel, hasAlpha,
+                    reason);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getPixels() {
+            return (long) width * height;
+        }
+
+        /**
+         * The ImageIO format name, e.g. <code>jpeg</code> or <code>png</code>.
+         */
+        public String getFormat() {
+            return format;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * EXIF orientation, 1 (upright) when there is none.
+         */
+        public int getOrientation() {
+            return orientation;
+        }
+
+        public String getColorSpace() {
+            return colorSpace;
+        }
+
+        public int getBitsPerPixel() {
+            return bitsPerPixel;
+        }
+
+        public boolean hasAlpha() {
+            return hasAlpha;
+        }
+
+        public boolean isRejected() {
+            return rejected != null;
+        }
+
+        public String getRejectReason() {
+            return rejected;
+        }
+    }
+
+    protected void activate(ComponentContext context) {
+        Dictionary<?, ?> props = context.getProperties();
+        configure(ConfigUtil.toLong(props, MAX_PIXELS_PROPERTY, 100L * 1000 * 1000),
+                ConfigUtil.toInt(props, MAX_DIMENSION_PROPERTY, 30000));
+    }
+
+    void configure(long maxPixels, int maxDimension) {
+        this.maxPixels = maxPixels;
+        this.maxDimension = maxDimension;
+    }
+
+    /**
+     * Probes the binary, checking the limits.
+     */
+    public Info probe(Binary binary) throws RepositoryException {
+        InputStream in = binary.getStream();
+        try {
+            ImageInputStream iis = new MemoryCacheImageInputStream(in);
+            try {
+                return probe(iis);
+            } finally {
+                iis.close();
+            }
+        } catch (IOException e) {
+            rejectedUnreadable.incrementAndGet();
+            return Info.rejected("unreadable: " + e.getMessage());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written
+            }
+        }
+    }
+
+    Info probe(ImageInputStream iis) throws IOException {
+        long start = System.nanoTime();
+        Info info = read(iis);
+        probed.incrementAndGet();
+        probeNanos.addAndGet(System.nanoTime() - start);
+        if (info.isRejected()) {
+            rejectedUnreadable.incrementAndGet();
+        } else if (info.getWidth() > maxDimension || info.getHeight() > maxDimension
+                || info.getPixels() > maxPixels) {
+            rejectedOversized.incrementAndGet();
+            info = info.reject("oversized: " + info.getWidth() + "x" + info.getHeight());
+        }
+        return info;
+    }
+
+    /**
+     * The stored facts of <code>content</code>, probing and storing them
+     * first if there are none yet or the binary changed since. Does not
+     * save.
+     */
+    public Info ensure(Node content) throws RepositoryException {
+        Info stored = read(content);
+        if (stored != null) {
+            return stored;
+        }
+        Binary binary = content.getProperty("jcr:data").getBinary();
+        try {
+            Info info = probe(binary);
+            store(content, info);
+            return info;
+        } finally {
+            binary.dispose();
+        }
+    }
+
+    /**
+     * Writes <code>info</code> to <code>content</code>, correcting its
+     * <code>jcr:mimeType</code>. Does not save.
+     */
+    public void store(Node content, Info info) throws RepositoryException {
+        if (!content.isNodeType(MIXIN)) {
+            content.addMixin(MIXIN);
+        }
+        if (info.isRejected()) {
+            content.setProperty("gb:rejected", info.getRejectReason());
+        } else if (content.hasProperty("gb:rejected")) {
+            content.getProperty("gb:rejected").remove();
+        }
+        if (info.getFormat() != null) {
+            content.setProperty("gb:width", info.getWidth());
+            content.setProperty("gb:height", info.getHeight());
+            content.setProperty("gb:pixels", info.getPixels());
+            content.setProperty("gb:format", info.getFormat());
+            content.setProperty("gb:orientation", info.getOrientation());
+            content.setProperty("gb:colorSpace", info.getColorSpace());
+            content.setProperty("gb:bitsPerPixel", info.getBitsPerPixel());
+            content.setProperty("gb:hasAlpha", info.hasAlpha());
+        }
+        if (info.getMimeType() != null) {
+            String declared = content.hasProperty("jcr:mimeType") ? content.getProperty("jcr:mimeType").getString()
+                    : null;
+            if (!info.getMimeType().equals(declared)) {
+                log.info("Correcting jcr:mimeType of {} from {} to {}",
+                        new Object[] { content.getPath(), declared, info.getMimeType() });
+                content.setProperty("jcr:mimeType", info.getMimeType());
+                mimeTypesCorrected.incrementAndGet();
+            }
+        }
+        // stamped so a later upload into the same node is probed again
+        content.setProperty("gb:probed", content.hasProperty("jcr:lastModified")
+                ? content.getProperty("jcr:lastModified").getDate().getTimeInMillis() : 0);
+    }
+
+    /**
+     * What was stored for <code>content</code>, or null if it was never
+     * probed or the binary was replaced afterwards.
+     */
+    public static Info read(Node content) throws RepositoryException {
+        if (!content.isNodeType(MIXIN) || !content.hasProperty("gb:probed")) {
+            return null;
+        }
+        long modified = content.hasProperty("jcr:lastModified")
+                ? content.getProperty("jcr:lastModified").getDate().getTimeInMillis() : 0;
+        if (content.getProperty("gb:probed").getLong() != modified) {
+            return null;
+        }
+        String rejected = content.hasProperty("gb:rejected") ? content.getProperty("gb:rejected").getString() : null;
+        if (!content.hasProperty("gb:format")) {
+            return Info.rejected(rejected);
+        }
+        return new Info((int) content.getProperty("gb:width").getLong(),
+                (int) content.getProperty("gb:height").getLong(), content.getProperty("gb:format").getString(),
+                content.hasProperty("jcr:mimeType") ? content.getProperty("jcr:mimeType").getString() : null,
+                (int) content.getProperty("gb:orientation").getLong(),
+                content.getProperty("gb:colorSpace").getString(),
+                (int) content.getProperty("gb:bitsPerPixel").getLong(),
+                content.getProperty("gb:hasAlpha").getBoolean(), rejected);
+    }
+
+    /**
+     * Reads the header facts, without any limit checks. Images no reader
+     * understands come back rejected.
+     */
+    static Info read(ImageInputStream iis) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            return Info.rejected("unknown format");
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true, false);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            String format = reader.getFormatName().toLowerCase();
+            if (format.equals("jpg")) {
+                format = "jpeg";
+            }
+            String[] mimeTypes = reader.getOriginatingProvider().getMIMETypes();
+            String mimeType = mimeTypes != null && mimeTypes.length > 0 ? mimeTypes[0] : null;
+
+            String colorSpace = "unknown";
+            int bitsPerPixel = 0;
+            boolean hasAlpha = false;
+            ImageTypeSpecifier type = rawType(reader);
+            if (type != null) {
+                ColorModel cm = type.getColorModel();
+                colorSpace = colorSpaceName(cm.getColorSpace().getType());
+                bitsPerPixel = cm.getPixelSize();
+                hasAlpha = cm.hasAlpha();
+            }
+            int orientation = format.equals("jpeg") ? jpegOrientation(reader) : 1;
+            return new Info(width, height, format, mimeType, orientation, colorSpace, bitsPerPixel, hasAlpha, null);
+        } catch (IOException e) {
+            return Info.rejected("unreadable header: " + e.getMessage());
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static ImageTypeSpecifier rawType(ImageReader reader) {
+        try {
+            ImageTypeSpecifier type = reader.getRawImageType(0);
+            if (type == null) {
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                type = types.hasNext() ? types.next() : null;
+            }
+            return type;
+        } catch (IOException e) {
+            // e.g. CMYK JPEGs, which the JDK reader cannot convert
+            return null;
+        }
+    }
+
+    private static String colorSpaceName(int type) {
+        switch (type) {
+        case ColorSpace.TYPE_RGB:
+            return "RGB";
+        case ColorSpace.TYPE_GRAY:
+            return "GRAY";
+        case ColorSpace.TYPE_CMYK:
+            return "CMYK";
+        case ColorSpace.TYPE_YCbCr:
+            return "YCbCr";
+        default:
+            return "TYPE_" + type;
+        }
+    }
+
+    private static int jpegOrientation(ImageReader reader) {
+        try {
+            IIOMetadata metadata = reader.getImageMetadata(0);
+            if (metadata == null) {
+                return 1;
+            }
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+            NodeList unknown = root.getElementsByTagName("unknown");
+            for (int i = 0; i < unknown.getLength(); i++) {
+                IIOMetadataNode marker = (IIOMetadataNode) unknown.item(i);
+                if (Integer.toString(APP1).equals(marker.getAttribute("MarkerTag"))
+                        && marker.getUserObject() instanceof byte[]) {
+                    int orientation = exifOrientation((byte[]) marker.getUserObject());
+                    if (orientation > 0) {
+                        return orientation;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.debug("No EXIF orientation: {}", e.getMessage());
+        }
+        return 1;
+    }
+
+    /**
+     * The orientation tag of IFD0 in an APP1 EXIF segment, 0 if absent.
+     */
+    static int exifOrientation(byte[] app1) {
+        if (app1.length < 14 || app1[0] != 'E' || app1[1] != 'x' || app1[2] != 'i' || app1[3] != 'f'
+                || app1[4] != 0 || app1[5] != 0) {
+            return 0;
+        }
+        int tiff = 6;
+        boolean little = app1[tiff] == 'I' && app1[tiff + 1] == 'I';
+        if (!little && !(app1[tiff] == 'M' && app1[tiff + 1] == 'M')) {
+            return 0;
+        }
+        long ifd = u32(app1, tiff + 4, little);
+        if (ifd < 8 || tiff + ifd + 2 > app1.length) {
+            return 0;
+        }
+        int entries = u16(app1, (int) (tiff + ifd), little);
+        for (int i = 0; i < entries; i++) {
+            int entry = (int) (tiff + ifd + 2 + 12 * i);
+            if (entry + 12 > app1.length) {
+                break;
+            }
+            if (u16(app1, entry, little) == 0x0112) {
+                int value = u16(app1, entry + 8, little);
+                return value >= 1 && value <= 8 ? value : 0;
+            }
+        }
+        return 0;
+    }
+
+    private static int u16(byte[] b, int off, boolean little) {
+        int b0 = b[off] & 0xff;
+        int b1 = b[off + 1] & 0xff;
+        return little ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    private static long u32(byte[] b, int off, boolean little) {
+        long hi = u16(b, little ? off + 2 : off, little);
+        long lo = u16(b, little ? off : off + 2, little);
+        return (hi << 16) | lo;
+    }
+
+    public String getStatsName() {
+        return "imageProbe";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        long count = probed.get();
+        stats.put("probed", count);
+        stats.put("rejectedUnreadable", rejectedUnreadable.get());
+        stats.put("rejectedOversized", rejectedOversized.get());
+        stats.put("mimeTypesCorrected", mimeTypesCorrected.get());
+        stats.put("avgProbeMicros", count == 0 ? 0 : probeNanos.get() / count / 1000);
+        stats.put("maxPixels", maxPixels);
+        stats.put("maxDimension", maxDimension);
+        return stats;
+    }
+}
@@ -0,0 +1,273 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs on-the-fly resizes on a bounded worker pool. Requests beyond the pool
+ * size wait in a bounded queue; once that is full, or a resize exceeds its
+ * time budget, callers get an {@link OverloadedException} instead of tying up
+ * request threads and heap. Only whitelisted sizes and qualities are
+ * accepted.
+ */
+@Component(immediate = true, metatype = true, label = "GlobalBin Image Resizer")
+@Service({ ImageResizer.class, StatsProvider.class })
+@Property(name = "service.description", value = "GlobalBin Image Resizer")
+public class ImageResizer implements StatsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(ImageResizer.class);
+
+    @Property(intValue = 0)
+    private static final String THREADS_PROPERTY = "resize.threads";
+
+    @Property(intValue = 16)
+    private static final String QUEUE_SIZE_PROPERTY = "resize.queueSize";
+
+    @Property(longValue = 30000)
+    private static final String TIMEOUT_PROPERTY = "resize.timeoutMs";
+
+    @Property(value = { "50", "100", "200", "250", "400", "800", "1200" })
+    private static final String ALLOWED_SIZES_PROPERTY = "resize.allowedSizes";
+
+    @Property(value = { "60", "70", "80", "85", "90" })
+    private static final String ALLOWED_QUALITIES_PROPERTY = "resize.allowedQualities";
+
+    /**
+     * Thrown when the pool cannot take or finish a resize in time.
+     */
+    public static class OverloadedException extends IOException {
+        private static final long serialVersionUID = -4619323585710393342L;
+
+        public OverloadedException(String message) {
+            super(message);
+        }
+    }
+
+    private ThreadPoolExecutor executor;
+    private long timeoutMs;
+    private final Set<Integer> allowedSizes = new HashSet<Integer>();
+    private final Set<Integer> allowedQualities = new HashSet<Integer>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+
+    protected void activate(ComponentContext context) {
+        Dictionary<?, ?> props = context.getProperties();
+        int threads = ConfigUtil.toInt(props, THREADS_PROPERTY, 0);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        int queueSize = Math.max(1, ConfigUtil.toInt(props, QUEUE_SIZE_PROPERTY, 16));
+        timeoutMs = ConfigUtil.toLong(props, TIMEOUT_PROPERTY, 30000);
+        for (String s : ConfigUtil.toStringArray(props, ALLOWED_SIZES_PROPERTY, new String[0])) {
+            allowedSizes.add(Integer.valueOf(s.trim()));
+        }
+        for (String s : ConfigUtil.toStringArray(props, ALLOWED_QUALITIES_PROPERTY, new String[0])) {
+            allowedQualities.add(Integer.valueOf(s.trim()));
+        }
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("gb-image-resize"),
+                new ThreadPoolExecutor.AbortPolicy());
+        log.info("Activated: ImageResizer, threads={}, queue={}, sizes={}", threads, queueSize, allowedSizes);
+    }
+
+    protected void deactivate(ComponentContext context) {
+        executor.shutdownNow();
+        allowedSizes.clear();
+        allowedQualities.clear();
+    }
+
+    /**
+     * True if every dimension and the quality of <code>spec</code> are
+     * whitelisted.
+     */
+    public boolean isAllowed(ResizeSpec spec) {
+        return (spec.getWidth() == 0 || allowedSizes.contains(spec.getWidth()))
+                && (spec.getHeight() == 0 || allowedSizes.contains(spec.getHeight()))
+                && allowedQualities.contains(spec.getQuality());
+    }
+
+    /**
+     * Resizes <code>inputStream</code> on the worker pool and waits for the
+     * encoded result. The stream is consumed by the worker but closed by the
+     * caller.
+     */
+    public byte[] resize(final InputStream inputStream, final ResizeSpec spec) throws IOException {
+        return run(new Callable<byte[]>() {
+            public byte[] call() throws Exception {
+                return ImageScaler.resize(inputStream, spec);
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #resize(InputStream, ResizeSpec)} for a stream opened by
+     * {@link ScratchSpace}, except that the stream is always closed by the
+     * resizer, see {@link #submit(ImageInputStream, ResizeSpec)}.
+     */
+    public byte[] resize(ImageInputStream iis, ResizeSpec spec) throws IOException {
+        Future<byte[]> future;
+        try {
+            future = submit(iis, spec);
+        } catch (OverloadedException e) {
+            StreamTask.close(iis);
+            throw e;
+        }
+        return await(future);
+    }
+
+    /**
+     * Queues a resize of <code>iis</code> without waiting for it, so callers
+     * with many images can keep several in flight. Throws an
+     * {@link OverloadedException} if the queue is full; the result is
+     * collected with {@link #await(Future)}.
+     *
+     * Once queued, the stream belongs to the resize and is closed when the
+     * worker is done with it, or when the resize is cancelled before it
+     * starts; after a rejection it still belongs to the caller, who may
+     * submit it again. A caller that gives up waiting must not close it:
+     * ImageIO does not notice interrupts, so the worker may still be
+     * decoding, and its scratch space quota has to stay taken until then.
+     */
+    public Future<byte[]> submit(ImageInputStream iis, ResizeSpec spec) throws OverloadedException {
+        return submit(new StreamTask(iis, spec));
+    }
+
+    private Future<byte[]> submit(FutureTask<byte[]> task) throws OverloadedException {
+        try {
+            executor.execute(task);
+            submitted.incrementAndGet();
+            return task;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new OverloadedException("Resize queue full");
+        }
+    }
+
+    private byte[] run(Callable<byte[]> task) throws IOException {
+        return await(submit(new FutureTask<byte[]>(task)));
+    }
+
+    /**
+     * A resize that owns its stream. Whichever of the worker or a
+     * cancellation gets to it first decides who closes the stream.
+     */
+    private static class StreamTask extends FutureTask<byte[]> {
+        private static final int NEW = 0;
+        private static final int RUNNING = 1;
+        private static final int CLOSED = 2;
+
+        private final ImageInputStream iis;
+        private final AtomicInteger state;
+
+        StreamTask(final ImageInputStream iis, final ResizeSpec spec) {
+            this(iis, spec, new AtomicInteger(NEW));
+        }
+
+        private StreamTask(final ImageInputStream iis, final ResizeSpec spec, final AtomicInteger state) {
+            super(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    if (!state.compareAndSet(NEW, RUNNING)) {
+                        return null;
+                    }
+                    try {
+                        return ImageScaler.resize(iis, spec);
+                    } finally {
+                        state.set(CLOSED);
+                        close(iis);
+                    }
+                }
+            });
+            this.iis = iis;
+            this.state = state;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() && state.compareAndSet(NEW, CLOSED)) {
+                close(iis);
+            }
+        }
+
+        static void close(ImageInputStream iis) {
+            try {
+                iis.close();
+            } catch (IOException e) {
+                log.debug("Error closing resize input", e);
+            }
+        }
+    }
+
+    /**
+     * Waits, within the time budget, for a resize queued with
+     * {@link #submit(ImageInputStream, ResizeSpec)}.
+     */
+    public byte[] await(Future<byte[]> future) throws IOException {
+        long start = System.currentTimeMillis();
+        try {
+            byte[] result = future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            completed.incrementAndGet();
+            totalMillis.addAndGet(System.currentTimeMillis() - start);
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timedOut.incrementAndGet();
+            throw new OverloadedException("Resize timed out after " + timeoutMs + "ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while resizing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Resize failed", cause);
+        }
+    }
+
+    public String getStatsName() {
+        return "imageResizer";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        long done = completed.get();
+        stats.put("submitted", submitted.get());
+        stats.put("completed", done);
+        stats.put("rejected", rejected.get());
+        stats.put("timedOut", timedOut.get());
+        stats.put("active", executor.getActiveCount());
+        stats.put("queueDepth", executor.getQueue().size());
+        stats.put("avgMillis", done == 0 ? 0 : totalMillis.get() / done);
+        return stats;
+    }
+}
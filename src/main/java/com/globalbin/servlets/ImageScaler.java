@@ -0,0 +1,262 @@
+package com.globalbin.servlets;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Shared decode / scale / encode engine used by {@link ImageServlet} (through
+ * {@link ImageResizer}) and {@link ThumbnailGenerator}. Safe to call from any
+ * thread.
+ *
+ * Large sources are decoded with source subsampling so the decoder never
+ * materializes more than about twice the target resolution, and scaled down
+ * by repeated halving before the final bilinear pass. Intermediate rasters
+ * come from per-thread scratch buffers; everything is encoded in memory.
+ */
+public final class ImageScaler {
+
+    /**
+     * Intermediate rasters above this size are allocated per call instead of
+     * being kept in the per-thread scratch buffers.
+     */
+    static final int MAX_SCRATCH_PIXELS = 1024 * 1024;
+
+    private static final ThreadLocal<BufferedImage[]> SCRATCH = new ThreadLocal<BufferedImage[]>() {
+        @Override
+        protected BufferedImage[] initialValue() {
+            return new BufferedImage[2];
+        }
+    };
+
+    private ImageScaler() {
+    }
+
+    public static BufferedImage read(InputStream inputStream) throws IOException {
+        return read(inputStream, 0, 0);
+    }
+
+    /**
+     * Decodes the first image of <code>inputStream</code>, subsampling while
+     * the result stays at least twice as large as the target box. A zero
+     * target dimension is unconstrained.
+     */
+    public static BufferedImage read(InputStream inputStream, int targetWidth, int targetHeight) throws IOException {
+        if (inputStream == null) {
+            throw new IOException("InputStream is null");
+        }
+        ImageInputStream iis = new MemoryCacheImageInputStream(inputStream);
+        try {
+            return read(iis, targetWidth, targetHeight);
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Same as {@link #read(InputStream, int, int)} for an already opened
+     * stream, such as one from {@link ScratchSpace}. The stream is left open.
+     */
+    public static BufferedImage read(ImageInputStream iis, int targetWidth, int targetHeight) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            final StringBuilder sb = new StringBuilder();
+            for (String fmt : ImageIO.getReaderFormatNames()) {
+                sb.append(fmt);
+                sb.append(' ');
+            }
+            throw new IOException("Unable to read image, registered formats: " + sb);
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            int factor = subsampling(reader.getWidth(0), reader.getHeight(0), targetWidth, targetHeight);
+            if (factor > 1) {
+                param.setSourceSubsampling(factor, factor, 0, 0);
+            }
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    static int subsampling(int width, int height, int targetWidth, int targetHeight) {
+        int factor = Integer.MAX_VALUE;
+        if (targetWidth > 0) {
+            factor = width / (targetWidth * 2);
+        }
+        if (targetHeight > 0) {
+            factor = Math.min(factor, height / (targetHeight * 2));
+        }
+        return factor == Integer.MAX_VALUE ? 1 : Math.max(1, factor);
+    }
+
+    /**
+     * Decodes, scales and encodes in one go.
+     */
+    public static byte[] resize(InputStream inputStream, ResizeSpec spec) throws IOException {
+        return encode(scale(read(inputStream, spec.getWidth(), spec.getHeight()), spec), spec);
+    }
+
+    public static byte[] resize(ImageInputStream iis, ResizeSpec spec) throws IOException {
+        return encode(scale(read(iis, spec.getWidth(), spec.getHeight()), spec), spec);
+    }
+
+    private static byte[] encode(BufferedImage dest, ResizeSpec spec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(dest, spec.getFormat(), spec.getQuality(), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Scales <code>src</code> into the box described by <code>spec</code>.
+     * Images are never scaled up.
+     */
+    public static BufferedImage scale(BufferedImage src, ResizeSpec spec) {
+        final int srcWidth = src.getWidth();
+        final int srcHeight = src.getHeight();
+        int destWidth;
+        int destHeight;
+        // source region, cropped for COVER
+        int sx = 0;
+        int sy = 0;
+        int sw = srcWidth;
+        int sh = srcHeight;
+
+        if (spec.getHeight() <= 0 || spec.getWidth() <= 0) {
+            double scale = spec.getWidth() > 0 ? (double) spec.getWidth() / srcWidth
+                    : (double) spec.getHeight() / srcHeight;
+            scale = Math.min(scale, 1.0);
+            destWidth = (int) Math.round(srcWidth * scale);
+            destHeight = (int) Math.round(srcHeight * scale);
+        } else if (spec.getFit() == ResizeSpec.Fit.FILL) {
+            destWidth = Math.min(spec.getWidth(), srcWidth);
+            destHeight = Math.min(spec.getHeight(), srcHeight);
+        } else {
+            double scaleX = (double) spec.getWidth() / srcWidth;
+            double scaleY = (double) spec.getHeight() / srcHeight;
+            if (spec.getFit() == ResizeSpec.Fit.CONTAIN) {
+                double scale = Math.min(Math.min(scaleX, scaleY), 1.0);
+                destWidth = (int) Math.round(srcWidth * scale);
+                destHeight = (int) Math.round(srcHeight * scale);
+            } else {
+                double scale = Math.max(scaleX, scaleY);
+                double shrink = Math.min(1.0, 1.0 / scale);
+                destWidth = (int) Math.round(spec.getWidth() * shrink);
+                destHeight = (int) Math.round(spec.getHeight() * shrink);
+                scale = Math.min(scale, 1.0);
+                sw = Math.min(srcWidth, (int) Math.round(destWidth / scale));
+                sh = Math.min(srcHeight, (int) Math.round(destHeight / scale));
+                sx = (srcWidth - sw) / 2;
+                sy = (srcHeight - sh) / 2;
+            }
+        }
+        destWidth = Math.max(1, destWidth);
+        destHeight = Math.max(1, destHeight);
+
+        int type = src.getColorModel().hasAlpha() && !"jpeg".equals(spec.getFormat())
+                ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+        // halve until one bilinear step is enough, ping-ponging between the
+        // two scratch buffers
+        BufferedImage current = src;
+        int pass = 0;
+        while (sw / 2 >= destWidth && sh / 2 >= destHeight) {
+            int nw = sw / 2;
+            int nh = sh / 2;
+            BufferedImage next = scratch(pass % 2, nw, nh, type);
+            draw(current, sx, sy, sw, sh, next, nw, nh);
+            current = next;
+            sx = 0;
+            sy = 0;
+            sw = nw;
+            sh = nh;
+            pass++;
+        }
+
+        BufferedImage dest = new BufferedImage(destWidth, destHeight, type);
+        draw(current, sx, sy, sw, sh, dest, destWidth, destHeight);
+        return dest;
+    }
+
+    private static void draw(BufferedImage src, int sx, int sy, int sw, int sh, BufferedImage dest, int dw,
+            int dh) {
+        Graphics2D g = dest.createGraphics();
+        try {
+            // scratch buffers hold stale pixels, replace rather than blend
+            g.setComposite(AlphaComposite.Src);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, dw, dh, sx, sy, sx + sw, sy + sh, null);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Returns a <code>width</code> x <code>height</code> view on the calling
+     * thread's scratch buffer <code>slot</code>, growing it when needed.
+     */
+    private static BufferedImage scratch(int slot, int width, int height, int type) {
+        if ((long) width * height > MAX_SCRATCH_PIXELS) {
+            return new BufferedImage(width, height, type);
+        }
+        BufferedImage[] buffers = SCRATCH.get();
+        BufferedImage buffer = buffers[slot];
+        if (buffer == null || buffer.getType() != type || buffer.getWidth() < width || buffer.getHeight() < height) {
+            int w = Math.max(width, buffer == null || buffer.getType() != type ? 0 : buffer.getWidth());
+            int h = Math.max(height, buffer == null || buffer.getType() != type ? 0 : buffer.getHeight());
+            if ((long) w * h > MAX_SCRATCH_PIXELS) {
+                w = width;
+                h = height;
+            }
+            buffer = new BufferedImage(w, h, type);
+            buffers[slot] = buffer;
+        }
+        return buffer.getSubimage(0, 0, width, height);
+    }
+
+    /**
+     * Encodes <code>image</code>; <code>quality</code> (0-100) is applied
+     * when the writer supports explicit compression.
+     */
+    public static void write(BufferedImage image, String format, int quality, OutputStream outputStream)
+            throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No ImageIO writer for format " + format);
+        }
+        ImageWriter writer = writers.next();
+        ImageOutputStream ios = new MemoryCacheImageOutputStream(outputStream);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpeg".equals(format) && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(Math.max(0, Math.min(100, quality)) / 100f);
+            }
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            ios.close();
+        }
+    }
+}
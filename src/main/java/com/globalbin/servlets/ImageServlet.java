@@ -1,34 +1,40 @@
 package com.globalbin.servlets;
 
-import java.awt.Image;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.Writer;
 
-import javax.imageio.ImageIO;
+import javax.jcr.Binary;
 import javax.jcr.Node;
+import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 /**
- * Hello World Servlet registered by resource type
- *
+ * Image delivery servlet. The first selector picks the mode:
+ * <ul>
+ * <li><code>show</code> - a cached rendition, 200px wide JPEG unless further
+ * selectors say otherwise, e.g. <code>.show.w400.q80.webp-or-png.jpg</code>
+ * (see {@link ResizeSpec})</li>
+ * <li><code>orig</code> - the original <code>jcr:data</code> streamed as is,
+ * without decoding</li>
+ * </ul>
  */
-@SlingServlet(resourceTypes="sling/servlet/default", selectors="show", extensions="jpg")
+@SlingServlet(resourceTypes="sling/servlet/default", selectors={"show", "orig"},
+        extensions={"jpg", "jpeg", "png", "gif"})
 @Properties({
     @Property(name="service.description", value="Image Passthrough Servlet"),
     @Property(name="service.vendor", value="The Global Bin")
@@ -37,48 +43,126 @@ public class ImageServlet extends SlingSafeMethodsServlet {
 	private static final long serialVersionUID = 7187392393675387755L;
 	private final Logger log = LoggerFactory.getLogger(ImageServlet.class);
 
+	private static final int WIDTH = 200;
+
+	private static final String ORIGINAL_SELECTOR = "orig";
+
+	@Property(intValue = 3600)
+	private static final String MAX_AGE_PROPERTY = "image.maxAge";
+
+    @Reference
+    private RenditionCache renditionCache;
+
+    @Reference
+    private ImageResizer imageResizer;
+
+    @Reference
+    private ScratchSpace scratchSpace;
+
+    @Reference
+    private RenditionProfile renditionProfile;
+
+    @Reference
+    private ThumbnailGenerator thumbnailGenerator;
+
+    private int maxAge;
+
+    protected void activate(ComponentContext context) {
+    	maxAge = ConfigUtil.toInt(context.getProperties(), MAX_AGE_PROPERTY, 3600);
+    }
+
     @Override
     protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException,
             IOException {
 
     	String resourcePath = request.getResource().getPath();
     	ResourceResolver resourceResolver = request.getResourceResolver();
-    	
-    	String contentPath = resourcePath.replaceAll(".show", "") + "/jcr:content";
+    	String[] selectors = request.getRequestPathInfo().getSelectors();
+    	boolean original = selectors.length > 0 && ORIGINAL_SELECTOR.equals(selectors[0]);
+
+    	String filePath = resourcePath.replaceAll("\\.(show|orig)$", "");
+    	String contentPath = filePath + "/jcr:content";
 		Resource resource = resourceResolver.getResource(contentPath);	
-    	log.info(">>> contentPath: " + contentPath);
+    	log.debug(">>> contentPath: {}", contentPath);
+    	ResizeSpec spec = null;
+    	if (!original) {
+    		try {
+    			spec = ResizeSpec.parse(selectors, 1, WIDTH, request.getRequestPathInfo().getExtension());
+    		} catch (ResizeSpec.InvalidSpecException e) {
+    			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+    			return;
+    		}
+    		if (!imageResizer.isAllowed(spec)) {
+    			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Rendition not allowed: " + spec);
+    			return;
+    		}
+    	}
     	try {
-        	Node resourceNode = resource.adaptTo(Node.class);
+        	Node resourceNode = resource == null ? null : resource.adaptTo(Node.class);
         	if (resourceNode!=null) {
-        		log.info(">>> node found. " + resourceNode.getPath());
-    			response.setContentType("image/jpg");
-    			response.setStatus(HttpServletResponse.SC_OK);
-    			
-    			InputStream inputStream = resourceNode.getProperty("jcr:data").getBinary().getStream();
-    			OutputStream outputStream = response.getOutputStream();    			
-    			BufferedImage sourceImage = ImageIO.read(inputStream);
-    			
-    			int width = sourceImage.getWidth();
-    			int height = sourceImage.getHeight();    			
-    			log.info("Image WxH: " + width + "x" + height);
-    			
-    			
-    			Image thumbnail = sourceImage.getScaledInstance(200, -1, Image.SCALE_SMOOTH);
-    			BufferedImage bufferedThumbnail = new BufferedImage(thumbnail.getWidth(null),
-    			                                                    thumbnail.getHeight(null),
-    			                                                    BufferedImage.TYPE_INT_RGB);
-    			bufferedThumbnail.getGraphics().drawImage(thumbnail, 0, 0, null);
-    			ImageIO.write(bufferedThumbnail, "jpeg", outputStream);
-
-    			// IOUtils.copy(inputStream, outputStream);
-    			
-    			inputStream.close();
-    			outputStream.close();
+        		long lastModified = resourceNode.hasProperty("jcr:lastModified")
+        				? resourceNode.getProperty("jcr:lastModified").getDate().getTimeInMillis() : 0L;
+        		// serve the nearest precomputed rendition instead of the exact size
+        		ResizeSpec precomputed = null;
+        		if (!original) {
+        			String sourceFormat = thumbnailGenerator.getSourceFormat(resourceNode);
+        			precomputed = sourceFormat == null ? null : renditionProfile.match(spec, sourceFormat);
+        			if (precomputed != null) {
+        				spec = precomputed;
+        			}
+        		}
+        		String variant = original ? ORIGINAL_SELECTOR : spec.toString();
+        		Binary data = resourceNode.getProperty("jcr:data").getBinary();
+        		try {
+	        		String etag = HttpValidators.etag(resourceNode.getIdentifier(), lastModified, data.getSize(), variant);
+	        		HttpValidators.setValidators(response, etag, lastModified, maxAge);
+	        		if (HttpValidators.isNotModified(request, etag, lastModified)) {
+	        			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	        			return;
+	        		}
+	
+	        		if (original) {
+	        			response.setContentType(getMimeType(resourceNode, filePath));
+	        			BinaryStreamer.write(request, response, etag, data);
+	        			return;
+	        		}
+	
+	        		String cacheKey = RenditionCache.key(filePath, lastModified, variant);
+	        		byte[] rendition = renditionCache.get(cacheKey);
+	        		if (rendition == null) {
+	        			rendition = precomputed != null
+	        					? thumbnailGenerator.readRendition(resourceNode, precomputed) : null;
+	        			if (rendition == null) {
+	        				rendition = render(data, spec);
+	        				if (precomputed != null) {
+	        					thumbnailGenerator.requestRenditions(contentPath);
+	        				}
+	        			}
+	        			renditionCache.put(cacheKey, rendition);
+	        		}
+	
+	    			response.setContentType(spec.getMimeType());
+	    			HttpValidators.writeBytes(request, response, etag, rendition);
+        		} finally {
+        			data.dispose();
+        		}
         	} else {
-        		log.info(">>> adapTo failed! -----------");
+        		log.debug("No image content at {}", contentPath);
+        		response.sendError(HttpServletResponse.SC_NOT_FOUND);
         	}
+		} catch (ImageResizer.OverloadedException e) {
+			log.warn("Rejected {}: {}", contentPath, e.getMessage());
+			if (!response.isCommitted()) {
+				response.reset();
+				response.setHeader("Retry-After", "1");
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
 		} catch (Exception e) {
-			e.printStackTrace();			
+			log.error("Error rendering " + contentPath, e);
+			if (response.isCommitted()) {
+				return;
+			}
+			response.reset();
 			response.setContentType("text/html");
 			response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 	        Writer w = response.getWriter();
@@ -89,11 +173,28 @@ public class ImageServlet extends SlingSafeMethodsServlet {
 	        w.write("</head>");
 	        w.write("<body>");
 	        w.write("<h1>Error Retrieving ");
-	        w.write(resource.getPath());
+	        w.write(contentPath);
 	        w.write("</h1>");
 	        w.write("</body>");
 	        w.write("</html>");			
 		}
-		resourceResolver.close();
-    }	
+    }
+
+    private String getMimeType(Node resourceNode, String filePath) throws RepositoryException {
+    	if (resourceNode.hasProperty("jcr:mimeType")) {
+    		return resourceNode.getProperty("jcr:mimeType").getString();
+    	}
+    	String mimeType = getServletContext().getMimeType(filePath);
+    	return mimeType != null ? mimeType : "application/octet-stream";
+    }
+
+    /**
+     * Decodes the original and encodes the rendition into memory on the
+     * resize pool so the result can be cached. Large originals are read
+     * through the scratch space instead of the heap; the resize
+     * closes that stream, even if it outlives this request.
+     */
+    private byte[] render(Binary data, ResizeSpec spec) throws Exception {
+    	return imageResizer.resize(scratchSpace.open(data), spec);
+    }
 }
@@ -0,0 +1,84 @@
+package com.globalbin.servlets;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.ItemExistsException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Small repository helpers shared by the components.
+ */
+final class JcrUtil {
+
+    /** How often {@link #createSharedPath} retries after losing a race. */
+    static final int SHARED_PATH_ATTEMPTS = 5;
+
+    private JcrUtil() {
+    }
+
+    /**
+     * The node at the absolute <code>path</code>, creating missing
+     * ancestors and the node itself as <code>nt:unstructured</code>. The
+     * caller saves.
+     */
+    static Node getOrCreatePath(Session session, String path) throws RepositoryException {
+        return getOrCreatePath(session, path, "nt:unstructured");
+    }
+
+    /**
+     * The node at the absolute <code>path</code>, creating missing
+     * ancestors as <code>nt:unstructured</code> and the node itself as
+     * <code>type</code>. The caller saves.
+     */
+    static Node getOrCreatePath(Session session, String path, String type) throws RepositoryException {
+        Node node = session.getRootNode();
+        String[] names = path.substring(1).split("/");
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            if (node.hasNode(name)) {
+                node = node.getNode(name);
+            } else {
+                node = node.addNode(name, i == names.length - 1 ? type : "nt:unstructured");
+            }
+        }
+        return node;
+    }
+
+    /**
+     * <code>path</code> trimmed and made absolute. Page imports have always
+     * taken paths relative to the root, so <code>content/a</code> and
+     * <code>/content/a</code> name the same node.
+     */
+    static String absolutePath(String path) {
+        String trimmed = path.trim();
+        return trimmed.startsWith("/") ? trimmed : "/" + trimmed;
+    }
+
+    /**
+     * Like {@link #getOrCreatePath(Session, String, String)}, but saves right
+     * away, for parents that concurrent writers share. When another session
+     * created the same node first, the save conflicts; the pending changes
+     * are dropped and the path is looked up again. <code>session</code> must
+     * have no other pending changes.
+     */
+    static Node createSharedPath(Session session, String path, String type) throws RepositoryException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                Node node = getOrCreatePath(session, path, type);
+                session.save();
+                return node;
+            } catch (ItemExistsException e) {
+                session.refresh(false);
+                if (attempt >= SHARED_PATH_ATTEMPTS) {
+                    throw e;
+                }
+            } catch (InvalidItemStateException e) {
+                session.refresh(false);
+                if (attempt >= SHARED_PATH_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+}
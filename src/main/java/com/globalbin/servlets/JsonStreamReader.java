@@ -0,0 +1,321 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pull tokenizer for JSON read straight from a {@link Reader}. Only the
+ * current token is held in memory, so payload size does not matter. Several
+ * top level values may follow each other (NDJSON). Like the Sling JSON
+ * parser, <code>//</code> and <code>/* *&#47;</code> comments are skipped.
+ */
+public class JsonStreamReader {
+
+    public enum Token {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+    }
+
+    private static final int TOP = 0;
+    private static final int OBJECT_START = 1;
+    private static final int OBJECT_NAME = 2;
+    private static final int OBJECT_VALUE = 3;
+    private static final int ARRAY_START = 4;
+    private static final int ARRAY_VALUE = 5;
+
+    static final int DEFAULT_MAX_STRING_LENGTH = 1024 * 1024;
+
+    /**
+     * Deepest nesting of objects and arrays accepted. Importers recurse once
+     * per level, so this keeps a valid but absurd body from overflowing the
+     * stack.
+     */
+    static final int MAX_DEPTH = 256;
+
+    private final Reader reader;
+    private final int maxStringLength;
+    private final char[] buffer = new char[8192];
+    private int pos;
+    private int limit;
+
+    private int[] stack = new int[32];
+    private int depth = 1;
+
+    private Token peeked;
+    private final StringBuilder value = new StringBuilder();
+
+    public JsonStreamReader(Reader reader) {
+        this(reader, DEFAULT_MAX_STRING_LENGTH);
+    }
+
+    public JsonStreamReader(Reader reader, int maxStringLength) {
+        this.reader = reader;
+        this.maxStringLength = maxStringLength;
+        stack[0] = TOP;
+    }
+
+    public Token peek() throws IOException {
+        if (peeked == null) {
+            peeked = read();
+        }
+        return peeked;
+    }
+
+    public Token next() throws IOException {
+        Token token = peek();
+        peeked = null;
+        return token;
+    }
+
+    /**
+     * Text of the last NAME, STRING, NUMBER or BOOLEAN token.
+     */
+    public String getText() {
+        return value.toString();
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        return getText();
+    }
+
+    public String nextString() throws IOException {
+        expect(Token.STRING);
+        return getText();
+    }
+
+    public void expect(Token expected) throws IOException {
+        Token token = next();
+        if (token != expected) {
+            throw syntaxError("Expected " + expected + " but found " + token);
+        }
+    }
+
+    /**
+     * Skips the next value, including nested objects and arrays.
+     */
+    public void skipValue() throws IOException {
+        int nesting = 0;
+        do {
+            Token token = next();
+            if (token == Token.START_OBJECT || token == Token.START_ARRAY) {
+                nesting++;
+            } else if (token == Token.END_OBJECT || token == Token.END_ARRAY) {
+                nesting--;
+            } else if (token == Token.END_DOCUMENT) {
+                throw syntaxError("Unexpected end of input");
+            }
+        } while (nesting > 0);
+    }
+
+    private Token read() throws IOException {
+        int c = nextNonWhitespace();
+        switch (stack[depth - 1]) {
+        case TOP:
+            if (c < 0) {
+                return Token.END_DOCUMENT;
+            }
+            return readValue(c);
+        case OBJECT_START:
+            if (c == '}') {
+                depth--;
+                return Token.END_OBJECT;
+            }
+            return readName(c);
+        case OBJECT_VALUE:
+            if (c == '}') {
+                depth--;
+                return Token.END_OBJECT;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or '}'");
+            }
+            return readName(nextNonWhitespace());
+        case OBJECT_NAME:
+            if (c != ':') {
+                throw syntaxError("Expected ':'");
+            }
+            stack[depth - 1] = OBJECT_VALUE;
+            return readValue(nextNonWhitespace());
+        case ARRAY_START:
+            if (c == ']') {
+                depth--;
+                return Token.END_ARRAY;
+            }
+            stack[depth - 1] = ARRAY_VALUE;
+            return readValue(c);
+        case ARRAY_VALUE:
+            if (c == ']') {
+                depth--;
+                return Token.END_ARRAY;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected ',' or ']'");
+            }
+            return readValue(nextNonWhitespace());
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    private Token readName(int c) throws IOException {
+        if (c != '"') {
+            throw syntaxError("Expected name");
+        }
+        readString();
+        stack[depth - 1] = OBJECT_NAME;
+        return Token.NAME;
+    }
+
+    private Token readValue(int c) throws IOException {
+        switch (c) {
+        case '{':
+            push(OBJECT_START);
+            return Token.START_OBJECT;
+        case '[':
+            push(ARRAY_START);
+            return Token.START_ARRAY;
+        case '"':
+            readString();
+            return Token.STRING;
+        case -1:
+            throw syntaxError("Unexpected end of input");
+        default:
+            // number or literal, up to the next delimiter
+            value.setLength(0);
+            value.append((char) c);
+            while (fill() && !isDelimiter(buffer[pos])) {
+                value.append(buffer[pos++]);
+            }
+            String text = getText();
+            if (text.equals("true") || text.equals("false")) {
+                return Token.BOOLEAN;
+            }
+            if (text.equals("null")) {
+                return Token.NULL;
+            }
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                return Token.NUMBER;
+            }
+            throw syntaxError("Unexpected value " + text);
+        }
+    }
+
+    private void readString() throws IOException {
+        value.setLength(0);
+        while (true) {
+            if (!fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            char c = buffer[pos++];
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                if (!fill()) {
+                    throw syntaxError("Unterminated escape");
+                }
+                c = buffer[pos++];
+                switch (c) {
+                case 'b':
+                    c = '\b';
+                    break;
+                case 'f':
+                    c = '\f';
+                    break;
+                case 'n':
+                    c = '\n';
+                    break;
+                case 'r':
+                    c = '\r';
+                    break;
+                case 't':
+                    c = '\t';
+                    break;
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        if (!fill()) {
+                            throw syntaxError("Unterminated escape");
+                        }
+                        int digit = Character.digit(buffer[pos++], 16);
+                        if (digit < 0) {
+                            throw syntaxError("Invalid unicode escape");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    c = (char) code;
+                    break;
+                default:
+                    // \" \\ \/ and lenient pass-through
+                    break;
+                }
+            }
+            if (value.length() >= maxStringLength) {
+                throw syntaxError("String longer than " + maxStringLength + " characters");
+            }
+            value.append(c);
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (fill()) {
+            char c = buffer[pos++];
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                continue;
+            }
+            if (c == '/' && fill()) {
+                if (buffer[pos] == '/') {
+                    while (fill() && buffer[pos] != '\n') {
+                        pos++;
+                    }
+                    continue;
+                }
+                if (buffer[pos] == '*') {
+                    pos++;
+                    char previous = 0;
+                    while (fill() && !(previous == '*' && buffer[pos] == '/')) {
+                        previous = buffer[pos++];
+                    }
+                    pos++;
+                    continue;
+                }
+            }
+            return c;
+        }
+        return -1;
+    }
+
+    private boolean fill() throws IOException {
+        if (pos < limit) {
+            return true;
+        }
+        limit = reader.read(buffer, 0, buffer.length);
+        pos = 0;
+        if (limit <= 0) {
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r'
+                || c == '/';
+    }
+
+    private void push(int context) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw syntaxError("Nested deeper than " + MAX_DEPTH + " levels");
+        }
+        if (depth == stack.length) {
+            int[] grown = new int[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, stack.length);
+            stack = grown;
+        }
+        stack[depth++] = context;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Invalid JSON: " + message);
+    }
+}
@@ -0,0 +1,125 @@
+package com.globalbin.servlets;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small synchronized LRU map bounded by a total weight (entry count by
+ * default). Subclasses override {@link #weigh(Object)} to bound by bytes and
+ * {@link #onEvict(Object, Object)} to demote or release evicted values.
+ */
+public class LruCache<K, V> {
+
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private final long maxWeight;
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public LruCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Weight of a single value, defaults to 1 so the cache is bounded by
+     * entry count.
+     */
+    protected long weigh(V value) {
+        return 1;
+    }
+
+    /**
+     * Called outside the cache lock for every entry pushed out by the size
+     * bound.
+     */
+    protected void onEvict(K key, V value) {
+    }
+
+    public V get(K key) {
+        V value;
+        synchronized (this) {
+            value = map.get(key);
+        }
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        long w = weigh(value);
+        if (w > maxWeight) {
+            return;
+        }
+        List<Map.Entry<K, V>> evicted = new ArrayList<Map.Entry<K, V>>();
+        synchronized (this) {
+            V previous = map.put(key, value);
+            if (previous != null) {
+                weight -= weigh(previous);
+            }
+            weight += w;
+            Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+            while (weight > maxWeight && it.hasNext()) {
+                Map.Entry<K, V> eldest = it.next();
+                it.remove();
+                weight -= weigh(eldest.getValue());
+                evicted.add(eldest);
+            }
+        }
+        for (Map.Entry<K, V> e : evicted) {
+            evictions.incrementAndGet();
+            onEvict(e.getKey(), e.getValue());
+        }
+    }
+
+    public V remove(K key) {
+        V value;
+        synchronized (this) {
+            value = map.remove(key);
+            if (value != null) {
+                weight -= weigh(value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Snapshot of the current keys, most recently used last.
+     */
+    public synchronized List<K> keys() {
+        return new ArrayList<K>(map.keySet());
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,71 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+
+/**
+ * Recognises image formats by their leading magic bytes, so the stored
+ * <code>jcr:mimeType</code> does not depend on what the client declared.
+ */
+final class MimeSniffer {
+
+    /** Bytes needed to tell all known formats apart. */
+    static final int HEAD_LENGTH = 12;
+
+    private MimeSniffer() {
+    }
+
+    /**
+     * The image mime type of <code>head</code>, or null if it is not an
+     * image format we know.
+     */
+    static String sniff(byte[] head, int length) {
+        if (startsWith(head, length, 0xff, 0xd8, 0xff)) {
+            return "image/jpeg";
+        }
+        if (startsWith(head, length, 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a)) {
+            return "image/png";
+        }
+        if (startsWith(head, length, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        }
+        if (startsWith(head, length, 'R', 'I', 'F', 'F') && length >= 12 && head[8] == 'W' && head[9] == 'E'
+                && head[10] == 'B' && head[11] == 'P') {
+            return "image/webp";
+        }
+        if (startsWith(head, length, 'B', 'M')) {
+            return "image/bmp";
+        }
+        if (startsWith(head, length, 'I', 'I', 0x2a, 0x00) || startsWith(head, length, 'M', 'M', 0x00, 0x2a)) {
+            return "image/tiff";
+        }
+        return null;
+    }
+
+    /**
+     * Peeks at the head of <code>in</code> and pushes it back. The stream
+     * must have been created with room for {@link #HEAD_LENGTH} bytes.
+     */
+    static String sniff(PushbackInputStream in) throws IOException {
+        byte[] head = new byte[HEAD_LENGTH];
+        int length = 0;
+        int n;
+        while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+            length += n;
+        }
+        in.unread(head, 0, length);
+        return sniff(head, length);
+    }
+
+    private static boolean startsWith(byte[] head, int length, int... magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[i] & 0xff) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,257 @@
+package com.globalbin.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads a <code>multipart/form-data</code> or <code>multipart/mixed</code>
+ * body part by part straight from the request stream. Only a fixed buffer is
+ * held; the body of each part is handed out as an {@link InputStream} that
+ * ends at the next boundary, so parts of any size can be copied elsewhere
+ * without being kept in memory or in temporary files.
+ */
+class MultipartStream {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_HEADER_LINE = 8192;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int head;
+    private int tail;
+    private boolean eof;
+    private boolean done;
+
+    private PartStream current;
+    private Map<String, String> headers = new HashMap<String, String>();
+
+    MultipartStream(InputStream in, String boundary, int bufferSize) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(UTF_8);
+        this.buf = new byte[Math.max(bufferSize, 4 * delimiter.length)];
+        // lets the first boundary, which has no CRLF in front, match the delimiter
+        buf[0] = '\r';
+        buf[1] = '\n';
+        tail = 2;
+        // the preamble is skipped like the body of a part
+        current = new PartStream();
+    }
+
+    /**
+     * The boundary of a multipart content type, or null if there is none.
+     */
+    static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/")) {
+            return null;
+        }
+        return parameter(contentType, "boundary");
+    }
+
+    /**
+     * A parameter of a header value such as <code>form-data; name="file";
+     * filename="a.jpg"</code>, unquoted, or null.
+     */
+    static String parameter(String headerValue, String name) {
+        if (headerValue == null) {
+            return null;
+        }
+        for (String part : headerValue.split(";")) {
+            int eq = part.indexOf('=');
+            if (eq > 0 && part.substring(0, eq).trim().equalsIgnoreCase(name)) {
+                String value = part.substring(eq + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves to the next part, skipping whatever is left of the current one.
+     * Returns false after the closing boundary.
+     */
+    boolean next() throws IOException {
+        if (current != null) {
+            current.skipRest();
+            current = null;
+        }
+        if (done) {
+            return false;
+        }
+        if (!ensure(2)) {
+            throw new IOException("Unexpected end of multipart stream");
+        }
+        if (buf[head] == '-' && buf[head + 1] == '-') {
+            done = true;
+            return false;
+        }
+        // rest of the boundary line, normally just CRLF
+        readLine();
+        headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine()).length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        current = new PartStream();
+        return true;
+    }
+
+    /**
+     * A header of the current part, by case insensitive name.
+     */
+    String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * The file name of the current part, without any directories a browser
+     * may have sent along, or null.
+     */
+    String getFileName() {
+        String fileName = parameter(getHeader("content-disposition"), "filename");
+        if (fileName == null) {
+            return null;
+        }
+        int slash = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
+        return fileName.substring(slash + 1);
+    }
+
+    /**
+     * The body of the current part. It ends at the next boundary.
+     */
+    InputStream getInputStream() {
+        return current;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            if (!ensure(1)) {
+                throw new IOException("Unexpected end of multipart headers");
+            }
+            byte b = buf[head++];
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+            if (line.size() > MAX_HEADER_LINE) {
+                throw new IOException("Multipart header line too long");
+            }
+        }
+        return new String(line.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Makes at least <code>n</code> bytes available, returns false if the
+     * stream ends first.
+     */
+    private boolean ensure(int n) throws IOException {
+        while (tail - head < n) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (head > 0) {
+            System.arraycopy(buf, head, buf, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        int n = in.read(buf, tail, buf.length - tail);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        tail += n;
+        return true;
+    }
+
+    private int indexOfDelimiter() {
+        int last = tail - delimiter.length;
+        outer: for (int i = head; i <= last; i++) {
+            if (buf[i] != delimiter[0]) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Part body, up to the next delimiter. Bytes that could be the start of
+     * a delimiter are only released once more input rules it out.
+     */
+    private class PartStream extends InputStream {
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (ended || current != this) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int idx = indexOfDelimiter();
+                int available = idx >= 0 ? idx - head : tail - head - (delimiter.length - 1);
+                if (available > 0) {
+                    int n = Math.min(len, available);
+                    System.arraycopy(buf, head, b, off, n);
+                    head += n;
+                    return n;
+                }
+                if (idx >= 0) {
+                    head = idx + delimiter.length;
+                    ended = true;
+                    return -1;
+                }
+                if (!fill()) {
+                    throw new IOException("Unexpected end of multipart stream");
+                }
+            }
+        }
+
+        void skipRest() throws IOException {
+            byte[] skip = new byte[4096];
+            while (read(skip, 0, skip.length) >= 0) {
+                // discard
+            }
+        }
+
+        @Override
+        public void close() {
+            // the request stream is closed by the container
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.globalbin.servlets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+/**
+ * Writes a JCR subtree straight to a {@link JSONWriter}, in the same shape
+ * <code>/bin/api/page</code> accepts: properties as members, children as
+ * nested objects. Nothing but the current path is held in memory.
+ *
+ * Binary properties are written as their length under <code>":name"</code>,
+ * like the default Sling JSON rendering. When a node has more children than
+ * the limit, <code>":next"</code> holds the cursor for the following page.
+ */
+class NodeJsonWriter {
+
+    static final String NEXT_KEY = ":next";
+
+    private final JSONWriter w;
+    private final String[] propertyPatterns;
+    private final int limit;
+
+    /**
+     * @param propertyPatterns names to include, a trailing <code>*</code>
+     *            matches a prefix; null includes every property
+     * @param limit children written per node
+     */
+    NodeJsonWriter(JSONWriter w, String[] propertyPatterns, int limit) {
+        this.w = w;
+        this.propertyPatterns = propertyPatterns;
+        this.limit = limit;
+    }
+
+    /**
+     * Writes <code>node</code> with <code>depth</code> levels of children,
+     * starting its children at <code>offset</code>. Returns the cursor of
+     * the next page of its children, or -1 if there is none.
+     */
+    long write(Node node, int depth, long offset) throws RepositoryException, JSONException {
+        w.object();
+        writeProperties(node);
+        long next = -1;
+        if (depth > 0) {
+            next = writeChildren(node, depth, offset);
+            if (next >= 0) {
+                w.key(NEXT_KEY).value(Long.toString(next));
+            }
+        }
+        w.endObject();
+        return next;
+    }
+
+    private long writeChildren(Node node, int depth, long offset) throws RepositoryException, JSONException {
+        NodeIterator it = node.getNodes();
+        if (offset > 0) {
+            try {
+                it.skip(offset);
+            } catch (java.util.NoSuchElementException e) {
+                return -1;
+            }
+        }
+        int written = 0;
+        while (it.hasNext()) {
+            if (written == limit) {
+                return offset + written;
+            }
+            Node child = it.nextNode();
+            w.key(child.getName());
+            write(child, depth - 1, 0);
+            written++;
+        }
+        return -1;
+    }
+
+    private void writeProperties(Node node) throws RepositoryException, JSONException {
+        for (PropertyIterator it = node.getProperties(); it.hasNext();) {
+            Property p = it.nextProperty();
+            if (!included(p.getName())) {
+                continue;
+            }
+            if (p.getType() == PropertyType.BINARY) {
+                if (p.isMultiple()) {
+                    w.key(":" + p.getName()).array();
+                    for (long length : p.getLengths()) {
+                        w.value(length);
+                    }
+                    w.endArray();
+                } else {
+                    w.key(":" + p.getName()).value(p.getLength());
+                }
+            } else if (p.isMultiple()) {
+                w.key(p.getName()).array();
+                for (Value v : p.getValues()) {
+                    writeValue(v);
+                }
+                w.endArray();
+            } else {
+                w.key(p.getName());
+                writeValue(p.getValue());
+            }
+        }
+    }
+
+    private void writeValue(Value v) throws RepositoryException, JSONException {
+        switch (v.getType()) {
+        case PropertyType.LONG:
+            w.value(v.getLong());
+            break;
+        case PropertyType.DOUBLE:
+            w.value(v.getDouble());
+            break;
+        case PropertyType.BOOLEAN:
+            w.value(v.getBoolean());
+            break;
+        default:
+            w.value(v.getString());
+        }
+    }
+
+    boolean included(String name) {
+        if (propertyPatterns == null) {
+            return true;
+        }
+        for (String pattern : propertyPatterns) {
+            if (pattern.endsWith("*") ? name.startsWith(pattern.substring(0, pattern.length() - 1))
+                    : name.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a comma separated <code>props</code> parameter; null or empty
+     * means all properties.
+     */
+    static String[] parsePatterns(String props) {
+        if (props == null || props.trim().length() == 0) {
+            return null;
+        }
+        List<String> patterns = new ArrayList<String>();
+        for (String p : props.split(",")) {
+            if (p.trim().length() > 0) {
+                patterns.add(p.trim());
+            }
+        }
+        return patterns.toArray(new String[patterns.size()]);
+    }
+}
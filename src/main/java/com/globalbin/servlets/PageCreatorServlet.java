@@ -3,15 +3,19 @@ package com.globalbin.servlets;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.jcr.Node;
-import javax.jcr.Repository;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.SimpleCredentials;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
@@ -21,8 +25,11 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,14 +43,103 @@ public class PageCreatorServlet extends SlingAllMethodsServlet {
     private static final long serialVersionUID = 9837495234L;
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
+    private static final String BULK_MODE = "bulk";
+
+    private static final String STREAM_MODE = "stream";
+
+    private static final int DEFAULT_BATCH_SIZE = 500;
+
+    private static final int DEFAULT_DEPTH = 1;
+
+    private static final int MAX_DEPTH = 10;
+
+    private static final int DEFAULT_LIMIT = 100;
+
+    private static final int MAX_LIMIT = 1000;
+
+    @Property(intValue = 4)
+    private static final String IMPORT_PARALLELISM_PROPERTY = "import.parallelism";
+
+    @Property(intValue = 3)
+    private static final String IMPORT_MAX_ATTEMPTS_PROPERTY = "import.maxAttempts";
+
     @Reference
-    Repository repository;
-    
-    Session session;
-    
+    WriteSessionProvider sessions;
+
+    private ForkJoinPool importPool;
+
+    private int maxAttempts = 3;
+
+    protected void activate(ComponentContext context) {
+        int parallelism = Math.max(1, ConfigUtil.toInt(context.getProperties(), IMPORT_PARALLELISM_PROPERTY, 4));
+        maxAttempts = Math.max(1, ConfigUtil.toInt(context.getProperties(), IMPORT_MAX_ATTEMPTS_PROPERTY, 3));
+        importPool = new ForkJoinPool(parallelism);
+    }
+
+    protected void deactivate(ComponentContext context) {
+        importPool.shutdownNow();
+    }
+
+    /**
+     * Streams the node at <code>path</code> as <code>{"path": ..., "jcr":
+     * {...}}</code>, the same shape the POST accepts; <code>path</code> is
+     * written absolute, which every POST mode resolves like the relative
+     * form. <code>depth</code> levels of children are included, each node
+     * lists at most <code>limit</code> children, and <code>props</code>
+     * restricts the properties to a comma separated list of names or
+     * <code>prefix*</code> patterns. If the node has more children, <code>next</code> is the
+     * <code>cursor</code> for the following page; nested nodes carry their
+     * own under <code>":next"</code>. Reads use the requesting user's session.
+     */
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        String path = request.getParameter("path");
+        Session session = request.getResourceResolver().adaptTo(Session.class);
+        if (path == null || session == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        path = JcrUtil.absolutePath(path);
+        int depth = Math.max(0, Math.min(MAX_DEPTH, getIntParameter(request, "depth", DEFAULT_DEPTH)));
+        int limit = Math.max(1, Math.min(MAX_LIMIT, getIntParameter(request, "limit", DEFAULT_LIMIT)));
+        long cursor = Math.max(0, getIntParameter(request, "cursor", 0));
+        try {
+            if (!session.nodeExists(path)) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+            Node node = session.getNode(path);
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            JSONWriter w = new JSONWriter(response.getWriter());
+            w.object();
+            w.key("path").value(node.getPath());
+            w.key("jcr");
+            long next = new NodeJsonWriter(w, NodeJsonWriter.parsePatterns(request.getParameter("props")), limit)
+                    .write(node, depth, cursor);
+            if (next >= 0) {
+                w.key("next").value(Long.toString(next));
+            }
+            w.endObject();
+        } catch (RepositoryException e) {
+            log.error("Reading " + path + " failed", e);
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Error writing " + path, e);
+        }
+    }
+
     @Override
     protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
             throws ServletException, IOException {
+
+        if (STREAM_MODE.equals(request.getParameter("mode")) || isNdjson(request.getContentType())) {
+            streamingImport(request, response);
+            return;
+        }
         
         StringBuffer jb = new StringBuffer();
         String line = null;
@@ -58,10 +154,32 @@ public class PageCreatorServlet extends SlingAllMethodsServlet {
         JSONObject jsonObject = null;
         try {
           jsonObject = new JSONObject(jb.toString());
+
+          JSONArray imports = jsonObject.optJSONArray("imports");
+          if (imports != null) {
+              parallelImport(imports, getBatchSize(request), response);
+              return;
+          }
           
           JSONObject jcrJsonObject = getChildJson("jcr", jsonObject);
-          String path = jsonObject.getString("path").trim();          
-          createNode(path, jcrJsonObject);         
+          String path = JcrUtil.absolutePath(jsonObject.getString("path"));
+          if (BULK_MODE.equals(request.getParameter("mode"))) {
+              bulkImport(path, jcrJsonObject, getBatchSize(request), response);
+              return;
+          }
+          try {
+              createNode(path, jcrJsonObject);
+          } catch (WriteSessionProvider.SaturatedException e) {
+              sendSaturated(response);
+              return;
+          } catch (PathNotFoundException e) {
+              response.sendError(HttpServletResponse.SC_NOT_FOUND, path + " does not exist");
+              return;
+          } catch (RepositoryException e) {
+              log.error("Import into " + path + " failed", e);
+              response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+              return;
+          }
           response.setContentType("application/json");
           PrintWriter out = response.getWriter();
           out.print(jcrJsonObject);
@@ -71,21 +189,271 @@ public class PageCreatorServlet extends SlingAllMethodsServlet {
         }
     }    
     
-    private void createNode(String path, JSONObject jsonObject) {
+    private void createNode(String path, JSONObject jsonObject) throws RepositoryException {
+        Session session = null;
         try {
-            session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
-            Node root = session.getRootNode();
-            Node context = root.getNode(path);
-            if (context!=null) {
-                log.info("Creating nodes under " + context.getPath());
-                traverseJSON(context, jsonObject);                
-            }
+            session = sessions.acquire();
+            Node context = session.getNode(path);
+            log.info("Creating nodes under " + context.getPath());
+            traverseJSON(context, jsonObject);
             session.save();
-            session.logout();
-        } catch (RepositoryException e) {
+        } finally {
+            sessions.release(session);
         }
     }
+
+    private static void sendSaturated(SlingHttpServletResponse response) throws IOException {
+        response.setHeader("Retry-After", "1");
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
     
+    /**
+     * Imports the whole tree with one save per <code>batchSize</code> nodes
+     * (one transaction if zero) and answers with a JSON summary. On failure
+     * the unsaved part is rolled back with <code>session.refresh(false)</code>.
+     */
+    private void bulkImport(String path, JSONObject jsonObject, int batchSize, SlingHttpServletResponse response)
+            throws IOException, JSONException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        Session bulkSession = null;
+        BulkImport bulk = null;
+        String error = null;
+        try {
+            bulkSession = sessions.acquire();
+            bulk = new BulkImport(bulkSession, batchSize);
+            Node context = bulkSession.getNode(path);
+            log.info("Bulk importing nodes under {} with batch size {}", context.getPath(), batchSize);
+            importJSON(context, jsonObject, bulk);
+            bulk.commit();
+        } catch (WriteSessionProvider.SaturatedException e) {
+            sendSaturated(response);
+            return;
+        } catch (Exception e) {
+            log.error("Bulk import into " + path + " failed", e);
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+            if (bulk != null) {
+                try {
+                    bulk.rollback();
+                } catch (RepositoryException re) {
+                    log.warn("Rollback failed: {}", re.getMessage());
+                }
+            }
+        } finally {
+            sessions.release(bulkSession);
+        }
+
+        if (error != null) {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        JSONWriter w = new JSONWriter(response.getWriter());
+        w.object();
+        w.key("path").value(path);
+        w.key("status").value(error == null ? "ok" : "failed");
+        if (error != null) {
+            w.key("error").value(error);
+        }
+        if (bulk != null) {
+            bulk.writeSummary(w);
+        }
+        w.endObject();
+    }
+
+    /**
+     * Imports one or more page documents (NDJSON, or JSON documents
+     * following each other) straight from the request reader, creating nodes
+     * as tokens arrive. Every document is committed in batches like
+     * {@link #bulkImport}; the first failing document is rolled back and ends
+     * the import.
+     */
+    private void streamingImport(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        int batchSize = getBatchSize(request);
+        Session importSession;
+        try {
+            importSession = sessions.acquire();
+        } catch (WriteSessionProvider.SaturatedException e) {
+            sendSaturated(response);
+            return;
+        } catch (RepositoryException e) {
+            log.error("Streaming import failed", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+        try {
+            JSONWriter w = new JSONWriter(response.getWriter());
+            w.object();
+            w.key("documents").array();
+            String error = null;
+            try {
+                StreamingPageImporter importer = new StreamingPageImporter(
+                        new JsonStreamReader(request.getReader()), importSession);
+                while (error == null && importer.hasNext()) {
+                    BulkImport bulk = new BulkImport(importSession, batchSize);
+                    String path = null;
+                    try {
+                        path = importer.importNext(bulk);
+                        bulk.commit();
+                    } catch (Exception e) {
+                        log.error("Streaming import failed", e);
+                        error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+                        bulk.rollback();
+                    }
+                    w.object();
+                    w.key("path").value(path);
+                    w.key("status").value(error == null ? "ok" : "failed");
+                    bulk.writeSummary(w);
+                    w.endObject();
+                }
+            } catch (RepositoryException e) {
+                log.error("Streaming import failed", e);
+                error = e.getMessage();
+            }
+            w.endArray();
+            if (error != null && !response.isCommitted()) {
+                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            w.key("status").value(error == null ? "ok" : "failed");
+            if (error != null) {
+                w.key("error").value(error);
+            }
+            w.endObject();
+        } catch (JSONException e) {
+            throw new IOException("Error writing import summary", e);
+        } finally {
+            sessions.release(importSession);
+        }
+    }
+
+    /**
+     * Imports independent subtrees concurrently, each
+     * <code>{"path": ..., "jcr": {...}}</code> of <code>imports</code> on
+     * the shared pool of <code>import.parallelism</code> threads with a
+     * session of its own. A subtree that fails is reported and does not
+     * affect the others; one that hits a conflicting concurrent change is
+     * retried, up to <code>import.maxAttempts</code> times. Subtrees are
+     * merged into existing content, so a retry continues where the saved
+     * batches of the previous attempt ended.
+     */
+    private void parallelImport(JSONArray imports, int batchSize, SlingHttpServletResponse response)
+            throws IOException, JSONException {
+        List<SubtreeImport> tasks = new ArrayList<SubtreeImport>();
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < imports.length(); i++) {
+            JSONObject subtree = imports.optJSONObject(i);
+            JSONObject jcr = getChildJson("jcr", subtree);
+            String path = subtree != null ? subtree.optString("path", "").trim() : "";
+            if (jcr == null || path.length() == 0) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "imports[" + i + "] needs a path and jcr");
+                return;
+            }
+            path = JcrUtil.absolutePath(path);
+            tasks.add(new SubtreeImport(this, sessions, path, jcr, batchSize, maxAttempts));
+            paths.add(path);
+        }
+        String[] overlap = SubtreeImport.overlapping(paths);
+        if (overlap != null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "subtrees " + overlap[0] + " and "
+                    + overlap[1] + " overlap");
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            importPool.invokeAll(tasks);
+        } catch (RejectedExecutionException e) {
+            sendSaturated(response);
+            return;
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        int failed = 0;
+        long nodes = 0;
+        for (SubtreeImport task : tasks) {
+            if (task.getError() != null) {
+                failed++;
+            }
+            nodes += task.getCommittedNodes();
+        }
+        log.info("Imported {} subtrees, {} failed, {} nodes in {}ms",
+                new Object[] { tasks.size(), failed, nodes, elapsedNanos / 1000000 });
+        if (failed > 0) {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        JSONWriter w = new JSONWriter(response.getWriter());
+        w.object();
+        w.key("status").value(failed == 0 ? "ok" : "failed");
+        w.key("subtrees").array();
+        for (SubtreeImport task : tasks) {
+            task.writeSummary(w);
+        }
+        w.endArray();
+        w.key("failed").value(failed);
+        w.key("committedNodes").value(nodes);
+        w.key("elapsedMillis").value(elapsedNanos / 1000000);
+        w.key("nodesPerSecond").value(SubtreeImport.perSecond(nodes, elapsedNanos));
+        w.endObject();
+    }
+
+    private static boolean isNdjson(String contentType) {
+        return contentType != null
+                && (contentType.startsWith("application/x-ndjson") || contentType.startsWith("application/ndjson"));
+    }
+
+    private int getBatchSize(SlingHttpServletRequest request) {
+        return getIntParameter(request, "batchSize", DEFAULT_BATCH_SIZE);
+    }
+
+    private static int getIntParameter(SlingHttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    // package visible for the JMH benchmarks
+    void importJSON(Node parent, JSONObject jsonObject, BulkImport bulk) throws JSONException,
+            RepositoryException {
+        importJSON(parent, jsonObject, bulk, false);
+    }
+
+    /**
+     * With <code>merge</code>, children that already exist are updated in
+     * place rather than added again.
+     */
+    void importJSON(Node parent, JSONObject jsonObject, BulkImport bulk, boolean merge) throws JSONException,
+            RepositoryException {
+        Iterator<?> keys = jsonObject.keys();
+        while (keys.hasNext()) {
+            String key = ((String) keys.next()).trim();
+            Object value = jsonObject.get(key);
+            if (value instanceof JSONObject) {
+                JSONObject childJson = (JSONObject) value;
+                Node childNode;
+                if (merge && parent.hasNode(key)) {
+                    childNode = parent.getNode(key);
+                } else {
+                    String primaryType = childJson.optString("jcr:primaryType", null);
+                    childNode = primaryType != null ? parent.addNode(key, primaryType) : parent.addNode(key);
+                    bulk.nodeAdded();
+                }
+                importJSON(childNode, childJson, bulk, merge);
+            } else if (value instanceof String && !key.equals("jcr:primaryType")) {
+                parent.setProperty(key, (String) value);
+                bulk.propertySet();
+            }
+        }
+    }
+
     private JSONObject getChildJson(String key, JSONObject jsonObject) {
         if (jsonObject == null) {
             return null;
@@ -100,7 +468,8 @@ public class PageCreatorServlet extends SlingAllMethodsServlet {
     }
 
     
-    private void traverseJSON(Node parent, JSONObject jsonObject) {
+    // package visible for the JMH benchmarks
+    void traverseJSON(Node parent, JSONObject jsonObject) {
         Iterator<?> keys = jsonObject.keys();        
         while(keys.hasNext()) {
             String key = (String) keys.next();
@@ -115,7 +484,7 @@ public class PageCreatorServlet extends SlingAllMethodsServlet {
                     } else {
                         childNode = parent.addNode(key);
                     }
-                    session.save();                      
+                    parent.getSession().save();
                     // depth first traversal
                     traverseJSON(childNode, childJson);
                     
@@ -125,7 +494,7 @@ public class PageCreatorServlet extends SlingAllMethodsServlet {
                     if (!key.equals("jcr:primaryType")) {
                         log.info(parent.getName()+": property >>> " + key+ " : " + value);
                         parent.setProperty(key, value);
-                        session.save();
+                        parent.getSession().save();
                     }
                 }
             } catch (JSONException e) {
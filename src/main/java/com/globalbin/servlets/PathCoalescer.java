@@ -0,0 +1,76 @@
+package com.globalbin.servlets;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects paths from observation events and releases each one once it has
+ * been pending for a full window. Repeated events for a pending path are
+ * folded into the first one, and the number of pending paths is bounded;
+ * paths offered beyond the bound are dropped and counted.
+ */
+class PathCoalescer {
+
+    private final long windowMillis;
+    private final int maxPending;
+
+    // insertion ordered, so the oldest path is always first
+    private final LinkedHashMap<String, Long> pending = new LinkedHashMap<String, Long>();
+
+    private long coalesced;
+    private long dropped;
+
+    PathCoalescer(long windowMillis, int maxPending) {
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    /**
+     * Returns false if the path was dropped because too many are pending.
+     */
+    synchronized boolean offer(String path, long now) {
+        if (pending.containsKey(path)) {
+            coalesced++;
+            return true;
+        }
+        if (pending.size() >= maxPending) {
+            dropped++;
+            return false;
+        }
+        pending.put(path, now);
+        return true;
+    }
+
+    /**
+     * Removes and returns up to <code>max</code> paths that were first seen
+     * at least a window before <code>now</code>, oldest first.
+     */
+    synchronized List<String> drain(long now, int max) {
+        List<String> ready = new ArrayList<String>();
+        Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator();
+        while (ready.size() < max && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (now - e.getValue() < windowMillis) {
+                break;
+            }
+            ready.add(e.getKey());
+            it.remove();
+        }
+        return ready;
+    }
+
+    synchronized int getPending() {
+        return pending.size();
+    }
+
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,43 @@
+package com.globalbin.servlets;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evenly spaced permits: <code>acquire(n)</code> waits until <code>n</code>
+ * permits fit into the configured rate. A rate of zero or less disables the
+ * limit.
+ */
+class RateLimiter {
+
+    private final long nanosPerPermit;
+    private long nextFree;
+    private boolean started;
+
+    RateLimiter(double permitsPerSecond) {
+        this.nanosPerPermit = permitsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond) : 0;
+    }
+
+    void acquire(int permits) throws InterruptedException {
+        long wait = reserve(permits, System.nanoTime());
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Books <code>permits</code> and returns how long the caller has to wait
+     * for them, in nanoseconds.
+     */
+    synchronized long reserve(int permits, long now) {
+        if (nanosPerPermit == 0) {
+            return 0;
+        }
+        if (!started || nextFree - now < 0) {
+            nextFree = now;
+            started = true;
+        }
+        long start = nextFree;
+        nextFree = start + permits * nanosPerPermit;
+        return start - now;
+    }
+}
@@ -0,0 +1,56 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+/**
+ * Readiness probe for load balancers: 200 once the {@link WarmStart} is
+ * done, 503 with <code>Retry-After</code> while it is still warming up.
+ * The body carries the warm start progress either way.
+ */
+@SlingServlet(paths = "/bin/api/ready")
+@Properties({
+    @Property(name = "service.description", value = "Readiness Servlet"),
+    @Property(name = "service.vendor", value = "The Global Bin")
+})
+public class ReadinessServlet extends SlingSafeMethodsServlet {
+    private static final long serialVersionUID = -6206945917470415163L;
+
+    @Reference
+    private WarmStart warmStart;
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        if (!warmStart.isReady()) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", "5");
+        }
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        try {
+            JSONWriter w = new JSONWriter(response.getWriter());
+            w.object();
+            for (Map.Entry<String, Object> e : warmStart.getStats().entrySet()) {
+                w.key(e.getKey()).value(e.getValue());
+            }
+            w.endObject();
+        } catch (JSONException e) {
+            throw new IOException("Error writing readiness", e);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.globalbin.servlets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Two tier cache for encoded image renditions. Entries are keyed by content
+ * path, <code>jcr:lastModified</code> and a rendition variant (e.g. the target
+ * width). The heap tier is an LRU bounded in bytes; entries pushed out of it
+ * are demoted to a bounded directory on disk. Entries below
+ * <code>content.path</code> are dropped as soon as the repository reports a
+ * change to the underlying node.
+ *
+ * Lookups are counted per key, for up to <code>cache.hotKeys</code> keys,
+ * so the most requested renditions can be listed with {@link #hottest(int)}
+ * and replayed by {@link WarmStart} after a restart. When the table is
+ * full all counts are halved and keys that drop to zero are forgotten.
+ */
+@Component(immediate = true, metatype = true, label = "GlobalBin Rendition Cache")
+@Service({ RenditionCache.class, StatsProvider.class })
+@Property(name = "service.description", value = "GlobalBin Rendition Cache")
+public class RenditionCache implements EventListener, StatsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(RenditionCache.class);
+
+    @Property(value = "/content/images")
+    private static final String CONTENT_PATH_PROPERTY = "content.path";
+
+    @Property(longValue = 32L * 1024 * 1024)
+    private static final String MEMORY_MAX_BYTES_PROPERTY = "cache.memory.maxBytes";
+
+    @Property(longValue = 256L * 1024 * 1024)
+    private static final String DISK_MAX_BYTES_PROPERTY = "cache.disk.maxBytes";
+
+    @Property(value = "")
+    private static final String DISK_PATH_PROPERTY = "cache.disk.path";
+
+    @Property(intValue = 4096)
+    private static final String HOT_KEYS_PROPERTY = "cache.hotKeys";
+
+    /** Only files with this prefix are ours, the directory may be shared. */
+    private static final String PREFIX = "rendition-";
+
+    @Reference
+    private SlingRepository repository;
+
+    private Session session;
+    private ObservationManager observationManager;
+
+    private LruCache<String, byte[]> memory;
+    private LruCache<String, Long> disk;
+    private File directory;
+
+    private final ConcurrentHashMap<String, AtomicLong> demand = new ConcurrentHashMap<String, AtomicLong>();
+    private int maxHotKeys;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    protected void activate(ComponentContext context) throws Exception {
+        Dictionary<?, ?> props = context.getProperties();
+        String contentPath = ConfigUtil.toString(props, CONTENT_PATH_PROPERTY, "/content/images");
+        long memoryMax = ConfigUtil.toLong(props, MEMORY_MAX_BYTES_PROPERTY, 32L * 1024 * 1024);
+        long diskMax = ConfigUtil.toLong(props, DISK_MAX_BYTES_PROPERTY, 256L * 1024 * 1024);
+        String diskPath = ConfigUtil.toString(props, DISK_PATH_PROPERTY,
+                new File(System.getProperty("java.io.tmpdir"), "gb-renditions").getPath());
+        maxHotKeys = Math.max(1, ConfigUtil.toInt(props, HOT_KEYS_PROPERTY, 4096));
+
+        directory = new File(diskPath);
+        clearDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create rendition cache directory " + directory);
+        }
+
+        disk = new LruCache<String, Long>(diskMax) {
+            @Override
+            protected long weigh(Long size) {
+                return size;
+            }
+
+            @Override
+            protected void onEvict(String key, Long size) {
+                fileFor(key).delete();
+            }
+        };
+        memory = new LruCache<String, byte[]>(memoryMax) {
+            @Override
+            protected long weigh(byte[] value) {
+                return value.length;
+            }
+
+            @Override
+            protected void onEvict(String key, byte[] value) {
+                writeToDisk(key, value);
+            }
+        };
+
+        session = repository.loginService("datawrite", repository.getDefaultWorkspace());
+        if ("true".equals(repository.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED))) {
+            observationManager = session.getWorkspace().getObservationManager();
+            int types = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED | Event.PROPERTY_ADDED
+                    | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+            observationManager.addEventListener(this, types, contentPath, true, null, null, false);
+        } else {
+            log.warn("Observation not supported, cached renditions are only invalidated by jcr:lastModified");
+        }
+        log.info("Activated: RenditionCache, memory={} bytes, disk={} bytes at {}", memoryMax, diskMax, directory);
+    }
+
+    protected void deactivate(ComponentContext context) throws RepositoryException {
+        if (observationManager != null) {
+            observationManager.removeEventListener(this);
+            observationManager = null;
+        }
+        if (session != null) {
+            session.logout();
+            session = null;
+        }
+        memory.clear();
+        disk.clear();
+        demand.clear();
+        clearDirectory();
+    }
+
+    /**
+     * Builds the cache key for a rendition of the <code>nt:file</code> at
+     * <code>path</code>.
+     */
+    public static String key(String path, long lastModified, String variant) {
+        return path + "|" + lastModified + "|" + variant;
+    }
+
+    /**
+     * Returns the cached bytes for <code>key</code>, or null on a miss.
+     * Disk hits are promoted back to the heap tier.
+     */
+    public byte[] get(String key) {
+        countDemand(key);
+        byte[] value = memory.get(key);
+        if (value != null) {
+            memoryHits.incrementAndGet();
+            return value;
+        }
+        if (disk.get(key) != null) {
+            try {
+                value = Files.readAllBytes(fileFor(key).toPath());
+                diskHits.incrementAndGet();
+                disk.remove(key);
+                fileFor(key).delete();
+                memory.put(key, value);
+                return value;
+            } catch (IOException e) {
+                log.debug("Dropping unreadable disk entry {}", key);
+                disk.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, byte[] value) {
+        memory.put(key, value);
+    }
+
+    /**
+     * Drops every entry for <code>path</code> and its descendants.
+     */
+    public void invalidate(String path) {
+        String self = path + "|";
+        String below = path + "/";
+        for (String key : memory.keys()) {
+            if (key.startsWith(self) || key.startsWith(below)) {
+                memory.remove(key);
+                invalidations.incrementAndGet();
+            }
+        }
+        for (String key : disk.keys()) {
+            if (key.startsWith(self) || key.startsWith(below)) {
+                disk.remove(key);
+                fileFor(key).delete();
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public void onEvent(EventIterator it) {
+        while (it.hasNext()) {
+            Event event = it.nextEvent();
+            try {
+                String path = event.getPath();
+                int content = path.indexOf("/jcr:content");
+                invalidate(content >= 0 ? path.substring(0, content) : path);
+            } catch (RepositoryException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Up to <code>n</code> keys, most requested first.
+     */
+    public List<String> hottest(int n) {
+        // counts keep moving, so sort a snapshot
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : demand.entrySet()) {
+            counts.put(e.getKey(), e.getValue().get());
+        }
+        List<String> keys = new ArrayList<String>(counts.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return Long.compare(counts.get(b), counts.get(a));
+            }
+        });
+        return keys.size() > n ? new ArrayList<String>(keys.subList(0, n)) : keys;
+    }
+
+    private void countDemand(String key) {
+        AtomicLong count = demand.get(key);
+        if (count == null) {
+            if (demand.size() >= maxHotKeys) {
+                decayDemand();
+            }
+            AtomicLong fresh = new AtomicLong();
+            count = demand.putIfAbsent(key, fresh);
+            if (count == null) {
+                count = fresh;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private synchronized void decayDemand() {
+        if (demand.size() < maxHotKeys) {
+            return;
+        }
+        for (Map.Entry<String, AtomicLong> e : demand.entrySet()) {
+            long halved = e.getValue().get() / 2;
+            e.getValue().set(halved);
+            if (halved == 0) {
+                demand.remove(e.getKey());
+            }
+        }
+    }
+
+    public String getStatsName() {
+        return "renditionCache";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("hits", memoryHits.get() + diskHits.get());
+        stats.put("memoryHits", memoryHits.get());
+        stats.put("diskHits", diskHits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", disk.getEvictions());
+        stats.put("demotions", memory.getEvictions());
+        stats.put("invalidations", invalidations.get());
+        stats.put("memoryEntries", memory.size());
+        stats.put("memoryBytes", memory.weight());
+        stats.put("diskEntries", disk.size());
+        stats.put("diskBytes", disk.weight());
+        stats.put("hotKeys", demand.size());
+        return stats;
+    }
+
+    private void writeToDisk(String key, byte[] value) {
+        try {
+            Files.write(fileFor(key).toPath(), value);
+            disk.put(key, Long.valueOf(value.length));
+        } catch (IOException e) {
+            log.warn("Unable to spill rendition {} to disk: {}", key, e.getMessage());
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(directory, PREFIX + Digests.sha1Hex(key));
+    }
+
+    private void clearDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(PREFIX)) {
+                    f.delete();
+                }
+            }
+        }
+    }
+}
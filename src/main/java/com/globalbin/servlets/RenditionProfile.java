@@ -0,0 +1,173 @@
+package com.globalbin.servlets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The renditions precomputed for every image. Each entry of
+ * <code>renditions.profile</code> reads
+ * <code>name=width[:format[:quality]]</code>; without a format the
+ * rendition keeps the format of the source. {@link ThumbnailGenerator}
+ * creates all of them, and {@link ImageServlet} serves the closest one for
+ * a width-only request, as long as it is at most
+ * <code>renditions.matchTolerancePercent</code> wider than asked for.
+ */
+@Component(immediate = true, metatype = true, label = "GlobalBin Rendition Profile")
+@Service(RenditionProfile.class)
+@Property(name = "service.description", value = "GlobalBin Rendition Profile")
+public class RenditionProfile {
+
+    private static final Logger log = LoggerFactory.getLogger(RenditionProfile.class);
+
+    @Property(value = { "xs=50", "s=100", "m=200", "l=250" }, cardinality = Integer.MAX_VALUE)
+    private static final String PROFILE_PROPERTY = "renditions.profile";
+
+    @Property(intValue = 25)
+    private static final String TOLERANCE_PROPERTY = "renditions.matchTolerancePercent";
+
+    static final String[] DEFAULT_PROFILE = { "xs=50", "s=100", "m=200", "l=250" };
+
+    /**
+     * One named rendition.
+     */
+    public static final class Entry {
+        private final String name;
+        private final int width;
+        private final String format;
+        private final int quality;
+
+        Entry(String name, int width, String format, int quality) {
+            this.name = name;
+            this.width = width;
+            this.format = format;
+            this.quality = quality;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * The output format, or null to keep the source format.
+         */
+        public String getFormat() {
+            return format;
+        }
+
+        public int getQuality() {
+            return quality;
+        }
+
+        public ResizeSpec toSpec(String sourceFormat) {
+            return new ResizeSpec(width, 0, ResizeSpec.Fit.CONTAIN, quality, format != null ? format : sourceFormat);
+        }
+    }
+
+    private volatile List<Entry> entries = Collections.emptyList();
+    private volatile int tolerancePercent = 25;
+
+    protected void activate(ComponentContext context) {
+        configure(ConfigUtil.toStringArray(context.getProperties(), PROFILE_PROPERTY, DEFAULT_PROFILE),
+                ConfigUtil.toInt(context.getProperties(), TOLERANCE_PROPERTY, 25));
+    }
+
+    void configure(String[] profile, int tolerancePercent) {
+        this.entries = parse(profile);
+        this.tolerancePercent = Math.max(0, tolerancePercent);
+        log.info("Rendition profile: {} entries, tolerance {}%", entries.size(), tolerancePercent);
+    }
+
+    /**
+     * Entries sorted by width. Malformed lines, and lines producing the same
+     * width and format as an earlier one, are skipped.
+     */
+    static List<Entry> parse(String[] profile) {
+        List<Entry> result = new ArrayList<Entry>();
+        Set<String> seen = new HashSet<String>();
+        for (String line : profile) {
+            try {
+                int eq = line.indexOf('=');
+                String name = line.substring(0, eq).trim();
+                String[] parts = line.substring(eq + 1).trim().split(":");
+                int width = Integer.parseInt(parts[0].trim());
+                String format = null;
+                if (parts.length > 1 && parts[1].trim().length() > 0 && !parts[1].trim().equals("source")) {
+                    format = ResizeSpec.chooseFormat(parts[1].trim());
+                    if (format == null) {
+                        throw new IllegalArgumentException("no writer for " + parts[1]);
+                    }
+                }
+                int quality = parts.length > 2 ? Integer.parseInt(parts[2].trim()) : ResizeSpec.DEFAULT_QUALITY;
+                if (name.length() == 0 || width <= 0 || !seen.add(width + ":" + format)) {
+                    throw new IllegalArgumentException("empty name, bad width or duplicate");
+                }
+                result.add(new Entry(name, width, format, quality));
+            } catch (RuntimeException e) {
+                log.warn("Ignoring rendition profile entry '{}': {}", line, e.getMessage());
+            }
+        }
+        Collections.sort(result, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.width < b.width ? -1 : (a.width == b.width ? 0 : 1);
+            }
+        });
+        return Collections.unmodifiableList(result);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * The specs of all entries for a source in <code>sourceFormat</code>.
+     * Thumbnails are named by width and format only, so when two entries
+     * resolve to the same width and format for this source, e.g.
+     * <code>200</code> and <code>200:jpeg:60</code> for a JPEG, only the
+     * first one is kept.
+     */
+    public List<ResizeSpec> specsFor(String sourceFormat) {
+        List<ResizeSpec> specs = new ArrayList<ResizeSpec>(entries.size());
+        Set<String> seen = new HashSet<String>();
+        for (Entry entry : entries) {
+            ResizeSpec spec = entry.toSpec(sourceFormat);
+            if (seen.add(spec.getWidth() + ":" + spec.getFormat())) {
+                specs.add(spec);
+            }
+        }
+        return specs;
+    }
+
+    /**
+     * The precomputed spec to serve for <code>requested</code>: the narrowest
+     * entry with the same format and quality that is at least as wide, within
+     * the tolerance. Null if the request has a height or no entry fits.
+     */
+    public ResizeSpec match(ResizeSpec requested, String sourceFormat) {
+        if (requested.getHeight() > 0 || requested.getWidth() <= 0) {
+            return null;
+        }
+        long maxWidth = requested.getWidth() + (long) requested.getWidth() * tolerancePercent / 100;
+        for (ResizeSpec spec : specsFor(sourceFormat)) {
+            if (spec.getWidth() >= requested.getWidth() && spec.getWidth() <= maxWidth
+                    && spec.getFormat().equals(requested.getFormat()) && spec.getQuality() == requested.getQuality()) {
+                return spec;
+            }
+        }
+        return null;
+    }
+}
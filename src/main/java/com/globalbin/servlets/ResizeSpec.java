@@ -0,0 +1,169 @@
+package com.globalbin.servlets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Parsed resize parameters. Selectors are parsed in any order:
+ * <ul>
+ * <li><code>w400</code> / <code>h300</code> - target box in pixels</li>
+ * <li><code>q80</code> - encoder quality (JPEG only)</li>
+ * <li><code>contain</code>, <code>cover</code>, <code>fill</code> - how the
+ * image is fitted when both width and height are given</li>
+ * <li><code>png</code>, <code>jpg</code>, <code>webp-or-png</code> - output
+ * format; alternatives separated by <code>-or-</code> are tried in order
+ * and the first one with a registered ImageIO writer wins</li>
+ * </ul>
+ */
+public final class ResizeSpec {
+
+    public enum Fit {
+        CONTAIN, COVER, FILL
+    }
+
+    /**
+     * Thrown for selectors that cannot be parsed.
+     */
+    public static class InvalidSpecException extends IllegalArgumentException {
+        private static final long serialVersionUID = 3512246701985213427L;
+
+        public InvalidSpecException(String message) {
+            super(message);
+        }
+    }
+
+    public static final int DEFAULT_QUALITY = 85;
+
+    private final int width;
+    private final int height;
+    private final Fit fit;
+    private final int quality;
+    private final String format;
+
+    public ResizeSpec(int width, int height, Fit fit, int quality, String format) {
+        this.width = width;
+        this.height = height;
+        this.fit = fit;
+        this.quality = quality;
+        this.format = format;
+    }
+
+    /**
+     * Parses <code>selectors</code>, starting at <code>offset</code> so the
+     * mode selector can be skipped. Missing values are taken from
+     * <code>defaultWidth</code> and the request <code>extension</code>.
+     */
+    public static ResizeSpec parse(String[] selectors, int offset, int defaultWidth, String extension) {
+        int width = 0;
+        int height = 0;
+        int quality = DEFAULT_QUALITY;
+        Fit fit = Fit.CONTAIN;
+        String format = null;
+        for (int i = offset; i < selectors.length; i++) {
+            String s = selectors[i];
+            if (s.length() > 1 && (s.charAt(0) == 'w' || s.charAt(0) == 'h' || s.charAt(0) == 'q')
+                    && isDigits(s, 1)) {
+                int value = Integer.parseInt(s.substring(1));
+                if (s.charAt(0) == 'w') {
+                    width = value;
+                } else if (s.charAt(0) == 'h') {
+                    height = value;
+                } else {
+                    quality = value;
+                }
+            } else if (s.equals("contain") || s.equals("cover") || s.equals("fill")) {
+                fit = Fit.valueOf(s.toUpperCase());
+            } else {
+                format = chooseFormat(s);
+                if (format == null) {
+                    throw new InvalidSpecException("Unsupported selector or format: " + s);
+                }
+            }
+        }
+        if (width == 0 && height == 0) {
+            width = defaultWidth;
+        }
+        if (format == null) {
+            format = chooseFormat(extension);
+            if (format == null) {
+                throw new InvalidSpecException("Unsupported extension: " + extension);
+            }
+        }
+        return new ResizeSpec(width, height, fit, quality, format);
+    }
+
+    /**
+     * Returns the first of the <code>-or-</code> separated alternatives that
+     * has an ImageIO writer, normalized to its canonical format name.
+     */
+    static String chooseFormat(String alternatives) {
+        if (alternatives == null) {
+            return null;
+        }
+        for (String candidate : split(alternatives)) {
+            String name = candidate.toLowerCase();
+            if (name.equals("jpg")) {
+                name = "jpeg";
+            }
+            if (ImageIO.getImageWritersByFormatName(name).hasNext()) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> split(String alternatives) {
+        List<String> result = new ArrayList<String>();
+        int start = 0;
+        int idx;
+        while ((idx = alternatives.indexOf("-or-", start)) >= 0) {
+            result.add(alternatives.substring(start, idx));
+            start = idx + 4;
+        }
+        result.add(alternatives.substring(start));
+        return result;
+    }
+
+    private static boolean isDigits(String s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return s.length() - from <= 5;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Fit getFit() {
+        return fit;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getMimeType() {
+        return format.equals("jpeg") ? "image/jpeg" : "image/" + format;
+    }
+
+    /**
+     * Canonical form, used as the rendition variant in cache keys and ETags.
+     */
+    @Override
+    public String toString() {
+        return "w" + width + ".h" + height + "." + fit.name().toLowerCase() + ".q" + quality + "." + format;
+    }
+}
@@ -0,0 +1,131 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+
+/**
+ * A small response body that is encoded to UTF-8 once. The template may
+ * contain a single {@link #PLACEHOLDER}; the static parts around it are kept
+ * as bytes, and the rendered variants are cached per value in a bounded LRU,
+ * so a repeated request costs one map lookup and one
+ * {@link OutputStream#write(byte[])}. Values are HTML escaped.
+ */
+public final class ResponseTemplate {
+
+    public static final String PLACEHOLDER = "${value}";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String contentType;
+    private final byte[] prefix;
+    private final byte[] suffix;
+    private final LruCache<String, byte[]> variants;
+
+    /**
+     * @param contentType mime type, sent with a UTF-8 charset
+     * @param template body, with at most one placeholder
+     * @param maxCachedBytes total size of the cached variants
+     */
+    public ResponseTemplate(String contentType, String template, long maxCachedBytes) {
+        this.contentType = contentType;
+        int at = template.indexOf(PLACEHOLDER);
+        if (at < 0) {
+            prefix = template.getBytes(UTF_8);
+            suffix = null;
+        } else {
+            prefix = template.substring(0, at).getBytes(UTF_8);
+            suffix = template.substring(at + PLACEHOLDER.length()).getBytes(UTF_8);
+        }
+        variants = new LruCache<String, byte[]>(maxCachedBytes) {
+            @Override
+            protected long weigh(byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    public ResponseTemplate(String contentType, String template) {
+        this(contentType, template, 0);
+    }
+
+    /**
+     * The encoded body for <code>value</code>, from the cache when possible.
+     */
+    public byte[] render(String value) {
+        if (suffix == null) {
+            return prefix;
+        }
+        byte[] body = variants.get(value);
+        if (body == null) {
+            byte[] middle = escapeHtml(value).getBytes(UTF_8);
+            body = new byte[prefix.length + middle.length + suffix.length];
+            System.arraycopy(prefix, 0, body, 0, prefix.length);
+            System.arraycopy(middle, 0, body, prefix.length, middle.length);
+            System.arraycopy(suffix, 0, body, prefix.length + middle.length, suffix.length);
+            variants.put(value, body);
+        }
+        return body;
+    }
+
+    /**
+     * Writes the body for <code>value</code> with an exact Content-Length.
+     */
+    public void write(SlingHttpServletResponse response, String value) throws IOException {
+        byte[] body = render(value);
+        response.setContentType(contentType);
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(body);
+    }
+
+    public void write(SlingHttpServletResponse response) throws IOException {
+        write(response, null);
+    }
+
+    LruCache<String, byte[]> getVariants() {
+        return variants;
+    }
+
+    static String escapeHtml(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+            case '<':
+                replacement = "&lt;";
+                break;
+            case '>':
+                replacement = "&gt;";
+                break;
+            case '&':
+                replacement = "&amp;";
+                break;
+            case '"':
+                replacement = "&quot;";
+                break;
+            default:
+                replacement = null;
+            }
+            if (replacement != null && sb == null) {
+                sb = new StringBuilder(value.length() + 16);
+                sb.append(value, 0, i);
+            }
+            if (sb != null) {
+                if (replacement != null) {
+                    sb.append(replacement);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb == null ? value : sb.toString();
+    }
+}
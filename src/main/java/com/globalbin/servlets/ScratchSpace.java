@@ -0,0 +1,232 @@
+package com.globalbin.servlets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Dictionary;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.jcr.Binary;
+import javax.jcr.RepositoryException;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opens JCR binaries as {@link ImageInputStream}s for decoding. Binaries of
+ * at least <code>scratch.spillThreshold</code> bytes are copied into a file
+ * in <code>scratch.path</code> and read back through its
+ * {@link RandomAccessFile}, so the decoder does not cache them on the heap.
+ * The file is deleted right away where the platform allows it, otherwise
+ * when the stream is closed; either way closing the stream closes the
+ * descriptor and frees the disk space. A memory mapping would pin the file
+ * until the buffer is garbage collected, which Java 7 cannot force, so the
+ * quota would not match the disk actually in use.
+ *
+ * The bytes of all open spilled streams are bounded by
+ * <code>scratch.maxBytes</code>; over the quota, binaries are read through
+ * the usual in-memory cache instead. Leftover files from a previous run are
+ * removed on activation.
+ */
+@Component(immediate = true, metatype = true, label = "GlobalBin Scratch Space")
+@Service({ ScratchSpace.class, StatsProvider.class })
+@Property(name = "service.description", value = "GlobalBin Scratch Space")
+public class ScratchSpace implements StatsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(ScratchSpace.class);
+
+    @Property(value = "")
+    private static final String PATH_PROPERTY = "scratch.path";
+
+    @Property(longValue = 512L * 1024 * 1024)
+    private static final String MAX_BYTES_PROPERTY = "scratch.maxBytes";
+
+    @Property(longValue = 2L * 1024 * 1024)
+    private static final String SPILL_THRESHOLD_PROPERTY = "scratch.spillThreshold";
+
+    private static final String PREFIX = "scratch-";
+
+    private File directory;
+    private long maxBytes;
+    private long spillThreshold;
+    private long reserved;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong inMemory = new AtomicLong();
+    private final AtomicLong quotaFallbacks = new AtomicLong();
+    private final AtomicLong bytesSpilled = new AtomicLong();
+
+    protected void activate(ComponentContext context) {
+        Dictionary<?, ?> props = context.getProperties();
+        String path = ConfigUtil.toString(props, PATH_PROPERTY, null);
+        configure(path != null ? new File(path) : new File(System.getProperty("java.io.tmpdir"), "gb-scratch"),
+                ConfigUtil.toLong(props, MAX_BYTES_PROPERTY, 512L * 1024 * 1024),
+                ConfigUtil.toLong(props, SPILL_THRESHOLD_PROPERTY, 2L * 1024 * 1024));
+        log.info("Activated: ScratchSpace at {}, quota {} bytes", directory, maxBytes);
+    }
+
+    void configure(File directory, long maxBytes, long spillThreshold) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.spillThreshold = spillThreshold;
+        directory.mkdirs();
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File f : leftovers) {
+                if (f.getName().startsWith(PREFIX) && !f.delete()) {
+                    log.warn("Unable to delete scratch file {}", f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a stream over the binary. Closing it releases everything it
+     * holds, including the binary's own stream.
+     */
+    public ImageInputStream open(Binary binary) throws IOException, RepositoryException {
+        long size = binary.getSize();
+        if (size >= spillThreshold) {
+            if (reserve(size)) {
+                try {
+                    return spill(binary, size);
+                } catch (IOException e) {
+                    release(size);
+                    throw e;
+                }
+            }
+            quotaFallbacks.incrementAndGet();
+        }
+        inMemory.incrementAndGet();
+        final InputStream in = binary.getStream();
+        return new MemoryCacheImageInputStream(in) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    private ImageInputStream spill(Binary binary, long size) throws IOException, RepositoryException {
+        File file = File.createTempFile(PREFIX, ".bin", directory);
+        RandomAccessFile raf = null;
+        boolean spilledOk = false;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            InputStream in = binary.getStream();
+            long position = 0;
+            try {
+                ReadableByteChannel source = Channels.newChannel(in);
+                while (position < size) {
+                    long n = channel.transferFrom(source, position, size - position);
+                    if (n <= 0) {
+                        break;
+                    }
+                    position += n;
+                }
+            } finally {
+                in.close();
+            }
+            raf.setLength(position);
+            raf.seek(0);
+            spilled.incrementAndGet();
+            bytesSpilled.addAndGet(position);
+            open.incrementAndGet();
+            ImageInputStream iis = new ScratchImageInputStream(raf, file.delete() ? null : file, size);
+            spilledOk = true;
+            return iis;
+        } finally {
+            if (!spilledOk) {
+                if (raf != null) {
+                    raf.close();
+                }
+                file.delete();
+            }
+        }
+    }
+
+    private synchronized boolean reserve(long size) {
+        if (reserved + size > maxBytes) {
+            return false;
+        }
+        reserved += size;
+        return true;
+    }
+
+    private synchronized void release(long size) {
+        reserved -= size;
+    }
+
+    synchronized long getReserved() {
+        return reserved;
+    }
+
+    public String getStatsName() {
+        return "scratchSpace";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("open", open.get());
+        stats.put("reservedBytes", getReserved());
+        stats.put("maxBytes", maxBytes);
+        stats.put("spilled", spilled.get());
+        stats.put("bytesSpilled", bytesSpilled.get());
+        stats.put("inMemory", inMemory.get());
+        stats.put("quotaFallbacks", quotaFallbacks.get());
+        return stats;
+    }
+
+    /**
+     * Reads from a scratch file, and on close frees the file and gives its
+     * quota back.
+     */
+    private class ScratchImageInputStream extends FileImageInputStream {
+        private final File file;
+        private final long reservation;
+        private boolean closed;
+
+        ScratchImageInputStream(RandomAccessFile raf, File file, long reservation) {
+            super(raf);
+            this.file = file;
+            this.reservation = reservation;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                release(reservation);
+                open.decrementAndGet();
+                if (file != null && !file.delete()) {
+                    log.warn("Unable to delete scratch file {}", file);
+                }
+            }
+        }
+    }
+}
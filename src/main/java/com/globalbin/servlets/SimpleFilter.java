@@ -1,53 +1,316 @@
 package com.globalbin.servlets;
 
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Dictionary;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 
-import org.apache.felix.scr.annotations.Component;
-import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.felix.scr.annotations.sling.SlingFilter;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A Simple Filter
- * 
+ * Request metrics filter. Records a latency histogram per resource type,
+ * selector string and extension, the number of requests in flight, and the
+ * bytes and characters written to the response. Nothing is logged on the
+ * common path: slow requests are logged above a threshold, and one in
+ * <code>metrics.sampleRate</code> requests is logged when sampling is on.
+ * The numbers are exposed as the "requests" entry of
+ * <code>/bin/api/stats</code>.
+ *
  * Annotations below are short version of:
- * 
- * @Component
- * @Service(Filter.class)
+ *
+ * @Component(metatype=true)
+ * @Service({Filter.class, StatsProvider.class})
  * @Properties({
- *     @Property(name="service.description", value="A Simple Filter"),
+ *     @Property(name="service.description", value="Request Metrics Filter"),
  *     @Property(name="service.vendor", value="The Global Bin"),
  *     @Property(name="sling.filter.scope", value="REQUEST"),
  *     @Property(name="service.ranking", intValue=1)
  * })
  */
-@SlingFilter(order=1, description="A Simple Filter")
+@SlingFilter(order=1, description="Request Metrics Filter", metatype=true, generateService=false)
+@Service({Filter.class, StatsProvider.class})
 @Property(name="service.vendor", value="The Global Bin")
-public class SimpleFilter implements Filter {
-    
+public class SimpleFilter implements Filter, StatsProvider {
+
     private final Logger log = LoggerFactory.getLogger(SimpleFilter.class);
 
+    @Property(longValue = 1000)
+    private static final String SLOW_THRESHOLD_PROPERTY = "metrics.slowThresholdMs";
+
+    @Property(intValue = 0)
+    private static final String SAMPLE_RATE_PROPERTY = "metrics.sampleRate";
+
+    @Property(intValue = 200)
+    private static final String MAX_ROUTES_PROPERTY = "metrics.maxRoutes";
+
+    private static final String OTHER_ROUTE = "(other)";
+
+    private long slowThresholdMicros = 1000 * 1000L;
+    private int sampleRate;
+    private int maxRoutes = 200;
+
+    private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<String, RouteMetrics>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong slowRequests = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong charsWritten = new AtomicLong();
+
+    /**
+     * Latency and error counts for one resource type/selector/extension.
+     */
+    static class RouteMetrics {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<String, Object>();
+            m.put("count", latency.getCount());
+            m.put("errors", errors.get());
+            m.put("bytes", bytes.get());
+            m.put("meanMicros", latency.getMean());
+            m.put("p50Micros", latency.percentile(50));
+            m.put("p90Micros", latency.percentile(90));
+            m.put("p99Micros", latency.percentile(99));
+            m.put("maxMicros", latency.getMax());
+            return m;
+        }
+    }
+
+    protected void activate(ComponentContext context) {
+        Dictionary<?, ?> props = context.getProperties();
+        slowThresholdMicros = ConfigUtil.toLong(props, SLOW_THRESHOLD_PROPERTY, 1000) * 1000L;
+        sampleRate = Math.max(0, ConfigUtil.toInt(props, SAMPLE_RATE_PROPERTY, 0));
+        maxRoutes = Math.max(1, ConfigUtil.toInt(props, MAX_ROUTES_PROPERTY, 200));
+    }
+
     public void init(FilterConfig filterConfig) throws ServletException {
     }
 
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
             ServletException {
-        log.info("filter invoked - start");
-        chain.doFilter(request, response);
-        log.info("filter invoked - end");
+        if (!(request instanceof SlingHttpServletRequest) || !(response instanceof SlingHttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        SlingHttpServletRequest slingRequest = (SlingHttpServletRequest) request;
+        MeteredResponse metered = new MeteredResponse((SlingHttpServletResponse) response);
+        long seq = requests.incrementAndGet();
+        int current = inFlight.incrementAndGet();
+        int peak;
+        while (current > (peak = peakInFlight.get()) && !peakInFlight.compareAndSet(peak, current)) {
+            // retry
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(request, metered);
+            failed = false;
+        } finally {
+            long micros = (System.nanoTime() - start) / 1000;
+            inFlight.decrementAndGet();
+            String route = routeKey(slingRequest);
+            RouteMetrics metrics = metricsFor(route);
+            metrics.latency.record(micros);
+            metrics.bytes.addAndGet(metered.bytes);
+            if (failed || metered.status >= 500) {
+                metrics.errors.incrementAndGet();
+            }
+            bytesWritten.addAndGet(metered.bytes);
+            charsWritten.addAndGet(metered.chars);
+
+            if (micros >= slowThresholdMicros) {
+                slowRequests.incrementAndGet();
+                log.warn("Slow request {} {} [{}] status={} took {}ms", new Object[] { slingRequest.getMethod(),
+                        slingRequest.getRequestURI(), route, metered.status, micros / 1000 });
+            } else if (sampleRate > 0 && seq % sampleRate == 0) {
+                log.info("Sampled request {} {} [{}] status={} took {}us", new Object[] { slingRequest.getMethod(),
+                        slingRequest.getRequestURI(), route, metered.status, micros });
+            }
+        }
     }
 
     public void destroy() {
     }
 
+    private RouteMetrics metricsFor(String route) {
+        RouteMetrics metrics = routes.get(route);
+        if (metrics == null) {
+            if (routes.size() >= maxRoutes) {
+                // keep the number of histograms bounded, whatever the URL space
+                route = OTHER_ROUTE;
+                metrics = routes.get(route);
+                if (metrics != null) {
+                    return metrics;
+                }
+            }
+            RouteMetrics created = new RouteMetrics();
+            metrics = routes.putIfAbsent(route, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    private static String routeKey(SlingHttpServletRequest request) {
+        Resource resource = request.getResource();
+        RequestPathInfo info = request.getRequestPathInfo();
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(resource != null ? resource.getResourceType() : "-");
+        sb.append('|').append(info.getSelectorString() != null ? info.getSelectorString() : "");
+        sb.append('|').append(info.getExtension() != null ? info.getExtension() : "");
+        return sb.toString();
+    }
+
+    public String getStatsName() {
+        return "requests";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("requests", requests.get());
+        stats.put("inFlight", inFlight.get());
+        stats.put("peakInFlight", peakInFlight.get());
+        stats.put("slow", slowRequests.get());
+        stats.put("bytesWritten", bytesWritten.get());
+        stats.put("charsWritten", charsWritten.get());
+        Map<String, Object> byRoute = new TreeMap<String, Object>();
+        for (Map.Entry<String, RouteMetrics> e : routes.entrySet()) {
+            byRoute.put(e.getKey(), e.getValue().toMap());
+        }
+        stats.put("routes", byRoute);
+        return stats;
+    }
+
+    /**
+     * Counts what is written and remembers the status code. The Servlet 2.5
+     * API has no getter for the status, so it is tracked here.
+     */
+    private static class MeteredResponse extends SlingHttpServletResponseWrapper {
+        int status = SC_OK;
+        long bytes;
+        long chars;
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+
+        MeteredResponse(SlingHttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public void setStatus(int sc, String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            status = sc;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            status = sc;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            status = SC_MOVED_TEMPORARILY;
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (stream == null) {
+                final ServletOutputStream delegate = super.getOutputStream();
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        delegate.write(b);
+                        bytes++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        delegate.write(b, off, len);
+                        bytes += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        delegate.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        delegate.close();
+                    }
+                };
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new FilterWriter(super.getWriter()) {
+                    @Override
+                    public void write(int c) throws IOException {
+                        out.write(c);
+                        chars++;
+                    }
+
+                    @Override
+                    public void write(char[] cbuf, int off, int len) throws IOException {
+                        out.write(cbuf, off, len);
+                        chars += len;
+                    }
+
+                    @Override
+                    public void write(String str, int off, int len) throws IOException {
+                        out.write(str, off, len);
+                        chars += len;
+                    }
+                });
+            }
+            return writer;
+        }
+    }
 }
@@ -0,0 +1,21 @@
+package com.globalbin.servlets;
+
+import java.util.Map;
+
+/**
+ * Service interface for components that publish counters on
+ * {@link StatsServlet}.
+ */
+public interface StatsProvider {
+
+    /**
+     * Name of the section the stats are grouped under.
+     */
+    String getStatsName();
+
+    /**
+     * Current values, keyed by counter name. Values should be numbers,
+     * booleans or strings.
+     */
+    Map<String, Object> getStats();
+}
@@ -0,0 +1,80 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletException;
+
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+/**
+ * Renders the counters of every registered {@link StatsProvider} as JSON.
+ */
+@SlingServlet(paths = "/bin/api/stats")
+@Properties({
+    @Property(name = "service.description", value = "Stats Servlet"),
+    @Property(name = "service.vendor", value = "The Global Bin")
+})
+@Reference(name = "statsProvider", referenceInterface = StatsProvider.class,
+        cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+public class StatsServlet extends SlingSafeMethodsServlet {
+    private static final long serialVersionUID = -2811452311284532934L;
+
+    private final List<StatsProvider> providers = new CopyOnWriteArrayList<StatsProvider>();
+
+    protected void bindStatsProvider(StatsProvider provider) {
+        providers.add(provider);
+    }
+
+    protected void unbindStatsProvider(StatsProvider provider) {
+        providers.remove(provider);
+    }
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        try {
+            JSONWriter w = new JSONWriter(response.getWriter());
+            w.object();
+            for (StatsProvider provider : providers) {
+                w.key(provider.getStatsName()).object();
+                writeEntries(w, provider.getStats());
+                w.endObject();
+            }
+            w.endObject();
+        } catch (JSONException e) {
+            throw new IOException("Error writing stats", e);
+        }
+    }
+
+    /**
+     * Writes the entries of a stats map; nested maps become nested objects.
+     */
+    private static void writeEntries(JSONWriter w, Map<?, ?> stats) throws JSONException {
+        for (Map.Entry<?, ?> e : stats.entrySet()) {
+            w.key(String.valueOf(e.getKey()));
+            if (e.getValue() instanceof Map) {
+                w.object();
+                writeEntries(w, (Map<?, ?>) e.getValue());
+                w.endObject();
+            } else {
+                w.value(e.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import com.globalbin.servlets.JsonStreamReader.Token;
+
+/**
+ * Creates JCR nodes while page documents are being parsed, without building a
+ * DOM. Each document has the same shape as a regular
+ * <code>/bin/api/page</code> request, <code>{"path": ..., "jcr": {...}}</code>,
+ * but <code>path</code> has to come before <code>jcr</code>, and a node's
+ * <code>jcr:primaryType</code> before its first child. Only the properties
+ * seen before a node's type is known are buffered.
+ */
+class StreamingPageImporter {
+
+    private final JsonStreamReader json;
+    private final Session session;
+
+    StreamingPageImporter(JsonStreamReader json, Session session) {
+        this.json = json;
+        this.session = session;
+    }
+
+    boolean hasNext() throws IOException {
+        return json.peek() != Token.END_DOCUMENT;
+    }
+
+    /**
+     * Imports the next document and returns its target path.
+     */
+    String importNext(BulkImport bulk) throws IOException, RepositoryException {
+        json.expect(Token.START_OBJECT);
+        String path = null;
+        while (json.peek() != Token.END_OBJECT) {
+            String key = json.nextName();
+            if (key.equals("path")) {
+                path = JcrUtil.absolutePath(json.nextString());
+            } else if (key.equals("jcr") && json.peek() == Token.START_OBJECT) {
+                if (path == null) {
+                    throw new IOException("\"path\" must precede \"jcr\" in streamed documents");
+                }
+                json.next();
+                importMembers(session.getNode(path), bulk);
+            } else {
+                json.skipValue();
+            }
+        }
+        json.next();
+        return path;
+    }
+
+    /**
+     * Applies the members of the current object to an existing node.
+     */
+    private void importMembers(Node node, BulkImport bulk) throws IOException, RepositoryException {
+        while (json.peek() != Token.END_OBJECT) {
+            String key = json.nextName().trim();
+            Token token = json.peek();
+            if (token == Token.START_OBJECT) {
+                json.next();
+                importChild(node, key, bulk);
+            } else if (token == Token.STRING && !key.equals("jcr:primaryType")) {
+                node.setProperty(key, json.nextString());
+                bulk.propertySet();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.next();
+    }
+
+    /**
+     * Reads the child object <code>name</code>, creating the node as soon as
+     * its type is known or its first child starts.
+     */
+    private void importChild(Node parent, String name, BulkImport bulk) throws IOException, RepositoryException {
+        String primaryType = null;
+        Map<String, String> pending = new LinkedHashMap<String, String>();
+        Node node = null;
+        while (json.peek() != Token.END_OBJECT) {
+            String key = json.nextName().trim();
+            Token token = json.peek();
+            if (token == Token.STRING) {
+                String value = json.nextString();
+                if (key.equals("jcr:primaryType")) {
+                    if (node == null) {
+                        primaryType = value;
+                        node = create(parent, name, primaryType, pending, bulk);
+                    }
+                } else if (node == null) {
+                    pending.put(key, value);
+                } else {
+                    node.setProperty(key, value);
+                    bulk.propertySet();
+                }
+            } else if (token == Token.START_OBJECT) {
+                json.next();
+                if (node == null) {
+                    node = create(parent, name, null, pending, bulk);
+                }
+                importChild(node, key, bulk);
+            } else {
+                json.skipValue();
+            }
+        }
+        json.next();
+        if (node == null) {
+            create(parent, name, primaryType, pending, bulk);
+        }
+    }
+
+    private Node create(Node parent, String name, String primaryType, Map<String, String> pending, BulkImport bulk)
+            throws RepositoryException {
+        Node node = primaryType != null ? parent.addNode(name, primaryType) : parent.addNode(name);
+        for (Map.Entry<String, String> e : pending.entrySet()) {
+            node.setProperty(e.getKey(), e.getValue());
+            bulk.propertySet();
+        }
+        pending.clear();
+        bulk.nodeAdded();
+        return node;
+    }
+}
@@ -0,0 +1,165 @@
+package com.globalbin.servlets;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Session;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Imports one subtree of a parallel page import with its own session.
+ * Failures are kept rather than thrown, so one subtree cannot abort the
+ * others. A conflict with a concurrent change
+ * ({@link InvalidItemStateException}) discards the unsaved batch and runs
+ * the subtree again, merging into what the earlier attempt already saved,
+ * after a short randomised back-off.
+ */
+class SubtreeImport implements Callable<SubtreeImport> {
+
+    private static final Logger log = LoggerFactory.getLogger(SubtreeImport.class);
+
+    private static final long BACKOFF_MILLIS = 50;
+
+    private final PageCreatorServlet importer;
+    private final WriteSessionProvider sessions;
+    private final String path;
+    private final JSONObject jcr;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final Random random = new Random();
+
+    private int attempts;
+    private int conflicts;
+    private int committedNodes;
+    private BulkImport bulk;
+    private String error;
+    private long elapsedNanos;
+
+    SubtreeImport(PageCreatorServlet importer, WriteSessionProvider sessions, String path, JSONObject jcr,
+            int batchSize, int maxAttempts) {
+        this.importer = importer;
+        this.sessions = sessions;
+        this.path = path;
+        this.jcr = jcr;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public SubtreeImport call() {
+        long start = System.nanoTime();
+        try {
+            while (attempts < maxAttempts) {
+                attempts++;
+                error = null;
+                Session session = null;
+                BulkImport attempt = null;
+                try {
+                    session = sessions.acquire();
+                    attempt = new BulkImport(session, batchSize);
+                    bulk = attempt;
+                    importer.importJSON(session.getNode(path), jcr, attempt, true);
+                    attempt.commit();
+                    committedNodes += attempt.getCommittedNodes();
+                    return this;
+                } catch (Exception e) {
+                    if (attempt != null) {
+                        committedNodes += attempt.getCommittedNodes();
+                    }
+                    error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+                    if (!isConflict(e)) {
+                        log.error("Import of subtree " + path + " failed", e);
+                        return this;
+                    }
+                    conflicts++;
+                    log.info("Conflict importing {} (attempt {}): {}", new Object[] { path, attempts, error });
+                } finally {
+                    sessions.release(session);
+                }
+                if (attempts < maxAttempts) {
+                    try {
+                        Thread.sleep(BACKOFF_MILLIS * attempts + random.nextInt((int) BACKOFF_MILLIS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        error = "interrupted";
+                        return this;
+                    }
+                }
+            }
+            return this;
+        } finally {
+            elapsedNanos = System.nanoTime() - start;
+        }
+    }
+
+    static boolean isConflict(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof InvalidItemStateException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The first two of <code>roots</code> where one is the other or lies
+     * below it, or null if they are all independent. Every pair is
+     * compared; sorting is no shortcut, since <code>/a-1</code> sorts
+     * between <code>/a</code> and <code>/a/b</code>.
+     */
+    static String[] overlapping(List<String> roots) {
+        for (int i = 0; i < roots.size(); i++) {
+            for (int j = i + 1; j < roots.size(); j++) {
+                String a = roots.get(i);
+                String b = roots.get(j);
+                if (contains(a, b) || contains(b, a)) {
+                    return new String[] { a, b };
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean contains(String root, String path) {
+        String below = root.endsWith("/") ? root : root + "/";
+        return path.equals(root) || path.startsWith(below);
+    }
+
+    static double perSecond(long count, long nanos) {
+        return nanos <= 0 ? 0 : Math.round(count * 1e10 / nanos) / 10.0;
+    }
+
+    String getError() {
+        return error;
+    }
+
+    int getCommittedNodes() {
+        return committedNodes;
+    }
+
+    void writeSummary(JSONWriter w) throws JSONException {
+        w.object();
+        w.key("path").value(path);
+        w.key("status").value(error == null ? "ok" : "failed");
+        if (error != null) {
+            w.key("error").value(error);
+        }
+        w.key("attempts").value(attempts);
+        w.key("conflicts").value(conflicts);
+        w.key("committedNodes").value(committedNodes);
+        w.key("elapsedMillis").value(elapsedNanos / 1000000);
+        w.key("nodesPerSecond").value(perSecond(committedNodes, elapsedNanos));
+        if (bulk != null) {
+            w.key("lastAttempt").object();
+            bulk.writeSummary(w);
+            w.endObject();
+        }
+        w.endObject();
+    }
+}
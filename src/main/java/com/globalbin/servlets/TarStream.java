@@ -0,0 +1,218 @@
+package com.globalbin.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the regular files of a ustar/GNU/pax tar stream one at a time,
+ * without buffering their contents. Directories, links and other special
+ * entries are skipped; GNU long names and pax <code>path</code> records
+ * are honoured.
+ */
+class TarStream {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BLOCK = 512;
+    private static final int MAX_META_SIZE = 1024 * 1024;
+
+    private final InputStream in;
+    private final byte[] header = new byte[BLOCK];
+    private EntryStream current;
+
+    TarStream(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Moves to the next regular file and returns its name, or null at the
+     * end of the archive.
+     */
+    String next() throws IOException {
+        if (current != null) {
+            current.skipRest();
+            current = null;
+        }
+        String longName = null;
+        while (true) {
+            if (!readBlock(header)) {
+                return null;
+            }
+            if (isZero(header)) {
+                // end of archive marker
+                return null;
+            }
+            long size = parseOctal(header, 124, 12);
+            char type = (char) header[156];
+            if (type == 'L' || type == 'x') {
+                String meta = new String(readMeta(size), UTF_8);
+                longName = type == 'L' ? trimNul(meta) : paxPath(meta, longName);
+                continue;
+            }
+            String entryName = longName != null ? longName : headerName();
+            longName = null;
+            current = new EntryStream(size);
+            if (type == '0' || type == '\0' || type == '7') {
+                return entryName;
+            }
+            current.skipRest();
+            current = null;
+        }
+    }
+
+    /**
+     * The contents of the current entry.
+     */
+    InputStream getInputStream() {
+        return current;
+    }
+
+    private String headerName() {
+        String n = field(0, 100);
+        if (new String(header, 257, 5, UTF_8).equals("ustar")) {
+            String prefix = field(345, 155);
+            if (prefix.length() > 0) {
+                n = prefix + "/" + n;
+            }
+        }
+        return n;
+    }
+
+    private String field(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, UTF_8);
+    }
+
+    private byte[] readMeta(long size) throws IOException {
+        if (size > MAX_META_SIZE) {
+            throw new IOException("Tar metadata entry too large: " + size);
+        }
+        EntryStream meta = new EntryStream(size);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) size);
+        byte[] b = new byte[BLOCK];
+        int n;
+        while ((n = meta.read(b, 0, b.length)) > 0) {
+            out.write(b, 0, n);
+        }
+        meta.skipRest();
+        return out.toByteArray();
+    }
+
+    /**
+     * The <code>path</code> record of pax extended header data, records
+     * read <code>"length key=value\n"</code>.
+     */
+    static String paxPath(String records, String fallback) {
+        for (String record : records.split("\n")) {
+            int space = record.indexOf(' ');
+            if (space > 0 && record.startsWith("path=", space + 1)) {
+                return record.substring(space + 6);
+            }
+        }
+        return fallback;
+    }
+
+    private static String trimNul(String s) {
+        int nul = s.indexOf('\0');
+        return nul >= 0 ? s.substring(0, nul) : s;
+    }
+
+    static long parseOctal(byte[] b, int offset, int length) throws IOException {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte c = b[i];
+            if (c == 0 || c == ' ') {
+                if (value != 0) {
+                    break;
+                }
+                continue;
+            }
+            if (c < '0' || c > '7') {
+                throw new IOException("Invalid tar header");
+            }
+            value = (value << 3) + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int read = 0;
+        while (read < BLOCK) {
+            int n = in.read(block, read, BLOCK - read);
+            if (n < 0) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new IOException("Truncated tar stream");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    /**
+     * Entry body of a known size; skipping the rest also consumes the
+     * padding up to the next block.
+     */
+    private class EntryStream extends InputStream {
+        private long remaining;
+        private long padding;
+
+        EntryStream(long size) {
+            this.remaining = size;
+            this.padding = (BLOCK - size % BLOCK) % BLOCK;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new IOException("Truncated tar entry");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        void skipRest() throws IOException {
+            long toSkip = remaining + padding;
+            remaining = 0;
+            padding = 0;
+            byte[] skip = new byte[BLOCK];
+            while (toSkip > 0) {
+                int n = in.read(skip, 0, (int) Math.min(skip.length, toSkip));
+                if (n < 0) {
+                    throw new IOException("Truncated tar stream");
+                }
+                toSkip -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            // the request stream is closed by the container
+        }
+    }
+}
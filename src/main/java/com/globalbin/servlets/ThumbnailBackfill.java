@@ -0,0 +1,464 @@
+package com.globalbin.servlets;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Walks every <code>nt:file</code> below <code>content.path</code> and hands
+ * the images whose thumbnails are missing or older than the image to
+ * {@link ThumbnailGenerator#enqueue}.
+ *
+ * Files are read in pages of <code>backfill.pageSize</code>, ordered by
+ * <code>jcr:created</code>, and the position is checkpointed below
+ * <code>backfill.checkpointPath</code> after every page, so a stopped or
+ * interrupted run resumes where it left off. A page that was only partly
+ * enqueued is not checkpointed and is checked again. Each page is checked by
+ * <code>backfill.threads</code> workers. Jobs are created at no more than
+ * <code>backfill.maxPerSecond</code>, and only while the generator has fewer
+ * than <code>backfill.maxQueueDepth</code> jobs queued, so live uploads keep
+ * priority.
+ */
+@Component(immediate = true, metatype = true, label = "GlobalBin Thumbnail Backfill")
+@Service({ ThumbnailBackfill.class, StatsProvider.class })
+@Property(name = "service.description", value = "GlobalBin Thumbnail Backfill")
+public class ThumbnailBackfill implements StatsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(ThumbnailBackfill.class);
+
+    @Property(value = "/content/images")
+    private static final String CONTENT_PATH_PROPERTY = "content.path";
+
+    @Property(value = "/var/gb/thumbnail-backfill")
+    private static final String CHECKPOINT_PATH_PROPERTY = "backfill.checkpointPath";
+
+    @Property(intValue = 500)
+    private static final String PAGE_SIZE_PROPERTY = "backfill.pageSize";
+
+    @Property(intValue = 2)
+    private static final String THREADS_PROPERTY = "backfill.threads";
+
+    @Property(intValue = 20)
+    private static final String MAX_PER_SECOND_PROPERTY = "backfill.maxPerSecond";
+
+    @Property(intValue = 100)
+    private static final String MAX_QUEUE_DEPTH_PROPERTY = "backfill.maxQueueDepth";
+
+    @Property(boolValue = true)
+    private static final String RESUME_PROPERTY = "backfill.resumeOnActivate";
+
+    static final String STATE_RUNNING = "running";
+    static final String STATE_STOPPED = "stopped";
+    static final String STATE_DONE = "done";
+    static final String STATE_FAILED = "failed";
+
+    private static final int ENQUEUE_SLICE = 50;
+
+    @Reference
+    private SlingRepository repository;
+
+    @Reference
+    private ThumbnailGenerator generator;
+
+    private String contentPath;
+    private String checkpointPath;
+    private int pageSize;
+    private int threads;
+    private int maxQueueDepth;
+    private RateLimiter limiter;
+
+    private ExecutorService runner;
+    private ExecutorService checkers;
+
+    private volatile boolean running;
+    private volatile boolean stopRequested;
+    private volatile String state = STATE_STOPPED;
+    private volatile String lastError;
+    private volatile Calendar position;
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+
+    protected void activate(ComponentContext context) throws RepositoryException {
+        Dictionary<?, ?> props = context.getProperties();
+        contentPath = ConfigUtil.toString(props, CONTENT_PATH_PROPERTY, "/content/images");
+        checkpointPath = ConfigUtil.toString(props, CHECKPOINT_PATH_PROPERTY, "/var/gb/thumbnail-backfill");
+        pageSize = Math.max(1, ConfigUtil.toInt(props, PAGE_SIZE_PROPERTY, 500));
+        threads = Math.max(1, ConfigUtil.toInt(props, THREADS_PROPERTY, 2));
+        maxQueueDepth = Math.max(1, ConfigUtil.toInt(props, MAX_QUEUE_DEPTH_PROPERTY, 100));
+        limiter = new RateLimiter(ConfigUtil.toInt(props, MAX_PER_SECOND_PROPERTY, 20));
+        runner = Executors.newSingleThreadExecutor(new NamedThreadFactory("gb-thumbnail-backfill"));
+        checkers = Executors.newFixedThreadPool(threads, new NamedThreadFactory("gb-thumbnail-backfill-check"));
+
+        if (ConfigUtil.toBoolean(props, RESUME_PROPERTY, true) && STATE_RUNNING.equals(readState())) {
+            log.info("Resuming interrupted thumbnail backfill");
+            start(false);
+        }
+    }
+
+    protected void deactivate(ComponentContext context) {
+        stopRequested = true;
+        runner.shutdownNow();
+        checkers.shutdownNow();
+    }
+
+    /**
+     * Starts a run in the background, from the checkpoint or from the
+     * beginning when <code>reset</code> is set. Returns false if a run is
+     * already in progress.
+     */
+    public synchronized boolean start(final boolean reset) {
+        if (running) {
+            return false;
+        }
+        running = true;
+        stopRequested = false;
+        runner.execute(new Runnable() {
+            public void run() {
+                try {
+                    backfill(reset);
+                } finally {
+                    running = false;
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Asks the current run to stop after the slice of jobs in progress. The
+     * checkpoint is kept, so the next start resumes from the first page that
+     * was not fully enqueued.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void backfill(boolean reset) {
+        Session session = null;
+        try {
+            session = repository.loginService("datawrite", repository.getDefaultWorkspace());
+            Node checkpoint = JcrUtil.getOrCreatePath(session, checkpointPath);
+            Cursor cursor = new Cursor(null, Collections.<String>emptySet());
+            if (reset) {
+                checkpoint.setProperty("position", (Calendar) null);
+                checkpoint.setProperty("seen", (String[]) null);
+                checkpoint.setProperty("checked", 0L);
+                checkpoint.setProperty("enqueued", 0L);
+            } else if (checkpoint.hasProperty("position")) {
+                List<String> seen = new ArrayList<String>();
+                if (checkpoint.hasProperty("seen")) {
+                    for (Value v : checkpoint.getProperty("seen").getValues()) {
+                        seen.add(v.getString());
+                    }
+                }
+                cursor = new Cursor(checkpoint.getProperty("position").getDate(), seen);
+            }
+            checked.set(getLong(checkpoint, "checked"));
+            enqueued.set(getLong(checkpoint, "enqueued"));
+            stale.set(0);
+            pages.set(0);
+            position = cursor.getSince();
+            setState(checkpoint, STATE_RUNNING, null);
+            log.info("Thumbnail backfill of {} started at {}", contentPath, position == null ? "the beginning"
+                    : position.getTime());
+
+            boolean done = runPages(session, cursor, checkpoint);
+            setState(checkpoint, done ? STATE_DONE : STATE_STOPPED, null);
+            log.info("Thumbnail backfill {} after {} files, {} jobs", new Object[] { state, checked.get(),
+                    enqueued.get() });
+        } catch (Exception e) {
+            log.error("Thumbnail backfill failed", e);
+            String error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+            state = STATE_FAILED;
+            lastError = error;
+            if (session != null) {
+                try {
+                    session.refresh(false);
+                    setState(JcrUtil.getOrCreatePath(session, checkpointPath), STATE_FAILED, error);
+                } catch (RepositoryException re) {
+                    log.warn("Unable to record backfill failure: {}", re.getMessage());
+                }
+            }
+        } finally {
+            if (session != null) {
+                session.logout();
+            }
+        }
+    }
+
+    /**
+     * Checks and enqueues page after page from <code>cursor</code>. Returns
+     * true once every file was checked, false when stopped. A page is only
+     * checkpointed once all its stale files are enqueued; a page cut short
+     * by {@link #stop()} is checked again on resume, where the files it did
+     * enqueue are skipped as duplicates or no longer stale.
+     */
+    boolean runPages(Session session, Cursor cursor, Node checkpoint) throws Exception {
+        while (!stopRequested) {
+            List<FileRef> page = nextPage(session, cursor);
+            if (page.isEmpty()) {
+                return true;
+            }
+            List<String> contentPaths = new ArrayList<String>(page.size());
+            for (FileRef file : page) {
+                contentPaths.add(file.path + "/jcr:content");
+            }
+            List<String> found = checkStale(contentPaths);
+            stale.addAndGet(found.size());
+            if (!enqueueStale(found)) {
+                return false;
+            }
+            for (FileRef file : page) {
+                cursor.advance(file.path, file.created);
+            }
+            checked.addAndGet(page.size());
+            pages.incrementAndGet();
+            position = cursor.getSince();
+            saveCheckpoint(checkpoint, cursor);
+        }
+        return false;
+    }
+
+    /**
+     * The next files in <code>jcr:created</code> order, starting at the
+     * cursor and leaving out the files already seen at exactly that
+     * instant.
+     */
+    List<FileRef> nextPage(Session session, Cursor cursor) throws RepositoryException {
+        StringBuilder sql = new StringBuilder("SELECT * FROM [nt:file] AS f WHERE ISDESCENDANTNODE(f, [")
+                .append(contentPath).append("])");
+        Calendar since = cursor.getSince();
+        if (since != null) {
+            sql.append(" AND f.[jcr:created] >= $since");
+        }
+        sql.append(" ORDER BY f.[jcr:created]");
+
+        QueryManager qm = session.getWorkspace().getQueryManager();
+        Query query = qm.createQuery(sql.toString(), Query.JCR_SQL2);
+        if (since != null) {
+            query.bindValue("since", session.getValueFactory().createValue(since));
+        }
+        query.setLimit(pageSize + cursor.getSeen().size());
+
+        List<FileRef> page = new ArrayList<FileRef>(pageSize);
+        for (NodeIterator it = query.execute().getNodes(); it.hasNext() && page.size() < pageSize;) {
+            Node file = it.nextNode();
+            Calendar created = file.getProperty("jcr:created").getDate();
+            if (cursor.isAhead(file.getPath(), created)) {
+                page.add(new FileRef(file.getPath(), created));
+            }
+        }
+        return page;
+    }
+
+    void saveCheckpoint(Node checkpoint, Cursor cursor) throws RepositoryException {
+        Set<String> seen = cursor.getSeen();
+        checkpoint.setProperty("position", cursor.getSince());
+        checkpoint.setProperty("seen", seen.toArray(new String[seen.size()]));
+        checkpoint.setProperty("checked", checked.get());
+        checkpoint.setProperty("enqueued", enqueued.get());
+        checkpoint.setProperty("updated", Calendar.getInstance());
+        checkpoint.getSession().save();
+    }
+
+    /**
+     * Splits the page across the checker threads, each with its own session.
+     */
+    List<String> checkStale(List<String> contentPaths) throws Exception {
+        int chunk = (contentPaths.size() + threads - 1) / threads;
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        for (int i = 0; i < contentPaths.size(); i += chunk) {
+            final List<String> slice = contentPaths.subList(i, Math.min(i + chunk, contentPaths.size()));
+            results.add(checkers.submit(new Callable<List<String>>() {
+                public List<String> call() throws RepositoryException {
+                    List<String> found = new ArrayList<String>();
+                    Session session = repository.loginService("datawrite", repository.getDefaultWorkspace());
+                    try {
+                        for (String path : slice) {
+                            if (session.nodeExists(path) && generator.needsThumbnails(session.getNode(path))) {
+                                found.add(path);
+                            }
+                        }
+                    } finally {
+                        session.logout();
+                    }
+                    return found;
+                }
+            }));
+        }
+        List<String> found = new ArrayList<String>();
+        for (Future<List<String>> result : results) {
+            try {
+                found.addAll(result.get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Enqueues <code>paths</code> in slices. Returns false if the run was
+     * stopped before all of them were enqueued.
+     */
+    private boolean enqueueStale(List<String> paths) throws RepositoryException, InterruptedException {
+        for (int i = 0; i < paths.size(); i += ENQUEUE_SLICE) {
+            if (stopRequested) {
+                return false;
+            }
+            enqueued.addAndGet(enqueue(paths.subList(i, Math.min(i + ENQUEUE_SLICE, paths.size()))));
+        }
+        return true;
+    }
+
+    /**
+     * Hands one slice to the generator once its queue has room and the rate
+     * limit allows. Returns the number of jobs created.
+     */
+    int enqueue(List<String> slice) throws RepositoryException, InterruptedException {
+        while (generator.getQueueDepth() >= maxQueueDepth && !stopRequested) {
+            Thread.sleep(500);
+        }
+        limiter.acquire(slice.size());
+        return generator.enqueue(slice);
+    }
+
+    private String readState() throws RepositoryException {
+        Session session = repository.loginService("datawrite", repository.getDefaultWorkspace());
+        try {
+            String statePath = checkpointPath + "/state";
+            return session.propertyExists(statePath) ? session.getProperty(statePath).getString() : null;
+        } finally {
+            session.logout();
+        }
+    }
+
+    private void setState(Node checkpoint, String newState, String error) throws RepositoryException {
+        state = newState;
+        lastError = error;
+        checkpoint.setProperty("state", newState);
+        checkpoint.setProperty("error", error);
+        checkpoint.setProperty("updated", Calendar.getInstance());
+        checkpoint.getSession().save();
+    }
+
+    private static long getLong(Node node, String name) throws RepositoryException {
+        return node.hasProperty(name) ? node.getProperty(name).getLong() : 0;
+    }
+
+    public String getStatsName() {
+        return "thumbnailBackfill";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        Calendar at = position;
+        stats.put("state", state);
+        stats.put("running", running);
+        stats.put("checked", checked.get());
+        stats.put("stale", stale.get());
+        stats.put("enqueued", enqueued.get());
+        stats.put("pages", pages.get());
+        stats.put("position", at == null ? null : at.getTimeInMillis());
+        if (lastError != null) {
+            stats.put("error", lastError);
+        }
+        return stats;
+    }
+
+    /**
+     * A file found by the paging query.
+     */
+    static final class FileRef {
+        final String path;
+        final Calendar created;
+
+        FileRef(String path, Calendar created) {
+            this.path = path;
+            this.created = created;
+        }
+    }
+
+    /**
+     * Position of a run: the <code>jcr:created</code> of the last checked
+     * file and the paths of all files checked with exactly that value, which
+     * keeps paging exact when many files share a creation time.
+     */
+    static final class Cursor {
+        private Calendar since;
+        private final Set<String> seenAtSince = new HashSet<String>();
+
+        Cursor(Calendar since, Collection<String> seen) {
+            this.since = since;
+            seenAtSince.addAll(seen);
+        }
+
+        Calendar getSince() {
+            return since;
+        }
+
+        Set<String> getSeen() {
+            return Collections.unmodifiableSet(seenAtSince);
+        }
+
+        /**
+         * Whether a file has not been checked yet.
+         */
+        boolean isAhead(String path, Calendar created) {
+            if (since == null) {
+                return true;
+            }
+            int c = created.compareTo(since);
+            return c > 0 || (c == 0 && !seenAtSince.contains(path));
+        }
+
+        /**
+         * Moves past a checked file. Files are passed in
+         * <code>jcr:created</code> order.
+         */
+        void advance(String path, Calendar created) {
+            if (since == null || created.after(since)) {
+                since = created;
+                seenAtSince.clear();
+            }
+            seenAtSince.add(path);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+/**
+ * Controls the {@link ThumbnailBackfill}. GET answers with its progress;
+ * POST with <code>action=start</code> resumes from the checkpoint,
+ * <code>action=reset</code> starts over and <code>action=stop</code> stops
+ * after the current page.
+ */
+@SlingServlet(paths = "/bin/api/thumbnails/backfill", methods = { "GET", "POST" })
+@Properties({
+    @Property(name = "service.description", value = "Thumbnail Backfill Servlet"),
+    @Property(name = "service.vendor", value = "The Global Bin")
+})
+public class ThumbnailBackfillServlet extends SlingAllMethodsServlet {
+    private static final long serialVersionUID = 4017526833180541174L;
+
+    @Reference
+    private ThumbnailBackfill backfill;
+
+    @Override
+    protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        writeStatus(response);
+    }
+
+    @Override
+    protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        String action = request.getParameter("action");
+        if ("start".equals(action) || "reset".equals(action)) {
+            if (!backfill.start("reset".equals(action))) {
+                response.setStatus(HttpServletResponse.SC_CONFLICT);
+            } else {
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+            }
+        } else if ("stop".equals(action)) {
+            backfill.stop();
+            response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        } else {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "action must be start, reset or stop");
+            return;
+        }
+        writeStatus(response);
+    }
+
+    private void writeStatus(SlingHttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        try {
+            JSONWriter w = new JSONWriter(response.getWriter());
+            w.object();
+            for (Map.Entry<String, Object> e : backfill.getStats().entrySet()) {
+                w.key(e.getKey()).value(e.getValue());
+            }
+            w.endObject();
+        } catch (JSONException e) {
+            throw new IOException("Error writing backfill status", e);
+        }
+    }
+}
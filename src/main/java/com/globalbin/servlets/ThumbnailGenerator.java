@@ -1,21 +1,36 @@
 package com.globalbin.servlets;
 
-import java.awt.Graphics2D;
-import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyType;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -28,6 +43,7 @@ import javax.jcr.observation.ObservationManager;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.service.component.ComponentContext;
@@ -38,10 +54,26 @@ import org.slf4j.LoggerFactory;
  * Observe /content/images for changes, and generate thumbnails when images are
  * added.
  *
+ * Events only enqueue a job; the job is persisted below <code>jobs.path</code>
+ * so pending work survives a restart, and is run on a small worker pool. Each
+ * job decodes the source once, renders every entry of the
+ * {@link RenditionProfile} in parallel and writes the
+ * thumbnails with a single save. A failed job stays persisted and is retried
+ * up to <code>jobs.maxAttempts</code> times. Parents that jobs share, the
+ * <code>thumbnails</code> folder and the rendition store shard, are created
+ * and saved on their own first, so parallel jobs do not conflict on them.
+ *
+ * Events are coalesced per path for <code>events.windowMs</code> before a
+ * job is created, and events caused by the generator's own writes are
+ * recognised by their user data and ignored. At most
+ * <code>jobs.maxBacklog</code> jobs are queued; further paths wait in the
+ * coalescer, and once <code>events.maxPending</code> paths are waiting new
+ * ones are dropped and counted.
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true, label = "GlobalBin Thumbnail Generator")
+@Service({ ThumbnailGenerator.class, StatsProvider.class })
 @Property(name = "service.description", value = "GlobalBin Thumbnail Generator")
-public class ThumbnailGenerator implements EventListener {
+public class ThumbnailGenerator implements EventListener, StatsProvider {
 
 	private Session session;
 	private ObservationManager observationManager;
@@ -52,20 +84,123 @@ public class ThumbnailGenerator implements EventListener {
 	@Reference
 	private SlingRepository repository;
 
+	@Reference
+	private ScratchSpace scratchSpace;
+
+	@Reference
+	private RenditionProfile profile;
+
+	@Reference
+	private ImageProbe imageProbe;
+
 	@Property(value = "/content/images")
 	private static final String CONTENT_PATH_PROPERTY = "content.path";
 
+	@Property(value = "/var/gb/thumbnail-jobs")
+	private static final String JOBS_PATH_PROPERTY = "jobs.path";
+
+	@Property(intValue = 2)
+	private static final String JOB_THREADS_PROPERTY = "jobs.threads";
+
+	@Property(intValue = 0)
+	private static final String SCALE_THREADS_PROPERTY = "scale.threads";
+
+	@Property(longValue = 2000)
+	private static final String EVENT_WINDOW_PROPERTY = "events.windowMs";
+
+	@Property(intValue = 10000)
+	private static final String MAX_PENDING_PROPERTY = "events.maxPending";
+
+	@Property(intValue = 1000)
+	private static final String MAX_BACKLOG_PROPERTY = "jobs.maxBacklog";
+
+	@Property(intValue = 3)
+	private static final String MAX_ATTEMPTS_PROPERTY = "jobs.maxAttempts";
+
+	@Property(value = "/var/gb/renditions")
+	private static final String RENDITION_STORE_PROPERTY = "renditions.storePath";
+
+	static final String RENDITION_MIXIN = "gb:rendition";
+
+	/** Observation user data set on every session that writes thumbnails. */
+	static final String USER_DATA = "gb:thumbnail-generator";
+
+	/**
+	 * Observation user data of bulk ingestion sessions, which hand their paths
+	 * to {@link #enqueue(Collection)} themselves.
+	 */
+	static final String INGEST_USER_DATA = "gb:bulk-ingest";
+
+	/** How long deactivation waits for running jobs before interrupting them. */
+	private static final long SHUTDOWN_WAIT_SECONDS = 10;
+
+	/** Delay before a failed job runs again, multiplied by its attempts so far. */
+	private static final long RETRY_DELAY_MILLIS = 5000;
+
 	private static final Logger log = LoggerFactory.getLogger(ThumbnailGenerator.class);
 
 	private Map<String, String> supportedMimeTypes = new HashMap<String, String>();
 
+	private String jobsPath;
+	private ThreadPoolExecutor jobExecutor;
+	private ExecutorService scaleExecutor;
+	private ScheduledExecutorService eventFlusher;
+	private PathCoalescer coalescer;
+	private int maxBacklog;
+	private int maxAttempts;
+	private String storePath;
+	private final Object[] hashLocks = new Object[64];
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong eventsReceived = new AtomicLong();
+	private final AtomicLong selfEvents = new AtomicLong();
+	private final AtomicLong ingestEvents = new AtomicLong();
+	private final AtomicLong duplicateJobs = new AtomicLong();
+	private final AtomicLong renditionsGenerated = new AtomicLong();
+	private final AtomicLong renditionsReused = new AtomicLong();
+	private final AtomicLong generateNanos = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+	private volatile long lastLatency;
+
 	protected void activate(ComponentContext context) throws Exception {
 		log.info("Activated: ThumbnailGenerator");
 		supportedMimeTypes.put("image/jpeg", ".jpg");
 		supportedMimeTypes.put("image/png", ".png");
-		String contentPath = (String) context.getProperties().get(CONTENT_PATH_PROPERTY);
+		Dictionary<?, ?> props = context.getProperties();
+		String contentPath = ConfigUtil.toString(props, CONTENT_PATH_PROPERTY, "/content/images");
+		jobsPath = ConfigUtil.toString(props, JOBS_PATH_PROPERTY, "/var/gb/thumbnail-jobs");
+		storePath = ConfigUtil.toString(props, RENDITION_STORE_PROPERTY, "/var/gb/renditions");
+		for (int i = 0; i < hashLocks.length; i++) {
+			hashLocks[i] = new Object();
+		}
+		int jobThreads = Math.max(1, ConfigUtil.toInt(props, JOB_THREADS_PROPERTY, 2));
+		int scaleThreads = ConfigUtil.toInt(props, SCALE_THREADS_PROPERTY, 0);
+		if (scaleThreads <= 0) {
+			scaleThreads = Runtime.getRuntime().availableProcessors();
+		}
+		jobExecutor = new ThreadPoolExecutor(jobThreads, jobThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("gb-thumbnail-job"));
+		scaleExecutor = Executors.newFixedThreadPool(scaleThreads, new NamedThreadFactory("gb-thumbnail-scale"));
+
+		long window = ConfigUtil.toLong(props, EVENT_WINDOW_PROPERTY, 2000);
+		coalescer = new PathCoalescer(window, ConfigUtil.toInt(props, MAX_PENDING_PROPERTY, 10000));
+		maxBacklog = Math.max(1, ConfigUtil.toInt(props, MAX_BACKLOG_PROPERTY, 1000));
+		maxAttempts = Math.max(1, ConfigUtil.toInt(props, MAX_ATTEMPTS_PROPERTY, 3));
+		eventFlusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("gb-thumbnail-events"));
+		long period = Math.max(100, window / 2);
+		eventFlusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flushEvents(false);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
 
 		session = repository.loginService("datawrite", repository.getDefaultWorkspace());
+		replayPendingJobs();
 		if (repository.getDescriptor(Repository.OPTION_OBSERVATION_SUPPORTED).equals("true")) {
 			log.info("ThumbnailGenerator supports Observation");
 			observationManager = session.getWorkspace().getObservationManager();
@@ -81,6 +216,22 @@ public class ThumbnailGenerator implements EventListener {
 		if (observationManager != null) {
 			observationManager.removeEventListener(this);
 		}
+		eventFlusher.shutdownNow();
+		// persist whatever is still coalescing; jobs are replayed on the next activation
+		flushEvents(true);
+		// queued jobs stay persisted, running ones get a grace period to finish
+		jobExecutor.shutdown();
+		jobExecutor.getQueue().clear();
+		try {
+			if (!jobExecutor.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+				log.info("Interrupting {} running thumbnail jobs, they are replayed on restart",
+						jobExecutor.getActiveCount());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		jobExecutor.shutdownNow();
+		scaleExecutor.shutdownNow();
 		if (session != null) {
 			session.logout();
 			session = null;
@@ -88,14 +239,22 @@ public class ThumbnailGenerator implements EventListener {
 	}
 
 	public void onEvent(EventIterator it) {
+		long now = System.currentTimeMillis();
 		while (it.hasNext()) {
 			Event event = it.nextEvent();
+			eventsReceived.incrementAndGet();
 			try {
+				if (USER_DATA.equals(event.getUserData())) {
+					selfEvents.incrementAndGet();
+					continue;
+				}
+				if (INGEST_USER_DATA.equals(event.getUserData())) {
+					ingestEvents.incrementAndGet();
+					continue;
+				}
 				if (event.getType() == Event.NODE_ADDED && !(event.getPath().contains("thumbnails"))) {
-					log.info("new upload: {}", event.getPath());
-					Node addedNode = session.getRootNode().getNode(event.getPath().substring(1));
-					processNewNode(addedNode);
-					log.info("finished processing of {}", event.getPath());
+					log.debug("new upload: {}", event.getPath());
+					coalescer.offer(event.getPath(), now);
 				}
 			} catch (Exception e) {
 				log.error(e.getMessage(), e);
@@ -103,17 +262,340 @@ public class ThumbnailGenerator implements EventListener {
 		}
 	}
 
-	private String getMimeType(Node n) throws RepositoryException {
-		String result = null;
-		final String mimeType = n.getProperty("jcr:mimeType").getString();
+	/**
+	 * Turns coalesced paths into jobs, as many as the backlog limit allows,
+	 * or all of them when <code>all</code> is set.
+	 */
+	private void flushEvents(boolean all) {
+		List<String> paths;
+		if (all) {
+			paths = coalescer.drain(Long.MAX_VALUE, Integer.MAX_VALUE);
+		} else {
+			paths = coalescer.drain(System.currentTimeMillis(), maxBacklog - getQueueDepth());
+		}
+		if (paths.isEmpty()) {
+			return;
+		}
+		try {
+			enqueue(paths);
+		} catch (Exception e) {
+			log.error("Unable to enqueue thumbnail jobs for " + paths, e);
+		}
+	}
 
-		for (String key : supportedMimeTypes.keySet()) {
-			log.info("Supported mimeType: {}", key);
-			if (mimeType != null && mimeType.startsWith(key)) {
-				result = key;
-				break;
+	/**
+	 * Persists a job for every <code>jcr:content</code> path with one save and
+	 * hands them to the worker pool. Paths that already have a pending job are
+	 * skipped. Returns the number of jobs created.
+	 */
+	public int enqueue(Collection<String> paths) throws RepositoryException {
+		Session jobSession = repository.loginService("datawrite", repository.getDefaultWorkspace());
+		try {
+			jobSession.getWorkspace().getObservationManager().setUserData(USER_DATA);
+			Node jobs = JcrUtil.getOrCreatePath(jobSession, jobsPath);
+			Map<String, String> created = new LinkedHashMap<String, String>();
+			long now = System.currentTimeMillis();
+			for (String path : paths) {
+				if (isRenditionPath(path)) {
+					continue;
+				}
+				String name = Digests.sha1Hex(path);
+				if (jobs.hasNode(name) || created.containsKey(name)) {
+					duplicateJobs.incrementAndGet();
+					continue;
+				}
+				Node job = jobs.addNode(name, "nt:unstructured");
+				job.setProperty("path", path);
+				job.setProperty("created", now);
+				created.put(name, path);
+			}
+			jobSession.save();
+			if (!jobExecutor.isShutdown()) {
+				for (Map.Entry<String, String> e : created.entrySet()) {
+					submit(e.getKey(), e.getValue(), now);
+				}
+			}
+			return created.size();
+		} finally {
+			jobSession.logout();
+		}
+	}
+
+	public int getQueueDepth() {
+		return jobExecutor.getQueue().size() + jobExecutor.getActiveCount();
+	}
+
+	private void replayPendingJobs() throws RepositoryException {
+		Node jobs = JcrUtil.getOrCreatePath(session, jobsPath);
+		session.save();
+		int count = 0;
+		for (NodeIterator it = jobs.getNodes(); it.hasNext();) {
+			Node job = it.nextNode();
+			submit(job.getName(), job.getProperty("path").getString(), job.getProperty("created").getLong());
+			count++;
+		}
+		if (count > 0) {
+			log.info("Replaying {} pending thumbnail jobs", count);
+		}
+	}
+
+	private void submit(String jobName, String path, long createdAt) {
+		enqueued.incrementAndGet();
+		execute(jobName, path, createdAt);
+	}
+
+	private void execute(final String jobName, final String path, final long createdAt) {
+		jobExecutor.execute(new Runnable() {
+			public void run() {
+				runJob(jobName, path, createdAt);
+			}
+		});
+	}
+
+	private void runJob(String jobName, String path, long createdAt) {
+		Session jobSession = null;
+		try {
+			jobSession = repository.loginService("datawrite", repository.getDefaultWorkspace());
+			jobSession.getWorkspace().getObservationManager().setUserData(USER_DATA);
+			// removed first, so it goes out with the thumbnails in one save
+			removeJob(jobSession, jobName);
+			if (jobSession.nodeExists(path)) {
+				processNewNode(jobSession.getNode(path));
 			}
+			jobSession.save();
+			completed.incrementAndGet();
+			log.info("finished processing of {}", path);
+		} catch (Exception e) {
+			try {
+				if (jobSession != null) {
+					jobSession.refresh(false);
+					if (jobExecutor.isShutdown()) {
+						// interrupted by deactivate, the job is replayed on the next activation
+						log.info("Thumbnail job for {} stopped by shutdown", path);
+					} else {
+						retryJob(jobSession, jobName, path, createdAt, e);
+					}
+				}
+			} catch (RepositoryException re) {
+				log.warn("Unable to update failed job {}: {}", jobName, re.getMessage());
+			}
+		} finally {
+			if (jobSession != null) {
+				jobSession.logout();
+			}
+			long latency = System.currentTimeMillis() - createdAt;
+			lastLatency = latency;
+			totalLatency.addAndGet(latency);
+			long max;
+			while (latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency)) {
+				// retry
+			}
+		}
+	}
+
+	/**
+	 * Counts a failed attempt on the job node and runs the job again after a
+	 * delay, up to <code>jobs.maxAttempts</code> attempts. Then the job is
+	 * dropped and the image is left for the backfill.
+	 */
+	private void retryJob(Session jobSession, final String jobName, final String path, final long createdAt,
+			Exception cause) throws RepositoryException {
+		String jobPath = jobsPath + "/" + jobName;
+		if (!jobSession.nodeExists(jobPath)) {
+			return;
 		}
+		Node job = jobSession.getNode(jobPath);
+		long attempts = (job.hasProperty("attempts") ? job.getProperty("attempts").getLong() : 0) + 1;
+		if (attempts >= maxAttempts) {
+			failed.incrementAndGet();
+			log.error("Thumbnail job for " + path + " failed " + attempts + " times, giving up", cause);
+			job.remove();
+			jobSession.save();
+			return;
+		}
+		retried.incrementAndGet();
+		log.warn("Thumbnail job for {} failed, attempt {} of {}: {}",
+				new Object[] { path, attempts, maxAttempts, cause.toString() });
+		job.setProperty("attempts", attempts);
+		jobSession.save();
+		if (!eventFlusher.isShutdown()) {
+			eventFlusher.schedule(new Runnable() {
+				public void run() {
+					if (!jobExecutor.isShutdown()) {
+						execute(jobName, path, createdAt);
+					}
+				}
+			}, attempts * RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void removeJob(Session jobSession, String jobName) throws RepositoryException {
+		String jobPath = jobsPath + "/" + jobName;
+		if (jobSession.nodeExists(jobPath)) {
+			jobSession.getNode(jobPath).remove();
+		}
+	}
+
+	public String getStatsName() {
+		return "thumbnailGenerator";
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		long done = completed.get() + failed.get();
+		stats.put("enqueued", enqueued.get());
+		stats.put("completed", completed.get());
+		stats.put("failed", failed.get());
+		stats.put("retried", retried.get());
+		stats.put("queueDepth", getQueueDepth());
+		stats.put("eventsReceived", eventsReceived.get());
+		stats.put("selfEvents", selfEvents.get());
+		stats.put("ingestEvents", ingestEvents.get());
+		stats.put("coalesced", coalescer.getCoalesced() + duplicateJobs.get());
+		stats.put("dropped", coalescer.getDropped());
+		stats.put("pendingEvents", coalescer.getPending());
+		long generated = renditionsGenerated.get();
+		long reused = renditionsReused.get();
+		stats.put("renditionsGenerated", generated);
+		stats.put("renditionsReused", reused);
+		stats.put("bytesSaved", bytesSaved.get());
+		// estimated from the average cost of a generated rendition
+		stats.put("cpuMillisSaved", generated == 0 ? 0 : reused * generateNanos.get() / generated / 1000000);
+		stats.put("avgLatencyMillis", done == 0 ? 0 : totalLatency.get() / done);
+		stats.put("maxLatencyMillis", maxLatency.get());
+		stats.put("lastLatencyMillis", lastLatency);
+		return stats;
+	}
+
+	/**
+	 * Whether the image behind a <code>jcr:content</code> node is missing a
+	 * rendition of the profile, or has one older than the image itself.
+	 * Unsupported and hidden files never need thumbnails.
+	 */
+	public boolean needsThumbnails(Node content) throws RepositoryException {
+		String sourceFormat = getSourceFormat(content);
+		if (sourceFormat == null) {
+			return false;
+		}
+		for (ResizeSpec spec : profile.specsFor(sourceFormat)) {
+			if (findRendition(content, spec) == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The persisted rendition of <code>content</code> for <code>spec</code>,
+	 * or null if there is none or it is older than the image.
+	 */
+	public Node findRendition(Node content, ResizeSpec spec) throws RepositoryException {
+		Node post = content.getParent().getParent().getParent();
+		String path = "thumbnails/" + thumbnailName(content, spec) + "/jcr:content";
+		if (!post.hasNode(path)) {
+			return null;
+		}
+		Node rendition = post.getNode(path);
+		long modified = content.hasProperty("jcr:lastModified")
+				? content.getProperty("jcr:lastModified").getDate().getTimeInMillis() : 0;
+		if (!rendition.hasProperty("jcr:lastModified")
+				|| rendition.getProperty("jcr:lastModified").getDate().getTimeInMillis() < modified) {
+			return null;
+		}
+		return rendition;
+	}
+
+	/**
+	 * The bytes of the persisted rendition of <code>content</code> for
+	 * <code>spec</code>, or null if {@link #findRendition} finds none.
+	 */
+	public byte[] readRendition(Node content, ResizeSpec spec) throws RepositoryException, IOException {
+		Node rendition = findRendition(content, spec);
+		if (rendition == null) {
+			return null;
+		}
+		Binary binary = rendition.getProperty("jcr:data").getBinary();
+		InputStream in = binary.getStream();
+		try {
+			byte[] bytes = new byte[(int) binary.getSize()];
+			int offset = 0;
+			while (offset < bytes.length) {
+				int n = in.read(bytes, offset, bytes.length - offset);
+				if (n < 0) {
+					throw new EOFException("Rendition " + rendition.getPath() + " ended after " + offset + " of "
+							+ bytes.length + " bytes");
+				}
+				offset += n;
+			}
+			return bytes;
+		} finally {
+			in.close();
+			binary.dispose();
+		}
+	}
+
+	/**
+	 * Asks for the profile renditions of <code>contentPath</code> to be
+	 * persisted. Goes through the same coalescing and backlog limit as
+	 * observation events.
+	 */
+	public void requestRenditions(String contentPath) {
+		coalescer.offer(contentPath, System.currentTimeMillis());
+	}
+
+	/**
+	 * The canonical format of a supported, visible image, or null. Images the
+	 * {@link ImageProbe} rejected are not supported, and neither are
+	 * renditions, which would otherwise get thumbnails of their own.
+	 */
+	public String getSourceFormat(Node content) throws RepositoryException {
+		if (!content.hasProperty("jcr:mimeType") || content.getParent().getName().startsWith(".")
+				|| content.hasProperty("gb:rejected") || isRendition(content)) {
+			return null;
+		}
+		String mimeType = supportedMimeType(content.getProperty("jcr:mimeType").getString());
+		return mimeType == null ? null : ResizeSpec.chooseFormat(supportedMimeTypes.get(mimeType).substring(1));
+	}
+
+	/**
+	 * Whether a <code>jcr:content</code> node is a generated rendition: it
+	 * carries the rendition mixin or its file sits in a
+	 * <code>thumbnails</code> folder.
+	 */
+	static boolean isRendition(Node content) throws RepositoryException {
+		return content.isNodeType(RENDITION_MIXIN) || isRenditionPath(content.getPath());
+	}
+
+	/**
+	 * Whether a file, or its <code>jcr:content</code>, is in a
+	 * <code>thumbnails</code> folder.
+	 */
+	static boolean isRenditionPath(String path) {
+		String file = path.endsWith("/jcr:content")
+				? path.substring(0, path.length() - "/jcr:content".length()) : path;
+		int slash = file.lastIndexOf('/');
+		return slash > 0 && file.substring(0, slash).endsWith("/thumbnails");
+	}
+
+	private String supportedMimeType(String mimeType) {
+		if (mimeType != null) {
+			for (String key : supportedMimeTypes.keySet()) {
+				if (mimeType.startsWith(key)) {
+					return key;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String thumbnailName(Node content, ResizeSpec spec) throws RepositoryException {
+		String extension = spec.getFormat().equals("jpeg") ? ".jpg" : "." + spec.getFormat();
+		return content.getParent().getName() + "_" + spec.getWidth() + extension;
+	}
+
+	private String getMimeType(Node n) throws RepositoryException {
+		final String mimeType = n.getProperty("jcr:mimeType").getString();
+		String result = supportedMimeType(mimeType);
 
 		if (result == null) {
 			log.info("Node {} rejected, unsupported mime-type {}", n.getPath(), mimeType);
@@ -127,95 +609,204 @@ public class ThumbnailGenerator implements EventListener {
 		return result;
 	}
 
+	/**
+	 * Creates the renditions of the profile for one image. Renditions are
+	 * stored once per source content hash below
+	 * <code>renditions.storePath</code>, named by their spec; when the same
+	 * bytes were processed before, the stored binaries are reused and nothing
+	 * is decoded. Runs under a per-hash lock and saves before releasing it, so
+	 * two uploads of the same photo cannot both generate.
+	 */
 	private void processNewNode(Node addedNode) throws Exception {
+		if (isRendition(addedNode)) {
+			log.debug("Node {} is a rendition, skipped", addedNode.getPath());
+			return;
+		}
+		// probes the header, which also corrects a wrong jcr:mimeType
+		ImageProbe.Info info = imageProbe.ensure(addedNode);
+		if (info.isRejected()) {
+			log.info("Node {} rejected: {}", addedNode.getPath(), info.getRejectReason());
+			return;
+		}
 		final String mimeType = getMimeType(addedNode);
 		if (mimeType == null) {
 			return;
 		}
-		final String suffix = supportedMimeTypes.get(mimeType);
+		final String sourceFormat = ResizeSpec.chooseFormat(supportedMimeTypes.get(mimeType).substring(1));
 
-		// Scale to a temp file for simplicity
-		log.info("Creating thumbnails for node {}", addedNode.getPath());
-		final int[] widths = { 50, 100, 250 };
-		for (int width : widths) {
-			createThumbnail(addedNode, width, mimeType, suffix);
+		String hash;
+		Binary source = addedNode.getProperty("jcr:data").getBinary();
+		try {
+			InputStream in = source.getStream();
+			try {
+				hash = Digests.sha1Hex(in);
+			} finally {
+				in.close();
+			}
+		} finally {
+			source.dispose();
 		}
-	}
-
-	private void createThumbnail(Node image, int scalePercent, String mimeType, String suffix) throws Exception {
 
-		log.info("createThumbnail: {}, {}, {}", image.getPath(), mimeType, suffix);
+		synchronized (hashLocks[(hash.hashCode() & 0x7fffffff) % hashLocks.length]) {
+			Session session = addedNode.getSession();
+			Node shard = getSharedNode(session, storePath + "/" + hash.substring(0, 2), "nt:unstructured");
+			Node store = shard.hasNode(hash) ? shard.getNode(hash) : shard.addNode(hash, "nt:unstructured");
+			Node thumbnailFolder = getThumbnailFolder(addedNode);
+			// disposed once saved, the properties set from them hold their own values
+			List<Binary> binaries = new ArrayList<Binary>();
+			try {
+				List<ResizeSpec> missing = new ArrayList<ResizeSpec>();
+				for (ResizeSpec spec : profile.specsFor(sourceFormat)) {
+					String variant = spec.toString();
+					if (store.hasNode(variant)) {
+						Binary stored = store.getNode(variant).getNode("jcr:content").getProperty("jcr:data")
+								.getBinary();
+						binaries.add(stored);
+						createThumbnail(addedNode, thumbnailFolder, spec, stored, hash, store.getNode(variant));
+						renditionsReused.incrementAndGet();
+						bytesSaved.addAndGet(stored.getSize());
+					} else {
+						missing.add(spec);
+					}
+				}
+				if (!missing.isEmpty()) {
+					log.info("Creating thumbnails for node {}", addedNode.getPath());
+					long start = System.nanoTime();
+					List<byte[]> rendered = render(addedNode, missing);
+					generateNanos.addAndGet(System.nanoTime() - start);
+					renditionsGenerated.addAndGet(missing.size());
+
+					ValueFactory valueFactory = session.getValueFactory();
+					for (int i = 0; i < missing.size(); i++) {
+						ResizeSpec spec = missing.get(i);
+						Binary binary = valueFactory.createBinary(new ByteArrayInputStream(rendered.get(i)));
+						binaries.add(binary);
+						Node stored = writeFile(store, spec.toString(), spec.getMimeType(), binary);
+						markRendition(stored, hash, spec.toString());
+						createThumbnail(addedNode, thumbnailFolder, spec, binary, hash, stored.getParent());
+					}
+				}
+				session.save();
+			} finally {
+				for (Binary binary : binaries) {
+					binary.dispose();
+				}
+			}
+		}
+	}
 
-		final File tmp = File.createTempFile(getClass().getSimpleName(), suffix);
+	/**
+	 * Decodes the image once, for the widest spec, and scales and encodes
+	 * every spec in parallel.
+	 */
+	private List<byte[]> render(Node image, List<ResizeSpec> specs) throws Exception {
+		int maxWidth = 0;
+		for (ResizeSpec spec : specs) {
+			maxWidth = Math.max(maxWidth, spec.getWidth());
+		}
+		final BufferedImage src;
+		Binary data = image.getProperty("jcr:data").getBinary();
+		ImageInputStream iis = scratchSpace.open(data);
 		try {
-			scale(image.getProperty("jcr:data").getBinary().getStream(), scalePercent, new FileOutputStream(tmp),
-					suffix);
-
-			// Create thumbnail node and set the mandatory properties
-			Node thumbnailFolder = getThumbnailFolder(image);
-			Node thumbnail = thumbnailFolder.addNode(image.getParent().getName() + "_" + scalePercent + suffix,
-					"nt:file");
-			Node contentNode = thumbnail.addNode("jcr:content", "nt:resource");
+			src = ImageScaler.read(iis, maxWidth, 0);
+		} finally {
+			iis.close();
+			data.dispose();
+		}
 
-			FileInputStream is = new FileInputStream(tmp);
-			ValueFactory valueFactory = session.getValueFactory();
-			Binary contentValue = valueFactory.createBinary(is);
-			contentNode.setProperty("jcr:data", contentValue);
+		List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+		for (final ResizeSpec spec : specs) {
+			results.add(scaleExecutor.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					ImageScaler.write(ImageScaler.scale(src, spec), spec.getFormat(), spec.getQuality(), out);
+					return out.toByteArray();
+				}
+			}));
+		}
+		List<byte[]> rendered = new ArrayList<byte[]>(specs.size());
+		for (int i = 0; i < specs.size(); i++) {
+			try {
+				rendered.add(results.get(i).get());
+			} catch (ExecutionException e) {
+				throw new IOException("Rendering " + specs.get(i) + " failed", e.getCause());
+			}
+		}
+		return rendered;
+	}
 
-			Calendar lastModified = Calendar.getInstance();
-			lastModified.setTimeInMillis(lastModified.getTimeInMillis());
-			contentNode.setProperty("jcr:lastModified", lastModified);
-			contentNode.setProperty("jcr:mimeType", mimeType);
+	private void createThumbnail(Node image, Node thumbnailFolder, ResizeSpec spec, Binary binary, String hash,
+			Node stored) throws RepositoryException {
 
-			session.save();
+		log.debug("createThumbnail: {}, {}", image.getPath(), spec);
 
-			log.info("Created thumbnail " + contentNode.getPath());
-		} finally {
-			if (tmp != null) {
-				tmp.delete();
-			}
-		}
+		// the binary is shared with the stored rendition, the data store keeps one copy
+		Node contentNode = writeFile(thumbnailFolder, thumbnailName(image, spec), spec.getMimeType(), binary);
+		markRendition(contentNode, hash, spec.toString());
+		contentNode.setProperty("gb:store", stored.getPath(), PropertyType.PATH);
 
+		log.info("Created thumbnail " + contentNode.getPath());
 	}
 
-	private Node getThumbnailFolder(Node addedNode) throws Exception {
-		Node post = addedNode.getParent().getParent().getParent();
-		if (post.hasNode("thumbnails")) {
-			log.info("thumbnails node exists already at " + post.getPath());
-			return post.getNode("thumbnails");
+	/**
+	 * Creates or updates an <code>nt:file</code> and returns its content node.
+	 */
+	private static Node writeFile(Node folder, String name, String mimeType, Binary binary)
+			throws RepositoryException {
+		Node contentNode;
+		if (folder.hasNode(name)) {
+			contentNode = folder.getNode(name).getNode("jcr:content");
 		} else {
-			Node t = post.addNode("thumbnails", "nt:folder");
-			session.save();
-			return t;
+			Node file = folder.addNode(name, "nt:file");
+			contentNode = file.addNode("jcr:content", "nt:resource");
 		}
+		contentNode.setProperty("jcr:data", binary);
+		contentNode.setProperty("jcr:lastModified", Calendar.getInstance());
+		contentNode.setProperty("jcr:mimeType", mimeType);
+		return contentNode;
 	}
 
-	public void scale(InputStream inputStream, int width, OutputStream outputStream, String suffix) throws IOException {
-		if (inputStream == null) {
-			throw new IOException("InputStream is null");
+	private static void markRendition(Node contentNode, String hash, String variant) throws RepositoryException {
+		if (!contentNode.isNodeType(RENDITION_MIXIN)) {
+			contentNode.addMixin(RENDITION_MIXIN);
 		}
+		contentNode.setProperty("gb:sourceHash", hash);
+		contentNode.setProperty("gb:variant", variant);
+	}
+
+	private Node getThumbnailFolder(Node addedNode) throws Exception {
+		Node post = addedNode.getParent().getParent().getParent();
+		return getSharedNode(addedNode.getSession(), post.getPath() + "/thumbnails", "nt:folder");
+	}
 
-		final BufferedImage src = ImageIO.read(inputStream);
-		if (src == null) {
-			final StringBuffer sb = new StringBuffer();
-			for (String fmt : ImageIO.getReaderFormatNames()) {
-				sb.append(fmt);
-				sb.append(' ');
+	/**
+	 * The node at <code>path</code>, which jobs for other images may be
+	 * creating at the same time. A missing node is created and saved in a
+	 * session of its own, so that racing jobs agree on one node instead of
+	 * conflicting when they save their thumbnails; <code>session</code> is
+	 * then refreshed, keeping its pending changes.
+	 */
+	private Node getSharedNode(Session session, String path, String type) throws RepositoryException {
+		if (!session.nodeExists(path)) {
+			Session parentSession = repository.loginService("datawrite", repository.getDefaultWorkspace());
+			try {
+				parentSession.getWorkspace().getObservationManager().setUserData(USER_DATA);
+				JcrUtil.createSharedPath(parentSession, path, type);
+			} finally {
+				parentSession.logout();
 			}
-			throw new IOException("Unable to read image, registered formats: " + sb);
+			session.refresh(true);
 		}
+		return session.getNode(path);
+	}
 
-		final double scale = (double) width / src.getWidth();
-
-		int destWidth = width;
-		int destHeight = new Double(src.getHeight() * scale).intValue();
+	public void scale(InputStream inputStream, int width, OutputStream outputStream, String suffix) throws IOException {
+		final BufferedImage src = ImageScaler.read(inputStream, width, 0);
+		final String format = ResizeSpec.chooseFormat(suffix.substring(1));
+		final ResizeSpec spec = new ResizeSpec(width, 0, ResizeSpec.Fit.CONTAIN, ResizeSpec.DEFAULT_QUALITY, format);
 
-		log.debug("Generating thumbnail, w={}, h={}", destWidth, destHeight);
-		BufferedImage dest = new BufferedImage(destWidth, destHeight, BufferedImage.TYPE_INT_RGB);
-		Graphics2D g = dest.createGraphics();
-		AffineTransform at = AffineTransform.getScaleInstance((double) destWidth / src.getWidth(),
-				(double) destHeight / src.getHeight());
-		g.drawRenderedImage(src, at);
-		ImageIO.write(dest, suffix.substring(1), outputStream);
+		final BufferedImage dest = ImageScaler.scale(src, spec);
+		log.debug("Generating thumbnail, w={}, h={}", dest.getWidth(), dest.getHeight());
+		ImageScaler.write(dest, format, spec.getQuality(), outputStream);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,454 @@
+package com.globalbin.servlets;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gets the image path warm after a restart, in the background:
+ * <ol>
+ * <li>creates an ImageIO reader and writer for every format in
+ * <code>warmStart.formats</code> and every format of the
+ * {@link RenditionProfile}, so the service provider lookup and native
+ * codec initialization happen now;</li>
+ * <li>renders a synthetic JPEG and PNG to every profile rendition
+ * <code>warmStart.iterations</code> times on the {@link ImageResizer}
+ * pool, to get the decode / scale / encode path compiled;</li>
+ * <li>fills the {@link RenditionCache} with the renditions that were
+ * requested most before the restart, from the persisted renditions where
+ * they exist, giving up after <code>warmStart.maxMillis</code>.</li>
+ * </ol>
+ *
+ * The <code>warmStart.hotRenditions</code> most requested cache keys are
+ * saved below <code>warmStart.path</code> every
+ * <code>warmStart.saveInterval</code> seconds and on deactivation. Keys
+ * whose image has changed since are skipped on replay.
+ *
+ * {@link #isReady()} turns true once all of this is done, or has failed;
+ * it is exposed at <code>/bin/api/ready</code> by the
+ * {@link ReadinessServlet} and in the stats.
+ */
+@Component(immediate = true, metatype = true, label = "GlobalBin Warm Start")
+@Service({ WarmStart.class, StatsProvider.class })
+@Property(name = "service.description", value = "GlobalBin Warm Start")
+public class WarmStart implements StatsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(WarmStart.class);
+
+    @Property(boolValue = true)
+    private static final String ENABLED_PROPERTY = "warmStart.enabled";
+
+    @Property(value = "/var/gb/warm-start")
+    private static final String PATH_PROPERTY = "warmStart.path";
+
+    @Property(value = { "jpeg", "png", "gif" })
+    private static final String FORMATS_PROPERTY = "warmStart.formats";
+
+    @Property(intValue = 5)
+    private static final String ITERATIONS_PROPERTY = "warmStart.iterations";
+
+    @Property(intValue = 500)
+    private static final String HOT_RENDITIONS_PROPERTY = "warmStart.hotRenditions";
+
+    @Property(longValue = 120000L)
+    private static final String MAX_MILLIS_PROPERTY = "warmStart.maxMillis";
+
+    @Property(intValue = 300)
+    private static final String SAVE_INTERVAL_PROPERTY = "warmStart.saveInterval";
+
+    static final String STATE_PRELOADING = "preloading";
+    static final String STATE_WARMING = "warming";
+    static final String STATE_REPLAYING = "replaying";
+    static final String STATE_READY = "ready";
+    static final String STATE_FAILED = "failed";
+    static final String STATE_DISABLED = "disabled";
+
+    private static final String RENDITIONS = "renditions";
+
+    private static final int SYNTHETIC_WIDTH = 1600;
+    private static final int SYNTHETIC_HEIGHT = 1200;
+
+    @Reference
+    private SlingRepository repository;
+
+    @Reference
+    private RenditionCache renditionCache;
+
+    @Reference
+    private ImageResizer imageResizer;
+
+    @Reference
+    private ScratchSpace scratchSpace;
+
+    @Reference
+    private RenditionProfile renditionProfile;
+
+    @Reference
+    private ThumbnailGenerator thumbnailGenerator;
+
+    private String path;
+    private String[] formats;
+    private int iterations;
+    private int hotRenditions;
+    private long maxMillis;
+
+    private ScheduledExecutorService executor;
+
+    /** The list replayed at start, kept so an early save does not forget it. */
+    private volatile List<String> replayedKeys = new ArrayList<String>();
+
+    private volatile String state = STATE_PRELOADING;
+    private volatile String lastError;
+
+    private final AtomicLong codecs = new AtomicLong();
+    private final AtomicLong preloadMillis = new AtomicLong();
+    private final AtomicLong warmupRenders = new AtomicLong();
+    private final AtomicLong warmupMillis = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong replayedPersisted = new AtomicLong();
+    private final AtomicLong replaySkipped = new AtomicLong();
+    private final AtomicLong replayFailed = new AtomicLong();
+    private final AtomicLong replayMillis = new AtomicLong();
+    private final AtomicLong saved = new AtomicLong();
+
+    protected void activate(ComponentContext context) {
+        Dictionary<?, ?> props = context.getProperties();
+        path = ConfigUtil.toString(props, PATH_PROPERTY, "/var/gb/warm-start");
+        formats = ConfigUtil.toStringArray(props, FORMATS_PROPERTY, new String[] { "jpeg", "png", "gif" });
+        iterations = Math.max(0, ConfigUtil.toInt(props, ITERATIONS_PROPERTY, 5));
+        hotRenditions = Math.max(0, ConfigUtil.toInt(props, HOT_RENDITIONS_PROPERTY, 500));
+        maxMillis = ConfigUtil.toLong(props, MAX_MILLIS_PROPERTY, 120000L);
+        int saveInterval = Math.max(1, ConfigUtil.toInt(props, SAVE_INTERVAL_PROPERTY, 300));
+        if (!ConfigUtil.toBoolean(props, ENABLED_PROPERTY, true)) {
+            state = STATE_DISABLED;
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("gb-warm-start"));
+        executor.execute(new Runnable() {
+            public void run() {
+                warm();
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                save();
+            }
+        }, saveInterval, saveInterval, TimeUnit.SECONDS);
+    }
+
+    protected void deactivate(ComponentContext context) {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        save();
+    }
+
+    /**
+     * True once the instance has warmed up and can take traffic; also true
+     * if warming up failed, so a broken warm start does not keep the
+     * instance out of service.
+     */
+    public boolean isReady() {
+        return STATE_READY.equals(state) || STATE_FAILED.equals(state) || STATE_DISABLED.equals(state);
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    private void warm() {
+        long start = System.currentTimeMillis();
+        try {
+            state = STATE_PRELOADING;
+            preload();
+            state = STATE_WARMING;
+            warmup();
+            state = STATE_REPLAYING;
+            replay(start + maxMillis);
+            state = STATE_READY;
+            log.info("Warm start done in {}ms: {} codecs, {} warmup renders, {} renditions replayed",
+                    new Object[] { System.currentTimeMillis() - start, codecs.get(), warmupRenders.get(),
+                            replayed.get() });
+        } catch (Exception e) {
+            log.warn("Warm start failed, taking traffic cold", e);
+            lastError = e.toString();
+            state = STATE_FAILED;
+        }
+    }
+
+    private void preload() {
+        long start = System.currentTimeMillis();
+        for (String format : formatsToWarm()) {
+            for (Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName(format); it.hasNext();) {
+                it.next().dispose();
+                codecs.incrementAndGet();
+            }
+            for (Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format); it.hasNext();) {
+                it.next().dispose();
+                codecs.incrementAndGet();
+            }
+        }
+        preloadMillis.set(System.currentTimeMillis() - start);
+    }
+
+    private Set<String> formatsToWarm() {
+        Set<String> result = new LinkedHashSet<String>();
+        for (String format : formats) {
+            result.add(format);
+        }
+        for (RenditionProfile.Entry entry : renditionProfile.getEntries()) {
+            if (entry.getFormat() != null) {
+                result.add(entry.getFormat());
+            }
+        }
+        return result;
+    }
+
+    private void warmup() throws IOException {
+        long start = System.currentTimeMillis();
+        BufferedImage synthetic = synthetic(SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT);
+        Map<String, byte[]> sources = new LinkedHashMap<String, byte[]>();
+        for (String format : new String[] { "jpeg", "png" }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageScaler.write(synthetic, format, ResizeSpec.DEFAULT_QUALITY, out);
+            sources.put(format, out.toByteArray());
+        }
+        try {
+            for (int i = 0; i < iterations && !Thread.currentThread().isInterrupted(); i++) {
+                for (Map.Entry<String, byte[]> source : sources.entrySet()) {
+                    for (ResizeSpec spec : renditionProfile.specsFor(source.getKey())) {
+                        imageResizer.resize(new ByteArrayInputStream(source.getValue()), spec);
+                        warmupRenders.incrementAndGet();
+                    }
+                }
+            }
+        } catch (ImageResizer.OverloadedException e) {
+            // real requests are already keeping the pool busy
+            log.info("Warmup cut short: {}", e.getMessage());
+        }
+        warmupMillis.set(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * A gradient with some edges, so the encoders do real work.
+     */
+    static BufferedImage synthetic(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+            g.fillRect(0, 0, width, height);
+            g.setColor(Color.WHITE);
+            for (int x = 0; x < width; x += 64) {
+                g.drawLine(x, 0, width - x, height);
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private void replay(long deadline) throws RepositoryException {
+        long start = System.currentTimeMillis();
+        Session session = repository.loginService("datawrite", repository.getDefaultWorkspace());
+        try {
+            replayedKeys = readKeys(session);
+            for (String key : replayedKeys) {
+                if (System.currentTimeMillis() > deadline || Thread.currentThread().isInterrupted()) {
+                    log.info("Replay stopped after {} renditions", replayed.get());
+                    break;
+                }
+                try {
+                    if (replay(session, key)) {
+                        replayed.incrementAndGet();
+                    } else {
+                        replaySkipped.incrementAndGet();
+                    }
+                } catch (ImageResizer.OverloadedException e) {
+                    log.info("Replay stopped, resize pool busy: {}", e.getMessage());
+                    break;
+                } catch (Exception e) {
+                    log.debug("Unable to replay " + key, e);
+                    replayFailed.incrementAndGet();
+                }
+            }
+        } finally {
+            session.logout();
+        }
+        replayMillis.set(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Puts the rendition for <code>key</code> into the cache, unless the
+     * image is gone or has changed. Returns false if the key was skipped.
+     */
+    private boolean replay(Session session, String key) throws RepositoryException, IOException {
+        String[] parts = parseKey(key);
+        if (parts == null || !session.nodeExists(parts[0] + "/jcr:content")) {
+            return false;
+        }
+        Node content = session.getNode(parts[0] + "/jcr:content");
+        long lastModified = content.hasProperty("jcr:lastModified")
+                ? content.getProperty("jcr:lastModified").getDate().getTimeInMillis() : 0L;
+        if (!String.valueOf(lastModified).equals(parts[1]) || thumbnailGenerator.getSourceFormat(content) == null) {
+            return false;
+        }
+        ResizeSpec spec;
+        try {
+            spec = ResizeSpec.parse(parts[2].split("\\."), 0, 0, null);
+        } catch (ResizeSpec.InvalidSpecException e) {
+            // originals and anything else that is not a rendition
+            return false;
+        }
+        byte[] bytes = thumbnailGenerator.readRendition(content, spec);
+        if (bytes != null) {
+            replayedPersisted.incrementAndGet();
+        } else {
+            Binary data = content.getProperty("jcr:data").getBinary();
+            try {
+                bytes = imageResizer.resize(scratchSpace.open(data), spec);
+            } finally {
+                data.dispose();
+            }
+        }
+        renditionCache.put(key, bytes);
+        return true;
+    }
+
+    /**
+     * Splits a {@link RenditionCache#key} into path, lastModified and
+     * variant, or returns null if it is not one.
+     */
+    static String[] parseKey(String key) {
+        int variant = key.lastIndexOf('|');
+        int modified = variant > 0 ? key.lastIndexOf('|', variant - 1) : -1;
+        if (modified <= 0 || !key.startsWith("/")) {
+            return null;
+        }
+        return new String[] { key.substring(0, modified), key.substring(modified + 1, variant),
+                key.substring(variant + 1) };
+    }
+
+    private List<String> readKeys(Session session) throws RepositoryException {
+        List<String> keys = new ArrayList<String>();
+        String property = path + "/" + RENDITIONS;
+        if (session.propertyExists(property)) {
+            for (Value v : session.getProperty(property).getValues()) {
+                keys.add(v.getString());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Saves the hottest keys, topped up with the ones replayed at start so
+     * that a restart shortly after the last one keeps the older list.
+     */
+    private synchronized void save() {
+        if (hotRenditions == 0) {
+            return;
+        }
+        List<String> keys = mergeKeys(renditionCache.hottest(hotRenditions), replayedKeys, hotRenditions);
+        if (keys.isEmpty()) {
+            return;
+        }
+        Session session = null;
+        try {
+            session = repository.loginService("datawrite", repository.getDefaultWorkspace());
+            JcrUtil.getOrCreatePath(session, path).setProperty(RENDITIONS, keys.toArray(new String[keys.size()]));
+            session.save();
+            saved.set(keys.size());
+        } catch (RepositoryException e) {
+            log.warn("Unable to save the hot rendition list: {}", e.getMessage());
+        } finally {
+            if (session != null) {
+                session.logout();
+            }
+        }
+    }
+
+    /**
+     * <code>hottest</code> followed by the <code>previous</code> keys it
+     * does not have yet, at most <code>max</code>.
+     */
+    static List<String> mergeKeys(List<String> hottest, List<String> previous, int max) {
+        Set<String> merged = new LinkedHashSet<String>();
+        for (String key : hottest) {
+            if (merged.size() < max) {
+                merged.add(key);
+            }
+        }
+        for (String key : previous) {
+            if (merged.size() < max) {
+                merged.add(key);
+            }
+        }
+        return new ArrayList<String>(merged);
+    }
+
+    public String getStatsName() {
+        return "warmStart";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("ready", isReady());
+        stats.put("state", state);
+        stats.put("codecs", codecs.get());
+        stats.put("preloadMillis", preloadMillis.get());
+        stats.put("warmupRenders", warmupRenders.get());
+        stats.put("warmupMillis", warmupMillis.get());
+        stats.put("replayed", replayed.get());
+        stats.put("replayedPersisted", replayedPersisted.get());
+        stats.put("replaySkipped", replaySkipped.get());
+        stats.put("replayFailed", replayFailed.get());
+        stats.put("replayMillis", replayMillis.get());
+        stats.put("savedKeys", saved.get());
+        if (lastError != null) {
+            stats.put("lastError", lastError);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,146 @@
+package com.globalbin.servlets;
+
+import java.util.Dictionary;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out per-request service-user sessions for content writers. Each
+ * caller gets its own session, so nothing is shared between concurrent
+ * requests. The number of sessions open at once is bounded; callers that
+ * cannot get a permit within the timeout are turned away rather than
+ * queueing up behind the repository.
+ */
+@Component(immediate = true, metatype = true, label = "GlobalBin Write Session Provider")
+@Service({ WriteSessionProvider.class, StatsProvider.class })
+@Property(name = "service.description", value = "GlobalBin Write Session Provider")
+public class WriteSessionProvider implements StatsProvider {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteSessionProvider.class);
+
+    @Property(value = "datawrite")
+    private static final String SUBSERVICE_PROPERTY = "session.subservice";
+
+    @Property(intValue = 16)
+    private static final String MAX_SESSIONS_PROPERTY = "session.max";
+
+    @Property(longValue = 5000)
+    private static final String ACQUIRE_TIMEOUT_PROPERTY = "session.acquireTimeoutMs";
+
+    /**
+     * Thrown when no session could be handed out within the timeout.
+     */
+    public static class SaturatedException extends RepositoryException {
+        private static final long serialVersionUID = 6470226011584637405L;
+
+        public SaturatedException(String message) {
+            super(message);
+        }
+    }
+
+    @Reference
+    private SlingRepository repository;
+
+    private String subservice;
+    private int maxSessions;
+    private long acquireTimeoutMs;
+    private Semaphore permits;
+
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong loginNanos = new AtomicLong();
+    private final AtomicLong maxLoginNanos = new AtomicLong();
+    private final AtomicLong saturated = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    protected void activate(ComponentContext context) {
+        Dictionary<?, ?> props = context.getProperties();
+        subservice = ConfigUtil.toString(props, SUBSERVICE_PROPERTY, "datawrite");
+        maxSessions = Math.max(1, ConfigUtil.toInt(props, MAX_SESSIONS_PROPERTY, 16));
+        acquireTimeoutMs = ConfigUtil.toLong(props, ACQUIRE_TIMEOUT_PROPERTY, 5000);
+        permits = new Semaphore(maxSessions, true);
+        log.info("Activated: WriteSessionProvider, subservice={}, max={}", subservice, maxSessions);
+    }
+
+    /**
+     * Logs in a new service session. Must be paired with
+     * {@link #release(Session)} in a finally block.
+     */
+    public Session acquire() throws RepositoryException {
+        long waitStart = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                saturated.incrementAndGet();
+                throw new SaturatedException("No write session available within " + acquireTimeoutMs + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("Interrupted while waiting for a write session", e);
+        }
+        waitNanos.addAndGet(System.nanoTime() - waitStart);
+
+        long start = System.nanoTime();
+        try {
+            Session session = repository.loginService(subservice, repository.getDefaultWorkspace());
+            long elapsed = System.nanoTime() - start;
+            logins.incrementAndGet();
+            loginNanos.addAndGet(elapsed);
+            long max;
+            while (elapsed > (max = maxLoginNanos.get()) && !maxLoginNanos.compareAndSet(max, elapsed)) {
+                // retry
+            }
+            return session;
+        } catch (RepositoryException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Logs the session out and returns its permit. Null is ignored.
+     */
+    public void release(Session session) {
+        if (session != null) {
+            try {
+                session.logout();
+            } finally {
+                permits.release();
+            }
+        }
+    }
+
+    public String getStatsName() {
+        return "writeSessions";
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        long count = logins.get();
+        stats.put("logins", count);
+        stats.put("avgLoginMicros", count == 0 ? 0 : loginNanos.get() / count / 1000);
+        stats.put("maxLoginMicros", maxLoginNanos.get() / 1000);
+        stats.put("avgWaitMicros", count == 0 ? 0 : waitNanos.get() / count / 1000);
+        stats.put("inUse", maxSessions - permits.availablePermits());
+        stats.put("max", maxSessions);
+        stats.put("waiting", permits.getQueueLength());
+        stats.put("saturated", saturated.get());
+        return stats;
+    }
+}
@@ -0,0 +1,68 @@
+package com.globalbin.servlets;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the sprite layout and multipart output of
+ * {@link BatchThumbnailServlet}.
+ */
+public class BatchThumbnailServletTest extends TestCase {
+
+    public void testLayoutShelves() {
+        Rectangle[] cells = BatchThumbnailServlet.layout(new int[] {200, 150, 200, 100, 200},
+                new int[] {100, 120, 80, 200, 50});
+        // three per shelf, the first shelf as high as its tallest image
+        assertEquals(new Rectangle(0, 0, 200, 100), cells[0]);
+        assertEquals(new Rectangle(200, 0, 150, 120), cells[1]);
+        assertEquals(new Rectangle(350, 0, 200, 80), cells[2]);
+        assertEquals(new Rectangle(0, 120, 100, 200), cells[3]);
+        assertEquals(new Rectangle(100, 120, 200, 50), cells[4]);
+    }
+
+    public void testLayoutEmpty() {
+        assertEquals(0, BatchThumbnailServlet.layout(new int[0], new int[0]).length);
+    }
+
+    public void testSummary() throws Exception {
+        BatchThumbnailServlet.Item ok = new BatchThumbnailServlet.Item("/content/images/a.jpg");
+        ok.cell = new Rectangle(0, 10, 20, 30);
+        BatchThumbnailServlet.Item missing = new BatchThumbnailServlet.Item("/content/images/b.jpg");
+        missing.error = "Not found";
+        String json = BatchThumbnailServlet.summary(Arrays.asList(ok, missing), new Rectangle(0, 0, 20, 40));
+        assertEquals("{\"width\":20,\"height\":40,\"images\":{"
+                + "\"/content/images/a.jpg\":{\"x\":0,\"y\":10,\"width\":20,\"height\":30},"
+                + "\"/content/images/b.jpg\":{\"error\":\"Not found\"}}}", json);
+    }
+
+    public void testMultipartRoundTrip() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        BatchThumbnailServlet.MultipartWriter out = new BatchThumbnailServlet.MultipartWriter(body, "b0undary");
+        out.part("image/jpeg", "/content/images/a.jpg", new byte[] {1, 2, 3});
+        out.part("application/json", null, "{}".getBytes("UTF-8"));
+        out.close();
+
+        MultipartStream in = new MultipartStream(new ByteArrayInputStream(body.toByteArray()), "b0undary", 64);
+        assertTrue(in.next());
+        assertEquals("image/jpeg", in.getHeader("Content-Type"));
+        assertEquals("/content/images/a.jpg", in.getHeader("Content-Location"));
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, read(in.getInputStream())));
+        assertTrue(in.next());
+        assertEquals("{}", new String(read(in.getInputStream()), "UTF-8"));
+        assertFalse(in.next());
+    }
+
+    private static byte[] read(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+}
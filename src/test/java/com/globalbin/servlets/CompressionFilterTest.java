@@ -0,0 +1,49 @@
+package com.globalbin.servlets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for gzip negotiation and the compressed variant cache.
+ */
+public class CompressionFilterTest extends TestCase {
+
+    public void testAcceptsGzip() {
+        assertTrue(CompressionFilter.acceptsGzip("gzip, deflate, br"));
+        assertTrue(CompressionFilter.acceptsGzip("br;q=1.0, gzip;q=0.8"));
+        assertTrue(CompressionFilter.acceptsGzip("*"));
+        assertFalse(CompressionFilter.acceptsGzip("gzip;q=0"));
+        assertFalse(CompressionFilter.acceptsGzip("identity"));
+        assertFalse(CompressionFilter.acceptsGzip(null));
+    }
+
+    public void testCompressibleTypes() {
+        CompressionFilter filter = new CompressionFilter();
+        assertTrue(filter.isCompressible("text/html; charset=UTF-8"));
+        assertTrue(filter.isCompressible("application/json"));
+        assertFalse(filter.isCompressible("image/jpeg"));
+        assertFalse(filter.isCompressible(null));
+    }
+
+    public void testCompressReusesVariant() throws Exception {
+        CompressionFilter filter = new CompressionFilter();
+        byte[] body = new byte[4096];
+        Arrays.fill(body, (byte) 'a');
+        byte[] first = filter.compress(body);
+        assertSame(first, filter.compress(body.clone()));
+        assertEquals(1L, filter.getStats().get("variantHits"));
+
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(first));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        assertTrue(Arrays.equals(body, out.toByteArray()));
+    }
+}
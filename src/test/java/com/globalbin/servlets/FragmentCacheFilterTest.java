@@ -0,0 +1,97 @@
+package com.globalbin.servlets;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the invalidation of cached page fragments.
+ */
+public class FragmentCacheFilterTest extends TestCase {
+
+    private static FragmentCacheFilter.Fragment fragment(String text) {
+        return new FragmentCacheFilter.Fragment("text/html", "UTF-8", text, null);
+    }
+
+    public void testInvalidatesNodeAndOptionallyDescendants() {
+        FragmentCacheFilter filter = new FragmentCacheFilter();
+        filter.configure(true, FragmentCacheFilter.DEFAULT_RESOURCE_TYPES, 1024, 1024);
+        filter.cache.put("/content/a|||html||-1", fragment("a"));
+        filter.cache.put("/content/a|live||html||-1", fragment("a live"));
+        filter.cache.put("/content/a/child|||html||-1", fragment("child"));
+        filter.cache.put("/content/ab|||html||-1", fragment("ab"));
+
+        filter.invalidate("/content/a", false);
+        assertEquals(2, filter.cache.size());
+        assertNotNull(filter.cache.get("/content/a/child|||html||-1"));
+        assertNotNull(filter.cache.get("/content/ab|||html||-1"));
+
+        filter.invalidate("/content/a", true);
+        assertEquals(1, filter.cache.size());
+        assertEquals(3L, filter.getStats().get("invalidations"));
+    }
+
+    public void testBoundedByWeight() {
+        FragmentCacheFilter filter = new FragmentCacheFilter();
+        filter.configure(true, FragmentCacheFilter.DEFAULT_RESOURCE_TYPES, 20, 1024);
+        filter.cache.put("1", fragment("12345"));
+        filter.cache.put("2", fragment("12345"));
+        filter.cache.put("3", fragment("12345"));
+        assertEquals(2, filter.cache.size());
+        assertNull(filter.cache.get("1"));
+    }
+
+    public void testHitReplaysHeaders() throws Exception {
+        List<String> original = new ArrayList<String>();
+        FragmentCacheFilter.CapturingResponse capture = new FragmentCacheFilter.CapturingResponse(
+                recorder(original), 1024);
+        capture.setLocale(Locale.GERMAN);
+        capture.setHeader("Cache-Control", "max-age=60");
+        capture.setDateHeader("Last-Modified", 1000L);
+        capture.addHeader("Vary", "Cookie");
+        capture.getWriter().write("page");
+        FragmentCacheFilter.Fragment fragment = capture.toFragment();
+        assertNotNull(fragment);
+
+        List<String> replayed = new ArrayList<String>();
+        FragmentCacheFilter.write(fragment, recorder(replayed));
+        assertEquals(Arrays.asList("setLocale [de]", "setHeader [Cache-Control, max-age=60]",
+                "setDateHeader [Last-Modified, 1000]", "addHeader [Vary, Cookie]"), replayed.subList(0, 4));
+    }
+
+    public void testCookiesAreNotCached() throws Exception {
+        FragmentCacheFilter.CapturingResponse capture = new FragmentCacheFilter.CapturingResponse(
+                recorder(new ArrayList<String>()), 1024);
+        capture.addCookie(new Cookie("session", "x"));
+        capture.getWriter().write("page");
+        assertNull(capture.toFragment());
+    }
+
+    /**
+     * A response that records the calls made on it.
+     */
+    private static SlingHttpServletResponse recorder(final List<String> calls) {
+        return (SlingHttpServletResponse) Proxy.newProxyInstance(SlingHttpServletResponse.class.getClassLoader(),
+                new Class<?>[] { SlingHttpServletResponse.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getWriter")) {
+                            return new PrintWriter(new StringWriter());
+                        }
+                        calls.add(method.getName() + (args != null ? " " + Arrays.toString(args) : ""));
+                        return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+                    }
+                });
+    }
+}
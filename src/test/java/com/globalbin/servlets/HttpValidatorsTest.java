@@ -0,0 +1,40 @@
+package com.globalbin.servlets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ETag matching and Range parsing.
+ */
+public class HttpValidatorsTest extends TestCase {
+
+    public void testEtagMatching() {
+        String etag = HttpValidators.etag("id", 1000L, 42L, "w200");
+        assertTrue(HttpValidators.matches(etag, etag));
+        assertTrue(HttpValidators.matches("\"other\", W/" + etag, etag));
+        assertTrue(HttpValidators.matches("*", etag));
+        assertFalse(HttpValidators.matches("\"other\"", etag));
+        assertFalse(etag.equals(HttpValidators.etag("id", 1000L, 42L, "w400")));
+    }
+
+    public void testParseRange() {
+        HttpValidators.ByteRange r = HttpValidators.parseRange("bytes=0-99", 1000);
+        assertEquals(0, r.first);
+        assertEquals(99, r.last);
+
+        r = HttpValidators.parseRange("bytes=900-", 1000);
+        assertEquals(900, r.first);
+        assertEquals(999, r.last);
+
+        r = HttpValidators.parseRange("bytes=-100", 1000);
+        assertEquals(900, r.first);
+        assertEquals(100, r.length());
+
+        r = HttpValidators.parseRange("bytes=500-5000", 1000);
+        assertEquals(999, r.last);
+
+        assertSame(HttpValidators.UNSATISFIABLE, HttpValidators.parseRange("bytes=1000-", 1000));
+        assertNull(HttpValidators.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(HttpValidators.parseRange("bytes=9-2", 1000));
+        assertNull(HttpValidators.parseRange("items=0-1", 1000));
+    }
+}
@@ -0,0 +1,67 @@
+package com.globalbin.servlets;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for header-only image probing.
+ */
+public class ImageProbeTest extends TestCase {
+
+    private static byte[] encode(int width, int height, int type, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, type), format, out);
+        return out.toByteArray();
+    }
+
+    private static ImageProbe.Info probe(ImageProbe probe, byte[] bytes) throws IOException {
+        return probe.probe(new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    public void testReadsHeaderFacts() throws IOException {
+        ImageProbe probe = new ImageProbe();
+        ImageProbe.Info png = probe(probe, encode(640, 480, BufferedImage.TYPE_INT_ARGB, "png"));
+        assertFalse(png.isRejected());
+        assertEquals(640, png.getWidth());
+        assertEquals(480, png.getHeight());
+        assertEquals(640L * 480, png.getPixels());
+        assertEquals("png", png.getFormat());
+        assertEquals("image/png", png.getMimeType());
+        assertEquals("RGB", png.getColorSpace());
+        assertTrue(png.hasAlpha());
+
+        ImageProbe.Info jpeg = probe(probe, encode(32, 16, BufferedImage.TYPE_BYTE_GRAY, "jpeg"));
+        assertEquals("jpeg", jpeg.getFormat());
+        assertEquals("GRAY", jpeg.getColorSpace());
+        assertEquals(1, jpeg.getOrientation());
+    }
+
+    public void testRejectsOversizedAndUnknown() throws IOException {
+        ImageProbe probe = new ImageProbe();
+        probe.configure(1000, 30000);
+        ImageProbe.Info big = probe(probe, encode(100, 20, BufferedImage.TYPE_INT_RGB, "png"));
+        assertTrue(big.isRejected());
+        assertEquals(100, big.getWidth());
+        assertTrue(probe(probe, "not an image at all".getBytes("UTF-8")).isRejected());
+        assertEquals(1L, probe.getStats().get("rejectedOversized"));
+        assertEquals(1L, probe.getStats().get("rejectedUnreadable"));
+    }
+
+    public void testExifOrientation() {
+        // "Exif\0\0", big endian TIFF header, IFD0 at 8 with one entry: orientation 6
+        byte[] app1 = { 'E', 'x', 'i', 'f', 0, 0, 'M', 'M', 0, 42, 0, 0, 0, 8, 0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1,
+                0, 6, 0, 0 };
+        assertEquals(6, ImageProbe.exifOrientation(app1));
+        byte[] little = { 'E', 'x', 'i', 'f', 0, 0, 'I', 'I', 42, 0, 8, 0, 0, 0, 1, 0, 0x12, 0x01, 3, 0, 1, 0, 0, 0,
+                3, 0, 0, 0 };
+        assertEquals(3, ImageProbe.exifOrientation(little));
+        assertEquals(0, ImageProbe.exifOrientation(new byte[] { 'J', 'F', 'I', 'F' }));
+    }
+}
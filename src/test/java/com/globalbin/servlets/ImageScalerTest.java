@@ -0,0 +1,80 @@
+package com.globalbin.servlets;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for resize selector parsing and the shared scaler.
+ */
+public class ImageScalerTest extends TestCase {
+
+    public void testParseSelectors() {
+        ResizeSpec spec = ResizeSpec.parse(new String[] { "show", "w400", "q80", "webp-or-png" }, 1, 200, "jpg");
+        assertEquals(400, spec.getWidth());
+        assertEquals(0, spec.getHeight());
+        assertEquals(80, spec.getQuality());
+        assertEquals("png", spec.getFormat());
+
+        spec = ResizeSpec.parse(new String[] { "show" }, 1, 200, "jpg");
+        assertEquals(200, spec.getWidth());
+        assertEquals("jpeg", spec.getFormat());
+        assertEquals("image/jpeg", spec.getMimeType());
+    }
+
+    public void testParseRejectsUnknownSelector() {
+        try {
+            ResizeSpec.parse(new String[] { "show", "bogus" }, 1, 200, "jpg");
+            fail();
+        } catch (ResizeSpec.InvalidSpecException e) {
+            // expected
+        }
+    }
+
+    public void testScaleKeepsAspectAndNeverUpscales() {
+        BufferedImage src = new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB);
+        BufferedImage dest = ImageScaler.scale(src, new ResizeSpec(200, 0, ResizeSpec.Fit.CONTAIN, 85, "jpeg"));
+        assertEquals(200, dest.getWidth());
+        assertEquals(150, dest.getHeight());
+
+        dest = ImageScaler.scale(src, new ResizeSpec(1200, 0, ResizeSpec.Fit.CONTAIN, 85, "jpeg"));
+        assertEquals(800, dest.getWidth());
+
+        dest = ImageScaler.scale(src, new ResizeSpec(100, 100, ResizeSpec.Fit.COVER, 85, "jpeg"));
+        assertEquals(100, dest.getWidth());
+        assertEquals(100, dest.getHeight());
+
+        dest = ImageScaler.scale(src, new ResizeSpec(100, 100, ResizeSpec.Fit.CONTAIN, 85, "jpeg"));
+        assertEquals(100, dest.getWidth());
+        assertEquals(75, dest.getHeight());
+    }
+
+    public void testSubsamplingKeepsTwiceTheTarget() {
+        assertEquals(12, ImageScaler.subsampling(6000, 4000, 250, 0));
+        assertEquals(10, ImageScaler.subsampling(6000, 4000, 250, 200));
+        assertEquals(1, ImageScaler.subsampling(300, 200, 250, 0));
+        assertEquals(1, ImageScaler.subsampling(300, 200, 0, 0));
+    }
+
+    public void testProgressiveScaleReusesScratchSafely() {
+        BufferedImage src = new BufferedImage(3000, 2000, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage first = ImageScaler.scale(src, new ResizeSpec(100, 0, ResizeSpec.Fit.CONTAIN, 85, "png"));
+        BufferedImage second = ImageScaler.scale(src, new ResizeSpec(250, 0, ResizeSpec.Fit.CONTAIN, 85, "png"));
+        assertEquals(100, first.getWidth());
+        assertEquals(67, first.getHeight());
+        assertEquals(250, second.getWidth());
+        assertEquals(BufferedImage.TYPE_INT_ARGB, second.getType());
+    }
+
+    public void testResizeRoundTrip() throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageScaler.write(new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB), "png", 85, png);
+        byte[] jpeg = ImageScaler.resize(new ByteArrayInputStream(png.toByteArray()),
+                new ResizeSpec(100, 0, ResizeSpec.Fit.CONTAIN, 80, "jpeg"));
+        BufferedImage result = ImageScaler.read(new ByteArrayInputStream(jpeg));
+        assertEquals(100, result.getWidth());
+        assertEquals(50, result.getHeight());
+    }
+}
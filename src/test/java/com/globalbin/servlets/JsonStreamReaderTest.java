@@ -0,0 +1,95 @@
+package com.globalbin.servlets;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import com.globalbin.servlets.JsonStreamReader.Token;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the streaming JSON tokenizer.
+ */
+public class JsonStreamReaderTest extends TestCase {
+
+    public void testTokens() throws IOException {
+        JsonStreamReader r = new JsonStreamReader(new StringReader(
+                "{\"a\": \"x\\\"y\\u0041\", \"b\": [1, -2.5e3, true, null], \"c\": {}}"));
+        assertEquals(Token.START_OBJECT, r.next());
+        assertEquals("a", r.nextName());
+        assertEquals("x\"yA", r.nextString());
+        assertEquals("b", r.nextName());
+        assertEquals(Token.START_ARRAY, r.next());
+        assertEquals(Token.NUMBER, r.next());
+        assertEquals("1", r.getText());
+        assertEquals(Token.NUMBER, r.next());
+        assertEquals("-2.5e3", r.getText());
+        assertEquals(Token.BOOLEAN, r.next());
+        assertEquals(Token.NULL, r.next());
+        assertEquals(Token.END_ARRAY, r.next());
+        assertEquals("c", r.nextName());
+        assertEquals(Token.START_OBJECT, r.next());
+        assertEquals(Token.END_OBJECT, r.next());
+        assertEquals(Token.END_OBJECT, r.next());
+        assertEquals(Token.END_DOCUMENT, r.next());
+    }
+
+    public void testNdjsonAndComments() throws IOException {
+        JsonStreamReader r = new JsonStreamReader(new StringReader(
+                "{\"path\": \"content\"} // first\n/* second */ {\"path\": \"apps\", \"skip\": {\"x\": [1, {}]}}\n"));
+        assertEquals(Token.START_OBJECT, r.next());
+        assertEquals("path", r.nextName());
+        assertEquals("content", r.nextString());
+        assertEquals(Token.END_OBJECT, r.next());
+        assertEquals(Token.START_OBJECT, r.next());
+        assertEquals("path", r.nextName());
+        assertEquals("apps", r.nextString());
+        assertEquals("skip", r.nextName());
+        r.skipValue();
+        assertEquals(Token.END_OBJECT, r.next());
+        assertEquals(Token.END_DOCUMENT, r.peek());
+    }
+
+    public void testRejectsMalformedInput() {
+        try {
+            JsonStreamReader r = new JsonStreamReader(new StringReader("{\"a\" 1}"));
+            r.next();
+            r.next();
+            r.next();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testLimitsStringLength() throws IOException {
+        JsonStreamReader r = new JsonStreamReader(new StringReader("[\"abcdef\"]"), 4);
+        r.next();
+        try {
+            r.next();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testNestingIsBounded() throws IOException {
+        StringBuilder ok = new StringBuilder();
+        for (int i = 0; i < JsonStreamReader.MAX_DEPTH; i++) {
+            ok.append('[');
+        }
+        JsonStreamReader r = new JsonStreamReader(new StringReader(ok.toString()));
+        for (int i = 0; i < JsonStreamReader.MAX_DEPTH; i++) {
+            assertEquals(Token.START_ARRAY, r.next());
+        }
+        r = new JsonStreamReader(new StringReader(ok.append('[').toString()));
+        try {
+            for (int i = 0; i <= JsonStreamReader.MAX_DEPTH; i++) {
+                r.next();
+            }
+            fail("nesting beyond the limit accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Invalid JSON"));
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.globalbin.servlets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the log-linear histogram behind the request metrics.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBucketsAreContiguous() {
+        long expectedLow = 0;
+        for (int i = 0; i < 200; i++) {
+            long high = LatencyHistogram.highestValue(i);
+            assertEquals(i, LatencyHistogram.index(expectedLow));
+            assertEquals(i, LatencyHistogram.index(high));
+            expectedLow = high + 1;
+        }
+    }
+
+    public void testPercentilesWithinBucketPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            h.record(i);
+        }
+        assertEquals(10000, h.getCount());
+        assertEquals(10000, h.getMax());
+        assertEquals(5000, h.getMean());
+        long p50 = h.percentile(50);
+        assertTrue(p50 >= 5000 && p50 <= 5000 * 1.07);
+        long p99 = h.percentile(99);
+        assertTrue(p99 >= 9900 && p99 <= 10000);
+        assertEquals(10000, h.percentile(100));
+    }
+
+    public void testEmptyAndOutOfRange() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.percentile(99));
+        h.record(-5);
+        h.record(Long.MAX_VALUE);
+        assertEquals(2, h.getCount());
+        assertEquals(0, h.percentile(50));
+        assertTrue(h.getMax() > 0);
+    }
+}
@@ -0,0 +1,50 @@
+package com.globalbin.servlets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the weight bounded LRU used by the caches.
+ */
+public class LruCacheTest extends TestCase {
+
+    public void testEvictsLeastRecentlyUsedByWeight() {
+        final List<String> evicted = new ArrayList<String>();
+        LruCache<String, byte[]> cache = new LruCache<String, byte[]>(10) {
+            @Override
+            protected long weigh(byte[] value) {
+                return value.length;
+            }
+
+            @Override
+            protected void onEvict(String key, byte[] value) {
+                evicted.add(key);
+            }
+        };
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        assertNotNull(cache.get("a"));
+        cache.put("c", new byte[4]);
+
+        assertEquals(1, evicted.size());
+        assertEquals("b", evicted.get(0));
+        assertNull(cache.get("b"));
+        assertEquals(8, cache.weight());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testOversizedValueIsNotCached() {
+        LruCache<String, byte[]> cache = new LruCache<String, byte[]>(2) {
+            @Override
+            protected long weigh(byte[] value) {
+                return value.length;
+            }
+        };
+        cache.put("a", new byte[3]);
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,71 @@
+package com.globalbin.servlets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the streaming multipart reader.
+ */
+public class MultipartStreamTest extends TestCase {
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[7];
+        int n;
+        while ((n = in.read(b)) >= 0) {
+            out.write(b, 0, n);
+        }
+        return out.toString("UTF-8");
+    }
+
+    public void testReadsPartsAcrossBufferRefills() throws IOException {
+        String body = "preamble\r\n--XyZ\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"C:\\photos\\a.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n"
+                + "first part with --XyZ lookalike\r\n-- inside\r\n"
+                + "--XyZ\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n"
+                + "--XyZ--\r\nepilogue";
+        String boundary = MultipartStream.boundary("multipart/form-data; boundary=\"XyZ\"");
+        assertEquals("XyZ", boundary);
+        MultipartStream multipart = new MultipartStream(
+                new ByteArrayInputStream(body.getBytes("UTF-8")), boundary, 16);
+
+        assertTrue(multipart.next());
+        assertEquals("a.jpg", multipart.getFileName());
+        assertEquals("image/jpeg", multipart.getHeader("Content-Type"));
+        assertEquals("first part with --XyZ lookalike\r\n-- inside", read(multipart.getInputStream()));
+
+        assertTrue(multipart.next());
+        assertNull(multipart.getFileName());
+        // left unread, skipped by next()
+        assertFalse(multipart.next());
+    }
+
+    public void testTruncatedBodyFails() throws IOException {
+        String body = "--b\r\nContent-Disposition: form-data; name=\"f\"\r\n\r\nunterminated";
+        MultipartStream multipart = new MultipartStream(new ByteArrayInputStream(body.getBytes("UTF-8")), "b", 64);
+        assertTrue(multipart.next());
+        try {
+            read(multipart.getInputStream());
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testSniffsImageTypes() {
+        byte[] jpeg = { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0 };
+        assertEquals("image/jpeg", MimeSniffer.sniff(jpeg, jpeg.length));
+        byte[] png = { (byte) 0x89, 'P', 'N', 'G', 0x0d, 0x0a, 0x1a, 0x0a };
+        assertEquals("image/png", MimeSniffer.sniff(png, png.length));
+        assertNull(MimeSniffer.sniff(png, 4));
+        byte[] text = { 'h', 'e', 'l', 'l', 'o' };
+        assertNull(MimeSniffer.sniff(text, text.length));
+    }
+}
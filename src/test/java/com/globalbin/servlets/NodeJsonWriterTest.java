@@ -0,0 +1,29 @@
+package com.globalbin.servlets;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the property filter of the subtree JSON writer.
+ */
+public class NodeJsonWriterTest extends TestCase {
+
+    public void testParsePatterns() {
+        assertNull(NodeJsonWriter.parsePatterns(null));
+        assertNull(NodeJsonWriter.parsePatterns(" "));
+        assertEquals(Arrays.asList("jcr:title", "gb:*"),
+                Arrays.asList(NodeJsonWriter.parsePatterns(" jcr:title,,gb:* ")));
+    }
+
+    public void testIncludedMatchesNamesAndPrefixes() {
+        NodeJsonWriter all = new NodeJsonWriter(null, null, 10);
+        assertTrue(all.included("anything"));
+
+        NodeJsonWriter some = new NodeJsonWriter(null, NodeJsonWriter.parsePatterns("jcr:title,gb:*"), 10);
+        assertTrue(some.included("jcr:title"));
+        assertTrue(some.included("gb:sourceHash"));
+        assertFalse(some.included("jcr:titles"));
+        assertFalse(some.included("jcr:primaryType"));
+    }
+}
@@ -0,0 +1,35 @@
+package com.globalbin.servlets;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the observation event coalescer.
+ */
+public class PathCoalescerTest extends TestCase {
+
+    public void testFoldsRepeatsWithinWindow() {
+        PathCoalescer c = new PathCoalescer(1000, 10);
+        c.offer("/a", 0);
+        c.offer("/b", 100);
+        c.offer("/a", 500);
+        c.offer("/a", 900);
+        assertEquals(2, c.getCoalesced());
+        assertTrue(c.drain(999, 10).isEmpty());
+        assertEquals(Arrays.asList("/a"), c.drain(1000, 10));
+        assertEquals(Arrays.asList("/b"), c.drain(5000, 10));
+        assertEquals(0, c.getPending());
+    }
+
+    public void testBoundsPendingAndDrainSize() {
+        PathCoalescer c = new PathCoalescer(0, 2);
+        assertTrue(c.offer("/a", 0));
+        assertTrue(c.offer("/b", 0));
+        assertFalse(c.offer("/c", 0));
+        assertEquals(1, c.getDropped());
+        assertEquals(Arrays.asList("/a"), c.drain(0, 1));
+        assertTrue(c.drain(0, 0).isEmpty());
+        assertEquals(1, c.getPending());
+    }
+}
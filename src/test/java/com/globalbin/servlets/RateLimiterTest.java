@@ -0,0 +1,24 @@
+package com.globalbin.servlets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the permit spacing used by the thumbnail backfill.
+ */
+public class RateLimiterTest extends TestCase {
+
+    public void testSpacesPermitsEvenly() {
+        RateLimiter limiter = new RateLimiter(10);
+        long second = 1000000000L;
+        assertEquals(0, limiter.reserve(5, 0));
+        assertEquals(second / 2, limiter.reserve(1, 0));
+        // idle time is not banked
+        assertEquals(0, limiter.reserve(1, 10 * second));
+    }
+
+    public void testUnlimited() {
+        RateLimiter limiter = new RateLimiter(0);
+        assertEquals(0, limiter.reserve(1000, 0));
+        assertEquals(0, limiter.reserve(1000, 0));
+    }
+}
@@ -0,0 +1,49 @@
+package com.globalbin.servlets;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for rendition profile parsing and nearest-rendition lookup.
+ */
+public class RenditionProfileTest extends TestCase {
+
+    public void testParseSortsAndSkipsBadEntries() {
+        List<RenditionProfile.Entry> entries = RenditionProfile.parse(new String[] { "l=800:png:90", "s=100",
+                "bad", "dup=100:source", "zero=0", "m=400:jpg" });
+        assertEquals(3, entries.size());
+        assertEquals(100, entries.get(0).getWidth());
+        assertNull(entries.get(0).getFormat());
+        assertEquals("jpeg", entries.get(1).getFormat());
+        assertEquals(90, entries.get(2).getQuality());
+    }
+
+    public void testMatchesNarrowestWithinTolerance() {
+        RenditionProfile profile = new RenditionProfile();
+        profile.configure(RenditionProfile.DEFAULT_PROFILE, 25);
+        ResizeSpec requested = new ResizeSpec(180, 0, ResizeSpec.Fit.CONTAIN, 85, "jpeg");
+        assertEquals(200, profile.match(requested, "jpeg").getWidth());
+        assertEquals(200, profile.match(new ResizeSpec(200, 0, ResizeSpec.Fit.CONTAIN, 85, "jpeg"), "jpeg")
+                .getWidth());
+        // too far from 250, different quality, format or a height never match
+        assertNull(profile.match(new ResizeSpec(150, 0, ResizeSpec.Fit.CONTAIN, 85, "jpeg"), "jpeg"));
+        assertNull(profile.match(new ResizeSpec(200, 0, ResizeSpec.Fit.CONTAIN, 70, "jpeg"), "jpeg"));
+        assertNull(profile.match(requested, "png"));
+        assertNull(profile.match(new ResizeSpec(200, 100, ResizeSpec.Fit.CONTAIN, 85, "jpeg"), "jpeg"));
+    }
+
+    public void testEntriesResolvingToTheSameFileAreDeduplicated() {
+        RenditionProfile profile = new RenditionProfile();
+        profile.configure(new String[] { "a=200", "b=200:jpeg:60" }, 25);
+        // for a JPEG both would be written to x_200.jpg
+        List<ResizeSpec> jpeg = profile.specsFor("jpeg");
+        assertEquals(1, jpeg.size());
+        assertEquals(85, jpeg.get(0).getQuality());
+        assertNull(profile.match(new ResizeSpec(200, 0, ResizeSpec.Fit.CONTAIN, 60, "jpeg"), "jpeg"));
+        // for a PNG they are different files
+        assertEquals(2, profile.specsFor("png").size());
+        assertEquals(60, profile.match(new ResizeSpec(200, 0, ResizeSpec.Fit.CONTAIN, 60, "jpeg"), "png")
+                .getQuality());
+    }
+}
@@ -0,0 +1,32 @@
+package com.globalbin.servlets;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the pre-encoded response templates.
+ */
+public class ResponseTemplateTest extends TestCase {
+
+    public void testRendersAndCachesVariants() throws Exception {
+        ResponseTemplate t = new ResponseTemplate("text/html", "<h1>Hello " + ResponseTemplate.PLACEHOLDER
+                + "</h1>", 1024);
+        byte[] first = t.render("/content/\u00e9t\u00e9");
+        assertEquals("<h1>Hello /content/\u00e9t\u00e9</h1>", new String(first, "UTF-8"));
+        assertSame(first, t.render("/content/\u00e9t\u00e9"));
+        assertEquals(1, t.getVariants().getHits());
+    }
+
+    public void testEscapesValues() throws Exception {
+        ResponseTemplate t = new ResponseTemplate("text/html", "[" + ResponseTemplate.PLACEHOLDER + "]", 1024);
+        assertEquals("[&lt;a href=&quot;x&quot;&gt;&amp;]", new String(t.render("<a href=\"x\">&"), "UTF-8"));
+        assertEquals("plain", ResponseTemplate.escapeHtml("plain"));
+    }
+
+    public void testStaticTemplateIgnoresValue() throws Exception {
+        ResponseTemplate t = new ResponseTemplate("text/html", "<p>static</p>");
+        assertTrue(Arrays.equals("<p>static</p>".getBytes("UTF-8"), t.render(null)));
+        assertEquals(0, t.getVariants().size());
+    }
+}
@@ -0,0 +1,98 @@
+package com.globalbin.servlets;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.jcr.Binary;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the scratch space in front of the image decoders.
+ */
+public class ScratchSpaceTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "gb-scratch-test-" + System.nanoTime());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testSpillsAndReleasesQuota() throws Exception {
+        ScratchSpace scratch = new ScratchSpace();
+        scratch.configure(dir, 1024 * 1024, 16);
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+
+        ImageInputStream iis = scratch.open(binary(png.toByteArray()));
+        assertEquals(png.size(), scratch.getReserved());
+        assertEquals(png.size(), iis.length());
+        BufferedImage decoded = ImageScaler.read(iis, 0, 0);
+        assertEquals(64, decoded.getWidth());
+        iis.close();
+        iis.close();
+
+        assertEquals(0, scratch.getReserved());
+        assertEquals(1L, scratch.getStats().get("spilled"));
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    public void testFallsBackToMemoryOverQuota() throws Exception {
+        ScratchSpace scratch = new ScratchSpace();
+        scratch.configure(dir, 100, 16);
+        byte[] data = new byte[200];
+        data[199] = 42;
+        ImageInputStream iis = scratch.open(binary(data));
+        iis.seek(199);
+        assertEquals(42, iis.read());
+        iis.close();
+        assertEquals(1L, scratch.getStats().get("quotaFallbacks"));
+        assertEquals(0, scratch.getReserved());
+    }
+
+    public void testRemovesLeftovers() throws Exception {
+        dir.mkdirs();
+        assertTrue(new File(dir, "scratch-old.bin").createNewFile());
+        new ScratchSpace().configure(dir, 100, 16);
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    private static Binary binary(final byte[] data) {
+        return new Binary() {
+            public InputStream getStream() {
+                return new ByteArrayInputStream(data);
+            }
+
+            public int read(byte[] b, long position) {
+                int n = (int) Math.min(b.length, data.length - position);
+                System.arraycopy(data, (int) position, b, 0, n);
+                return n;
+            }
+
+            public long getSize() {
+                return data.length;
+            }
+
+            public void dispose() {
+            }
+        };
+    }
+}
@@ -0,0 +1,36 @@
+package com.globalbin.servlets;
+
+import java.util.Arrays;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.RepositoryException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for conflict detection and throughput of subtree imports.
+ */
+public class SubtreeImportTest extends TestCase {
+
+    public void testConflictFoundInCauseChain() {
+        assertTrue(SubtreeImport.isConflict(new InvalidItemStateException("stale")));
+        assertTrue(SubtreeImport.isConflict(new RepositoryException("save failed",
+                new InvalidItemStateException("OakState0001"))));
+        assertFalse(SubtreeImport.isConflict(new RepositoryException("no such path")));
+    }
+
+    public void testOverlappingRoots() {
+        // "-" sorts before "/", so the overlap is not between sorted neighbours
+        assertTrue(Arrays.equals(new String[] { "/c/a", "/c/a/b" },
+                SubtreeImport.overlapping(Arrays.asList("/c/a", "/c/a-1", "/c/a/b"))));
+        assertTrue(Arrays.equals(new String[] { "/c/a/b", "/c/a" },
+                SubtreeImport.overlapping(Arrays.asList("/c/a/b", "/c/a-1", "/c/a"))));
+        assertNotNull(SubtreeImport.overlapping(Arrays.asList("/c/x", "/c/x")));
+        assertNull(SubtreeImport.overlapping(Arrays.asList("/c/a", "/c/a-1", "/c/ab", "/d/a")));
+    }
+
+    public void testPerSecond() {
+        assertEquals(2000.0, SubtreeImport.perSecond(1000, 500 * 1000 * 1000L), 0.0);
+        assertEquals(0.0, SubtreeImport.perSecond(10, 0), 0.0);
+    }
+}
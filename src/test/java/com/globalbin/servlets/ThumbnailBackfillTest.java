@@ -0,0 +1,133 @@
+package com.globalbin.servlets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the paging cursor and checkpointing of
+ * {@link ThumbnailBackfill}.
+ */
+public class ThumbnailBackfillTest extends TestCase {
+
+    public void testCursorSkipsFilesSeenAtTheSameInstant() {
+        ThumbnailBackfill.Cursor cursor = new ThumbnailBackfill.Cursor(null, Collections.<String>emptySet());
+        assertTrue(cursor.isAhead("/a", at(1)));
+        cursor.advance("/a", at(1));
+        cursor.advance("/b", at(2));
+        cursor.advance("/c", at(2));
+        assertEquals(at(2), cursor.getSince());
+        assertEquals(new HashSet<String>(Arrays.asList("/b", "/c")), cursor.getSeen());
+        assertFalse(cursor.isAhead("/a", at(1)));
+        assertFalse(cursor.isAhead("/b", at(2)));
+        assertTrue(cursor.isAhead("/d", at(2)));
+        assertTrue(cursor.isAhead("/e", at(3)));
+        cursor.advance("/e", at(3));
+        assertEquals(Collections.singleton("/e"), cursor.getSeen());
+    }
+
+    public void testPagesThroughSharedCreationTimes() throws Exception {
+        // five files share one creation time and straddle the page boundaries
+        List<ThumbnailBackfill.FileRef> files = new ArrayList<ThumbnailBackfill.FileRef>();
+        long[] times = { 1, 2, 2, 2, 2, 2, 3 };
+        for (int i = 0; i < times.length; i++) {
+            files.add(new ThumbnailBackfill.FileRef("/f" + i, at(times[i])));
+        }
+        FakeBackfill backfill = new FakeBackfill(files, 2, -1);
+        assertTrue(backfill.runPages(null, new ThumbnailBackfill.Cursor(null, Collections.<String>emptySet()),
+                null));
+        assertEquals(contentPaths(files), backfill.enqueued);
+        assertEquals(at(3), backfill.saved.getSince());
+    }
+
+    public void testResumesAtThePageStopCutShort() throws Exception {
+        List<ThumbnailBackfill.FileRef> files = new ArrayList<ThumbnailBackfill.FileRef>();
+        for (int i = 0; i < 240; i++) {
+            files.add(new ThumbnailBackfill.FileRef("/f" + i, at(i / 7)));
+        }
+        // the first page takes three slices, stop() comes after the first slice of the second
+        FakeBackfill first = new FakeBackfill(files, 120, 4);
+        assertFalse(first.runPages(null, new ThumbnailBackfill.Cursor(null, Collections.<String>emptySet()),
+                null));
+        assertEquals(170, first.enqueued.size());
+        assertEquals(1, first.checkpoints);
+
+        ThumbnailBackfill.Cursor resume = first.saved;
+        FakeBackfill second = new FakeBackfill(files, 120, -1);
+        assertTrue(second.runPages(null, resume, null));
+        assertEquals(contentPaths(files.subList(120, 240)), second.enqueued);
+    }
+
+    private static List<String> contentPaths(List<ThumbnailBackfill.FileRef> files) {
+        List<String> paths = new ArrayList<String>();
+        for (ThumbnailBackfill.FileRef file : files) {
+            paths.add(file.path + "/jcr:content");
+        }
+        return paths;
+    }
+
+    private static Calendar at(long seconds) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(seconds * 1000);
+        return calendar;
+    }
+
+    /**
+     * Pages through an in-memory file list, finds every file stale and
+     * records what it enqueues and checkpoints.
+     */
+    private static class FakeBackfill extends ThumbnailBackfill {
+        private final List<FileRef> files;
+        private final int pageSize;
+        private final int stopAfterSlices;
+        final List<String> enqueued = new ArrayList<String>();
+        Cursor saved;
+        int checkpoints;
+        private int slices;
+
+        FakeBackfill(List<FileRef> files, int pageSize, int stopAfterSlices) {
+            this.files = files;
+            this.pageSize = pageSize;
+            this.stopAfterSlices = stopAfterSlices;
+        }
+
+        @Override
+        List<FileRef> nextPage(Session session, Cursor cursor) {
+            List<FileRef> page = new ArrayList<FileRef>();
+            for (FileRef file : files) {
+                if (page.size() < pageSize && cursor.isAhead(file.path, file.created)) {
+                    page.add(file);
+                }
+            }
+            return page;
+        }
+
+        @Override
+        List<String> checkStale(List<String> contentPaths) {
+            return contentPaths;
+        }
+
+        @Override
+        int enqueue(List<String> slice) {
+            enqueued.addAll(slice);
+            if (++slices == stopAfterSlices) {
+                stop();
+            }
+            return slice.size();
+        }
+
+        @Override
+        void saveCheckpoint(Node checkpoint, Cursor cursor) {
+            saved = new Cursor(cursor.getSince(), cursor.getSeen());
+            checkpoints++;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.globalbin.servlets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the rendition detection of {@link ThumbnailGenerator}.
+ */
+public class ThumbnailGeneratorTest extends TestCase {
+
+    public void testRenditionsAreRecognised() {
+        assertTrue(ThumbnailGenerator.isRenditionPath("/content/images/post/thumbnails/x.jpg_200.jpg/jcr:content"));
+        assertTrue(ThumbnailGenerator.isRenditionPath("/content/images/post/thumbnails/x.jpg_200.jpg"));
+    }
+
+    public void testImagesAreNotRenditions() {
+        assertFalse(ThumbnailGenerator.isRenditionPath("/content/images/post/photos/x.jpg/jcr:content"));
+        assertFalse(ThumbnailGenerator.isRenditionPath("/content/images/post/old-thumbnails/x.jpg/jcr:content"));
+        // a post that happens to be called thumbnails
+        assertFalse(ThumbnailGenerator.isRenditionPath("/content/images/thumbnails/photos/x.jpg/jcr:content"));
+        assertFalse(ThumbnailGenerator.isRenditionPath("/thumbnails"));
+    }
+}
@@ -0,0 +1,44 @@
+package com.globalbin.servlets;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the hot rendition list handling of {@link WarmStart}.
+ */
+public class WarmStartTest extends TestCase {
+
+    public void testParseKey() {
+        String key = RenditionCache.key("/content/images/a|b.jpg", 1234L, "w200.h0.contain.q85.jpeg");
+        String[] parts = WarmStart.parseKey(key);
+        assertEquals("/content/images/a|b.jpg", parts[0]);
+        assertEquals("1234", parts[1]);
+        assertEquals("w200.h0.contain.q85.jpeg", parts[2]);
+    }
+
+    public void testParseKeyRejectsGarbage() {
+        assertNull(WarmStart.parseKey("no-separators"));
+        assertNull(WarmStart.parseKey("relative|1|w200"));
+        assertNull(WarmStart.parseKey("/only|one"));
+    }
+
+    public void testVariantParsesBackToSpec() {
+        ResizeSpec spec = new ResizeSpec(320, 0, ResizeSpec.Fit.CONTAIN, 80, "png");
+        String[] parts = WarmStart.parseKey(RenditionCache.key("/content/images/a.png", 1L, spec.toString()));
+        assertEquals(spec.toString(), ResizeSpec.parse(parts[2].split("\\."), 0, 0, null).toString());
+    }
+
+    public void testMergeKeys() {
+        assertEquals(Arrays.asList("a", "b", "c"),
+                WarmStart.mergeKeys(Arrays.asList("a", "b"), Arrays.asList("b", "c", "d"), 3));
+        assertEquals(Arrays.asList("x"),
+                WarmStart.mergeKeys(Collections.<String>emptyList(), Arrays.asList("x"), 10));
+    }
+
+    public void testSyntheticImage() {
+        assertEquals(64, WarmStart.synthetic(64, 48).getWidth());
+        assertEquals(48, WarmStart.synthetic(64, 48).getHeight());
+    }
+}